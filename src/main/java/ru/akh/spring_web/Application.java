@@ -1,9 +1,15 @@
 package ru.akh.spring_web;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Arrays;
 
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
@@ -12,12 +18,25 @@ import org.springframework.data.mongodb.MongoTransactionManager;
 import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
 import org.springframework.jdbc.support.lob.DefaultLobHandler;
 import org.springframework.jdbc.support.lob.LobHandler;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
 import org.springframework.security.config.annotation.method.configuration.GlobalMethodSecurityConfiguration;
+import org.springframework.util.unit.DataSize;
 
+import ru.akh.spring_web.dao.BookCache;
+import ru.akh.spring_web.dao.BookJournal;
+import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.dao.BookRepositoryDecoratorPostProcessor;
+import ru.akh.spring_web.dao.CachingBookRepository;
+import ru.akh.spring_web.dao.FileSystemBookRepository;
+import ru.akh.spring_web.dao.IndexingBookRepository;
+import ru.akh.spring_web.dao.OffHeapContentCache;
+import ru.akh.spring_web.dao.ReadThroughBookRepository;
+import ru.akh.spring_web.dao.TitleIndex;
 import ru.akh.spring_web.dao.mongodb.BookWriteConverter;
 
 @SpringBootApplication
+@EnableScheduling
 public class Application {
 
     public static void main(String[] args) {
@@ -36,7 +55,98 @@ public class Application {
 
         @Bean
         public LobHandler getLobHandler() {
-            return new DefaultLobHandler();
+            DefaultLobHandler lobHandler = new DefaultLobHandler();
+            // JDBC 4.0 setBlob(int, InputStream, long) lets the driver pull large content in chunks
+            lobHandler.setStreamAsLob(true);
+            return lobHandler;
+        }
+
+    }
+
+    @Configuration
+    @Profile("inMemory")
+    @ConditionalOnProperty("books.in-memory.journal.directory")
+    public static class InMemoryJournalConfig {
+
+        @Bean
+        public BookJournal bookJournal(@Value("${books.in-memory.journal.directory}") String directory,
+                @Value("${books.in-memory.journal.segment-size:64MB}") DataSize segmentSize) throws IOException {
+            return new BookJournal(Paths.get(directory), Math.toIntExact(segmentSize.toBytes()));
+        }
+
+    }
+
+    @Configuration
+    @ConditionalOnProperty("books.content.file-system.directory")
+    public static class FileSystemContentConfig {
+
+        @Bean
+        public static BookRepositoryDecoratorPostProcessor fileSystemBookRepositoryPostProcessor(
+                @Value("${books.content.file-system.directory}") String directory) {
+            return new BookRepositoryDecoratorPostProcessor(BookRepositoryDecoratorPostProcessor.FILE_SYSTEM_ORDER,
+                    repository -> new FileSystemBookRepository(repository, Paths.get(directory)));
+        }
+
+    }
+
+    @Configuration
+    @ConditionalOnProperty("books.content.cache.capacity")
+    public static class ContentCacheConfig {
+
+        @Bean
+        public static OffHeapContentCache offHeapContentCache(
+                @Value("${books.content.cache.capacity}") DataSize capacity) {
+            return new OffHeapContentCache(capacity.toBytes());
+        }
+
+        @Bean
+        public static BookRepositoryDecoratorPostProcessor cachingBookRepositoryPostProcessor(
+                OffHeapContentCache offHeapContentCache) {
+            return new BookRepositoryDecoratorPostProcessor(BookRepositoryDecoratorPostProcessor.CONTENT_CACHE_ORDER,
+                    repository -> new CachingBookRepository(repository, offHeapContentCache));
+        }
+
+    }
+
+    @Configuration
+    @ConditionalOnProperty("books.cache.max-size")
+    public static class BookCacheConfig {
+
+        @Bean
+        public static BookCache bookCache(@Value("${books.cache.max-size}") int maxSize,
+                @Value("${books.cache.time-to-live:10m}") Duration timeToLive) {
+            return new BookCache(maxSize, timeToLive.toMillis());
+        }
+
+        @Bean
+        public static BookRepositoryDecoratorPostProcessor readThroughBookRepositoryPostProcessor(
+                BookCache bookCache) {
+            return new BookRepositoryDecoratorPostProcessor(BookRepositoryDecoratorPostProcessor.BOOK_CACHE_ORDER,
+                    repository -> new ReadThroughBookRepository(repository, bookCache));
+        }
+
+    }
+
+    @Configuration
+    @ConditionalOnProperty(name = "books.title-index.enabled", havingValue = "true")
+    public static class TitleIndexConfig {
+
+        @Bean
+        public static TitleIndex titleIndex() {
+            return new TitleIndex();
+        }
+
+        @Bean
+        public static BookRepositoryDecoratorPostProcessor indexingBookRepositoryPostProcessor(
+                TitleIndex titleIndex) {
+            return new BookRepositoryDecoratorPostProcessor(BookRepositoryDecoratorPostProcessor.TITLE_INDEX_ORDER,
+                    repository -> new IndexingBookRepository(repository, titleIndex));
+        }
+
+        // built before the web server starts, the books put meanwhile are indexed by the decorator
+        @Bean
+        public SmartInitializingSingleton titleIndexBuilder(TitleIndex titleIndex, BookRepository bookRepository) {
+            return () -> titleIndex.build(bookRepository);
         }
 
     }
@@ -1,26 +1,42 @@
 package ru.akh.spring_web.controller;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.multipart.MultipartFile;
 
 import ru.akh.spring_web.access.SecuredReader;
 import ru.akh.spring_web.access.SecuredWriter;
 import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.dao.CachedContentInputStream;
+import ru.akh.spring_web.dao.ContentEncodings;
+import ru.akh.spring_web.dao.ContentHashes;
+import ru.akh.spring_web.dao.FileContentInputStream;
 import ru.akh.spring_web.dao.exception.BookException;
 import ru.akh.spring_web.dto.BookContent;
 
@@ -28,6 +44,12 @@ import ru.akh.spring_web.dto.BookContent;
 @RequestMapping("/books")
 public class BookContentController {
 
+    // org.apache.catalina.Globals
+    private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
     private final BookRepository repository;
 
     public BookContentController(BookRepository repository) {
@@ -41,33 +63,274 @@ public class BookContentController {
             throw new BookException("Empty file!");
         }
 
+        BookContent bookContent = new BookContent();
+        bookContent.setId(id);
+        bookContent.setFileName(getFileName(file.getOriginalFilename()));
+        bookContent.setMimeType(file.getContentType());
+        bookContent.setSize(file.getSize());
+        // the upload is spooled to disk, so it is read twice: to hash it and to store it unless it is a duplicate
+        try (InputStream content = file.getInputStream()) {
+            bookContent.setHash(ContentHashes.hash(content));
+        }
+
         try (InputStream content = file.getInputStream()) {
-            BookContent bookContent = new BookContent();
-            bookContent.setId(id);
-            bookContent.setFileName(getFileName(file.getOriginalFilename()));
-            bookContent.setMimeType(file.getContentType());
-            bookContent.setContent(content.readAllBytes());
-            bookContent.setSize(file.getSize());
-
-            repository.putContent(bookContent);
+            repository.putContent(bookContent, content);
         }
     }
 
     @GetMapping("/download/{id}")
     @SecuredReader
-    public ResponseEntity<Resource> download(@PathVariable long id) throws IOException {
-        BookContent bookContent = repository.getContent(id);
+    public void download(@PathVariable long id, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        HttpHeaders requestHeaders = new ServletServerHttpRequest(request).getHeaders();
+        ServletServerHttpResponse output = new ServletServerHttpResponse(response);
+
+        if (!requestHeaders.containsKey(HttpHeaders.RANGE)) {
+            writeFullContent(id, requestHeaders, request, output);
+            return;
+        }
+
+        BookContent bookContent = repository.getContentInfo(id);
+        if (!isRangeApplicable(requestHeaders, bookContent)) {
+            writeFullContent(id, requestHeaders, request, output);
+            return;
+        }
+
+        long size = bookContent.getSize();
+
+        List<HttpRange> ranges;
+        try {
+            ranges = requestHeaders.getRange();
+            for (HttpRange range : ranges) {
+                if (range.getRangeStart(size) >= size) {
+                    throw new IllegalArgumentException("Range " + range + " exceeds the content size " + size);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            output.setStatusCode(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            output.getHeaders().set(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+            output.flush();
+            return;
+        }
+
+        output.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            writeRange(id, ranges.get(0), bookContent, request, output);
+        } else {
+            writeRanges(id, ranges, bookContent, output);
+        }
+    }
+
+    @RequestMapping(path = "/download/{id}", method = RequestMethod.HEAD)
+    @SecuredReader
+    public void downloadHead(@PathVariable long id, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        HttpHeaders requestHeaders = new ServletServerHttpRequest(request).getHeaders();
+        ServletServerHttpResponse output = new ServletServerHttpResponse(response);
+
+        setDownloadHeaders(output.getHeaders(), requestHeaders, repository.getContentInfo(id));
+        output.flush();
+    }
+
+    private void writeFullContent(long id, HttpHeaders requestHeaders, HttpServletRequest request,
+            ServletServerHttpResponse output) throws IOException {
+        repository.getEncodedContent(id, (bookContent, content) -> {
+            boolean encoded = setDownloadHeaders(output.getHeaders(), requestHeaders, bookContent);
+            writeContent(encoded ? content : ContentEncodings.decode(content, bookContent.getEncoding()),
+                    request, output);
+            return null;
+        });
+    }
+
+    private void writeRange(long id, HttpRange range, BookContent bookContent, HttpServletRequest request,
+            ServletServerHttpResponse output) throws IOException {
+        long size = bookContent.getSize();
+        long start = range.getRangeStart(size);
+        long end = range.getRangeEnd(size);
+        repository.getContent(id, start, end - start + 1, (rangeContent, content) -> {
+            HttpHeaders headers = output.getHeaders();
+            setContentHeaders(headers, rangeContent);
+            setETag(headers, getETag(bookContent, null));
+            headers.set(HttpHeaders.CONTENT_RANGE, getContentRange(start, end, size));
+            headers.setContentLength(end - start + 1);
+
+            writeContent(content, request, output);
+            return null;
+        });
+    }
+
+    // org.springframework.http.converter.ResourceRegionHttpMessageConverter#writeResourceRegionCollection()
+    private void writeRanges(long id, List<HttpRange> ranges, BookContent bookContent,
+            ServletServerHttpResponse output) throws IOException {
+        long size = bookContent.getSize();
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+
+        HttpHeaders headers = output.getHeaders();
+        setContentHeaders(headers, bookContent);
+        setETag(headers, getETag(bookContent, null));
+        headers.setContentType(new MediaType("multipart", "byteranges",
+                Collections.singletonMap("boundary", boundary)));
+
+        OutputStream out = output.getBody();
+        for (HttpRange range : ranges) {
+            long start = range.getRangeStart(size);
+            long end = range.getRangeEnd(size);
+            repository.getContent(id, start, end - start + 1, (rangeContent, content) -> {
+                println(out);
+                print(out, "--" + boundary);
+                println(out);
+                print(out, HttpHeaders.CONTENT_TYPE + ": " + rangeContent.getMimeType());
+                println(out);
+                print(out, HttpHeaders.CONTENT_RANGE + ": " + getContentRange(start, end, size));
+                println(out);
+                println(out);
+                copy(content, out);
+                return null;
+            });
+        }
+
+        println(out);
+        print(out, "--" + boundary + "--");
+        output.flush();
+    }
+
+    private static void writeContent(InputStream content, HttpServletRequest request,
+            ServletServerHttpResponse output) throws IOException {
+        if (content instanceof FileContentInputStream
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+            // Tomcat sends the file with sendfile(2) after the request has been processed,
+            // the body must not be written
+            FileContentInputStream file = (FileContentInputStream) content;
+            request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getPath().toString());
+            request.setAttribute(SENDFILE_START_ATTRIBUTE, file.getPosition());
+            request.setAttribute(SENDFILE_END_ATTRIBUTE, file.getPosition() + file.getLength());
+            output.close();
+            return;
+        }
+
+        copy(content, output.getBody());
+        output.flush();
+    }
+
+    private static void copy(InputStream content, OutputStream out) throws IOException {
+        if (content instanceof FileContentInputStream) {
+            ((FileContentInputStream) content).transferTo(Channels.newChannel(out));
+        } else if (content instanceof CachedContentInputStream) {
+            // written from the direct buffers a chunk at a time, the content is never materialized in heap
+            ((CachedContentInputStream) content).transferTo(Channels.newChannel(out));
+        } else {
+            // copies through a fixed-size buffer, the content is never materialized in heap
+            StreamUtils.copy(content, out);
+        }
+    }
+
+    private static boolean isRangeApplicable(HttpHeaders requestHeaders, BookContent bookContent) {
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
 
-        try (InputStream content = new ByteArrayInputStream(bookContent.getContent())) {
-            HttpHeaders headers = new HttpHeaders();
-            headers.set(HttpHeaders.CONTENT_TYPE, bookContent.getMimeType());
-            headers.setContentDisposition(ContentDisposition.attachment().filename(bookContent.getFileName()).build());
-            headers.setContentLength(bookContent.getSize());
+        // the content has no Last-Modified date, so a date never matches,
+        // nor does a weak ETag, If-Range requires a strong comparison
+        String eTag = getETag(bookContent, null);
+        return (eTag != null) && eTag.equals(ifRange.trim());
+    }
+
+    /**
+     * Returns the strong ETag of the content in the encoding, {@code null} for
+     * the decoded content, derived from its hash. Returns {@code null} when the
+     * repository does not know the hash.
+     */
+    private static String getETag(BookContent bookContent, String encoding) {
+        String hash = bookContent.getHash();
+        if (hash == null) {
+            return null;
+        }
+
+        return "\"" + ((encoding != null) ? hash + "-" + encoding : hash) + "\"";
+    }
 
-            return new ResponseEntity<Resource>(new InputStreamResource(content), headers, HttpStatus.OK);
+    private static void setETag(HttpHeaders headers, String eTag) {
+        if (eTag != null) {
+            headers.setETag(eTag);
         }
     }
 
+    /**
+     * Sets the headers of a full download, returns whether the content is sent
+     * as it is stored.
+     */
+    private static boolean setDownloadHeaders(HttpHeaders headers, HttpHeaders requestHeaders,
+            BookContent bookContent) {
+        setContentHeaders(headers, bookContent);
+
+        String encoding = bookContent.getEncoding();
+        if (encoding != null) {
+            headers.setVary(Collections.singletonList(HttpHeaders.ACCEPT_ENCODING));
+            if (isEncodingAccepted(requestHeaders, encoding)) {
+                headers.set(HttpHeaders.CONTENT_ENCODING, encoding);
+                // the encoded bytes are another representation, so they get an ETag of their own
+                setETag(headers, getETag(bookContent, encoding));
+                // the content info of a HEAD request does not hold the length of the stored bytes
+                if (bookContent.getEncodedSize() > 0) {
+                    headers.setContentLength(bookContent.getEncodedSize());
+                }
+                return true;
+            }
+        }
+
+        setETag(headers, getETag(bookContent, null));
+        headers.setContentLength(bookContent.getSize());
+        return false;
+    }
+
+    private static boolean isEncodingAccepted(HttpHeaders requestHeaders, String encoding) {
+        boolean wildcardAccepted = false;
+        for (String value : requestHeaders.getValuesAsList(HttpHeaders.ACCEPT_ENCODING)) {
+            String[] parts = StringUtils.tokenizeToStringArray(value, ";");
+            if (parts.length == 0) {
+                continue;
+            }
+
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parts[i].substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+
+            if (parts[0].equalsIgnoreCase(encoding)) {
+                return accepted;
+            } else if (parts[0].equals("*")) {
+                wildcardAccepted = accepted;
+            }
+        }
+        return wildcardAccepted;
+    }
+
+    private static void setContentHeaders(HttpHeaders headers, BookContent bookContent) {
+        headers.set(HttpHeaders.CONTENT_TYPE, bookContent.getMimeType());
+        headers.setContentDisposition(ContentDisposition.attachment().filename(bookContent.getFileName()).build());
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+    }
+
+    private static String getContentRange(long start, long end, long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    private static void println(OutputStream out) throws IOException {
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static void print(OutputStream out, String value) throws IOException {
+        out.write(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
     // org.springframework.web.multipart.commons.CommonsMultipartFile#getOriginalFilename()
     private static String getFileName(String path) {
         int unixSep = path.lastIndexOf('/');
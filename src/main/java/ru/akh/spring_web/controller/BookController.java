@@ -1,12 +1,26 @@
 package ru.akh.spring_web.controller;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import javax.validation.constraints.Min;
+import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.lang.Nullable;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -15,47 +29,227 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 import ru.akh.spring_web.access.SecuredReader;
 import ru.akh.spring_web.access.SecuredWriter;
 import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.dao.DelegatingBookRepository;
+import ru.akh.spring_web.dao.TitleIndex;
 import ru.akh.spring_web.dto.Book;
+import ru.akh.spring_web.dto.BookContent;
 
 @RestController
 @Validated
 @RequestMapping("/books")
 public class BookController {
 
+    static final String MISSING_IDS_HEADER = "X-Missing-Ids";
+
+    private static final int PUT_BATCH_SIZE = 1000;
+
     private final BookRepository repository;
 
-    public BookController(BookRepository repository) {
+    // the cached JSON is read from the database, a cached book may be older than its version
+    private final BookRepository sourceRepository;
+
+    private final JsonResponseCache jsonCache;
+
+    private final ObjectMapper objectMapper;
+
+    // null unless books.title-index.enabled is set
+    private final TitleIndex titleIndex;
+
+    public BookController(BookRepository repository, JsonResponseCache jsonCache, ObjectMapper objectMapper,
+            @Nullable TitleIndex titleIndex) {
         this.repository = repository;
+        this.sourceRepository = DelegatingBookRepository.getUndecorated(repository);
+        this.jsonCache = jsonCache;
+        this.objectMapper = objectMapper;
+        this.titleIndex = titleIndex;
     }
 
     @GetMapping(path = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
     @SecuredReader
-    public Book getBook(@PathVariable long id) {
-        return repository.get(id);
+    public SerializedJson getBook(@PathVariable long id, WebRequest request) {
+        // the version is read first, so the ETag is never newer than the book,
+        // a request with the current one is answered with 304 without reading the book
+        long version = repository.getVersion(id);
+        if (request.checkNotModified(getETag(version))) {
+            return null;
+        }
+
+        return jsonCache.getBook(id, version, () -> sourceRepository.get(id));
+    }
+
+    /**
+     * Returns the books of the ids in the same order, the ids of the books
+     * that are not found are listed in the {@value #MISSING_IDS_HEADER} header.
+     */
+    @GetMapping(path = { "", "/" }, params = "ids", produces = MediaType.APPLICATION_JSON_VALUE)
+    @SecuredReader
+    public List<Book> getBooks(@RequestParam("ids") @NotEmpty List<Long> ids, WebRequest request,
+            HttpServletResponse response) {
+        if (request.checkNotModified(getETag(repository.getCatalogVersion()))) {
+            return null;
+        }
+
+        List<Long> uniqueIds = ids.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        List<Book> books = repository.getAll(uniqueIds);
+        if (books.size() < uniqueIds.size()) {
+            Set<Long> foundIds = books.stream().map(Book::getId).collect(Collectors.toSet());
+            response.setHeader(MISSING_IDS_HEADER, uniqueIds.stream().filter(id -> !foundIds.contains(id))
+                    .map(String::valueOf).collect(Collectors.joining(",")));
+        }
+        return books;
+    }
+
+    @GetMapping(path = "/{id}/content-info", produces = MediaType.APPLICATION_JSON_VALUE)
+    @SecuredReader
+    public BookContent getContentInfo(@PathVariable long id) {
+        return repository.getContentInfo(id);
     }
 
     @PutMapping(consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.TEXT_PLAIN_VALUE)
     @SecuredWriter
     public String putBook(@RequestBody @Valid Book book) {
-        long id = repository.put(book);
+        long id;
+        try {
+            id = repository.put(book);
+        } finally {
+            jsonCache.invalidate(book.getId());
+        }
         return String.valueOf(id);
     }
 
+    /**
+     * Puts the books of a JSON array or of NDJSON and returns their ids, one
+     * per line. The books are read and put a batch at a time, each in its own
+     * transaction, so the batches before a failed one stay put.
+     */
+    @PutMapping(path = "/batch", consumes = { MediaType.APPLICATION_JSON_VALUE,
+            MediaType.APPLICATION_NDJSON_VALUE }, produces = MediaType.TEXT_PLAIN_VALUE)
+    @SecuredWriter
+    public String putBooks(HttpServletRequest request) throws IOException {
+        StringBuilder ids = new StringBuilder();
+        // a root-level array is read as a sequence of its elements
+        try (MappingIterator<Book> books = objectMapper.readerFor(Book.class).readValues(request.getInputStream())) {
+            List<Book> batch = new ArrayList<>(PUT_BATCH_SIZE);
+            while (books.hasNextValue()) {
+                batch.add(books.nextValue());
+                if (batch.size() == PUT_BATCH_SIZE) {
+                    putBooks(batch, ids);
+                    batch.clear();
+                }
+            }
+            putBooks(batch, ids);
+        } catch (JsonProcessingException e) {
+            throw new HttpMessageNotReadableException("Could not read books: " + e.getOriginalMessage(), e,
+                    new ServletServerHttpRequest(request));
+        }
+        return ids.toString();
+    }
+
+    private void putBooks(List<Book> batch, StringBuilder ids) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            for (Long id : repository.putAll(batch)) {
+                ids.append(id).append('\n');
+            }
+        } finally {
+            jsonCache.invalidate(batch.stream().map(Book::getId).collect(Collectors.toList()));
+        }
+    }
+
     @GetMapping(path = "/", params = { "field", "top" }, produces = MediaType.APPLICATION_JSON_VALUE)
     @SecuredReader
-    public List<Book> getTopBooks(@RequestParam("field") @NotNull Book.Field field,
-            @RequestParam("top") @Min(1) int limit) {
-        return repository.getTopBooks(field, limit);
+    public SerializedJson getTopBooks(@RequestParam("field") @NotNull Book.Field field,
+            @RequestParam("top") @Min(1) int limit, @RequestParam(value = "after", required = false) String after,
+            WebRequest request, HttpServletResponse response) {
+        Book afterBook = (after != null) ? TopBooksCursor.decode(field, after) : null;
+        long catalogVersion = repository.getCatalogVersion();
+        if (request.checkNotModified(getETag(catalogVersion))) {
+            return null;
+        }
+
+        SerializedJson json = jsonCache.getTopBooks(field, limit, after, catalogVersion,
+                () -> (afterBook != null) ? sourceRepository.getTopBooks(field, limit, afterBook)
+                        : sourceRepository.getTopBooks(field, limit));
+        if (json.getNextCursor() != null) {
+            String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam("after", json.getNextCursor()).toUriString();
+            response.setHeader(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"");
+        }
+        return json;
     }
 
     @GetMapping(path = "/", params = "author", produces = MediaType.APPLICATION_JSON_VALUE)
     @SecuredReader
-    public List<Book> getBooksByAuthor(@RequestParam("author") @NotNull String author) {
+    public List<Book> getBooksByAuthor(@RequestParam("author") @NotNull String author, WebRequest request) {
+        if (request.checkNotModified(getETag(repository.getCatalogVersion()))) {
+            return null;
+        }
+
         return repository.getBooksByAuthor(author);
     }
 
+    /**
+     * Returns the books whose titles have a word starting with every word of
+     * the query, the best matches first, or responds with 404 if the titles
+     * are not indexed.
+     */
+    @GetMapping(path = "/search", params = "q", produces = MediaType.APPLICATION_JSON_VALUE)
+    @SecuredReader
+    public List<Book> searchBooks(@RequestParam("q") @NotNull String query,
+            @RequestParam(value = "limit", defaultValue = "20") @Min(1) int limit) {
+        if (titleIndex == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "The titles are not indexed");
+        }
+
+        List<Long> ids = titleIndex.search(query, limit);
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // in the order of the ids, a book deleted since it was indexed is skipped
+        return repository.getAll(ids);
+    }
+
+    /**
+     * Writes every book as a line of JSON while it is read, so neither the
+     * books nor the response are held in memory.
+     */
+    @GetMapping(path = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @SecuredReader
+    public void exportBooks(HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        // the response is flushed as the buffers fill, not after every book
+        ObjectWriter writer = objectMapper.writerFor(Book.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        try (JsonGenerator generator = objectMapper.createGenerator(response.getOutputStream())) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(null);
+            repository.exportBooks(book -> {
+                writer.writeValue(generator, book);
+                generator.writeRaw('\n');
+            });
+        }
+    }
+
+    private static String getETag(long version) {
+        return "\"" + version + "\"";
+    }
+
 }
@@ -0,0 +1,76 @@
+package ru.akh.spring_web.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Principal;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import ru.akh.spring_web.access.SecuredWriter;
+import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.upload.UploadSessions;
+
+/**
+ * Resumable uploads: a session is opened with the content metadata, the
+ * content is sent in chunks at increasing offsets and then committed. After a
+ * failure the client asks for the uploaded length and resumes from it. Only
+ * the user who opened a session may use it.
+ */
+@RestController
+@RequestMapping("/books/uploads")
+public class BookUploadController {
+
+    private final BookRepository repository;
+
+    private final UploadSessions uploadSessions;
+
+    public BookUploadController(BookRepository repository, UploadSessions uploadSessions) {
+        this.repository = repository;
+        this.uploadSessions = uploadSessions;
+    }
+
+    @PostMapping(produces = MediaType.TEXT_PLAIN_VALUE)
+    @SecuredWriter
+    public String createUpload(@RequestParam("id") long id, @RequestParam("fileName") String fileName,
+            @RequestParam(name = "mimeType", defaultValue = MediaType.APPLICATION_OCTET_STREAM_VALUE) String mimeType,
+            @RequestParam("size") long size, Principal principal) throws IOException {
+        // fails before anything is uploaded for a missing book
+        repository.get(id);
+        return uploadSessions.create(principal.getName(), id, fileName, mimeType, size);
+    }
+
+    @PutMapping(path = "/{uploadId}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE,
+            produces = MediaType.TEXT_PLAIN_VALUE)
+    @SecuredWriter
+    public String putChunk(@PathVariable String uploadId, @RequestParam("offset") long offset, InputStream chunk,
+            Principal principal) throws IOException {
+        return String.valueOf(uploadSessions.append(principal.getName(), uploadId, offset, chunk));
+    }
+
+    @GetMapping(path = "/{uploadId}", produces = MediaType.TEXT_PLAIN_VALUE)
+    @SecuredWriter
+    public String getUploadedLength(@PathVariable String uploadId, Principal principal) {
+        return String.valueOf(uploadSessions.getLength(principal.getName(), uploadId));
+    }
+
+    @PostMapping(path = "/{uploadId}/commit")
+    @SecuredWriter
+    public void commitUpload(@PathVariable String uploadId, Principal principal) throws IOException {
+        uploadSessions.commit(principal.getName(), uploadId, repository);
+    }
+
+    @DeleteMapping(path = "/{uploadId}")
+    @SecuredWriter
+    public void abortUpload(@PathVariable String uploadId, Principal principal) {
+        uploadSessions.abort(principal.getName(), uploadId);
+    }
+
+}
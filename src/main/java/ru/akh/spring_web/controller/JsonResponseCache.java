@@ -0,0 +1,224 @@
+package ru.akh.spring_web.controller;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Keeps books and lists of top books serialized to JSON up to the capacity in
+ * bytes, the least recently used ones are evicted first. A response is cached
+ * with the version it was read at and served only for that version, so a
+ * change made by any node makes it stale.
+ */
+@Component
+@ManagedResource(objectName = "ru.akh.spring_web:type=JsonResponseCache")
+public class JsonResponseCache {
+
+    private static class TopBooksKey {
+
+        private final Book.Field field;
+
+        private final int limit;
+
+        private final String after;
+
+        TopBooksKey(Book.Field field, int limit, String after) {
+            this.field = field;
+            this.limit = limit;
+            this.after = after;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TopBooksKey)) {
+                return false;
+            }
+
+            TopBooksKey other = (TopBooksKey) obj;
+            return (field == other.field) && (limit == other.limit) && Objects.equals(after, other.after);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * field.hashCode() + limit) + Objects.hashCode(after);
+        }
+
+    }
+
+    private static class Entry {
+
+        private final long version;
+
+        private final SerializedJson json;
+
+        Entry(long version, SerializedJson json) {
+            this.version = version;
+            this.json = json;
+        }
+
+    }
+
+    private final ObjectMapper objectMapper;
+
+    private final long capacity;
+
+    private final long maxEntrySize;
+
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    public JsonResponseCache(ObjectMapper objectMapper,
+            @Value("${books.json-cache.capacity:16MB}") DataSize capacity) {
+        this.objectMapper = objectMapper;
+        this.capacity = capacity.toBytes();
+        // a single large list must not evict everything else
+        this.maxEntrySize = this.capacity / 8;
+    }
+
+    /**
+     * Returns the book cached at the version or serializes the one read by the
+     * loader, which must not be older than the version.
+     */
+    public SerializedJson getBook(long id, long version, Supplier<Book> loader) {
+        return get(id, version, loader, book -> null);
+    }
+
+    /**
+     * Returns the page of the top books after the cursor cached at the catalog
+     * version or serializes the one read by the loader, which must not be
+     * older than the version. A full page has the cursor of the next one.
+     */
+    public SerializedJson getTopBooks(Book.Field field, int limit, String after, long catalogVersion,
+            Supplier<List<Book>> loader) {
+        return get(new TopBooksKey(field, limit, after), catalogVersion, loader,
+                books -> (books.size() < limit) ? null : TopBooksCursor.encode(field, books.get(books.size() - 1)));
+    }
+
+    /**
+     * Removes the book, which is stale once it has been put. The top books
+     * are cached with the catalog version, so they are never served after a
+     * put and are evicted in time.
+     */
+    public void invalidate(Long id) {
+        invalidate(Collections.singleton(id));
+    }
+
+    /**
+     * Removes the books at once, the ids may contain {@code null} for the new
+     * books.
+     */
+    public synchronized void invalidate(Collection<Long> ids) {
+        for (Long id : ids) {
+            if (id != null) {
+                removeSize(entries.remove(id));
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        size = 0;
+    }
+
+    private <T> SerializedJson get(Object key, long version, Supplier<T> loader,
+            Function<T, String> nextCursor) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if ((entry != null) && (entry.version == version)) {
+                hits++;
+                return entry.json;
+            }
+            misses++;
+        }
+
+        T value = loader.get();
+        SerializedJson json;
+        try {
+            json = new SerializedJson(objectMapper.writeValueAsBytes(value), nextCursor.apply(value));
+        } catch (JsonProcessingException e) {
+            throw new HttpMessageNotWritableException("Could not write JSON: " + e.getOriginalMessage(), e);
+        }
+
+        if (json.getBytes().length <= maxEntrySize) {
+            put(key, new Entry(version, json));
+        }
+        return json;
+    }
+
+    private synchronized void put(Object key, Entry entry) {
+        Entry oldEntry = entries.get(key);
+        if ((oldEntry != null) && (oldEntry.version > entry.version)) {
+            // a newer response has been cached meanwhile
+            return;
+        }
+
+        removeSize(entries.put(key, entry));
+        size += entry.json.getBytes().length;
+        for (Iterator<Entry> iterator = entries.values().iterator(); size > capacity;) {
+            size -= iterator.next().json.getBytes().length;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private void removeSize(Entry entry) {
+        if (entry != null) {
+            size -= entry.json.getBytes().length;
+        }
+    }
+
+    @ManagedAttribute
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @ManagedAttribute
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @ManagedAttribute
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @ManagedAttribute
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @ManagedAttribute
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @ManagedAttribute
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+}
@@ -0,0 +1,34 @@
+package ru.akh.spring_web.controller;
+
+/**
+ * JSON already serialized to UTF-8, written to the response as it is by
+ * {@link SerializedJsonHttpMessageConverter}.
+ */
+public class SerializedJson {
+
+    private final byte[] bytes;
+
+    private final String nextCursor;
+
+    public SerializedJson(byte[] bytes) {
+        this(bytes, null);
+    }
+
+    public SerializedJson(byte[] bytes, String nextCursor) {
+        this.bytes = bytes;
+        this.nextCursor = nextCursor;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the cursor of the next page of a list, or {@code null} if this
+     * is the last one.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+}
@@ -0,0 +1,48 @@
+package ru.akh.spring_web.controller;
+
+import java.io.IOException;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Writes {@link SerializedJson} without walking any object graph. Picked up
+ * by Spring Boot ahead of the Jackson converter, which could write it too.
+ */
+@Component
+public class SerializedJsonHttpMessageConverter extends AbstractHttpMessageConverter<SerializedJson> {
+
+    public SerializedJsonHttpMessageConverter() {
+        super(MediaType.APPLICATION_JSON);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return SerializedJson.class == clazz;
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected SerializedJson readInternal(Class<? extends SerializedJson> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Serialized JSON is not read", inputMessage);
+    }
+
+    @Override
+    protected Long getContentLength(SerializedJson json, MediaType contentType) {
+        return (long) json.getBytes().length;
+    }
+
+    @Override
+    protected void writeInternal(SerializedJson json, HttpOutputMessage outputMessage) throws IOException {
+        outputMessage.getBody().write(json.getBytes());
+    }
+
+}
@@ -0,0 +1,65 @@
+package ru.akh.spring_web.controller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import ru.akh.spring_web.dao.exception.BookException;
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Opaque position in the top books, the field, the id and the value of the
+ * last book of a page encoded as URL-safe Base64.
+ */
+final class TopBooksCursor {
+
+    private TopBooksCursor() {
+    }
+
+    static String encode(Book.Field field, Book book) {
+        String cursor = field + ":" + book.getId() + ":" + field.getValue(book);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the book with the id and the value of the field the books after
+     * it are read from.
+     */
+    static Book decode(Book.Field field, String cursor) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":", 3);
+        } catch (IllegalArgumentException e) {
+            throw new BookException("Invalid cursor: " + cursor);
+        }
+        if ((parts.length != 3) || !field.toString().equals(parts[0])) {
+            throw new BookException("Invalid cursor: " + cursor);
+        }
+
+        Book book = new Book();
+        try {
+            book.setId(Long.valueOf(parts[1]));
+            switch (field) {
+            case ID:
+                break;
+            case TITLE:
+                book.setTitle(parts[2]);
+                break;
+            case YEAR:
+                book.setYear(Integer.parseInt(parts[2]));
+                break;
+            case AUTHOR:
+                Author author = new Author();
+                author.setName(parts[2]);
+                book.setAuthor(author);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown field value: " + field);
+            }
+        } catch (NumberFormatException e) {
+            throw new BookException("Invalid cursor: " + cursor);
+        }
+        return book;
+    }
+
+}
@@ -0,0 +1,251 @@
+package ru.akh.spring_web.dao;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Keeps up to the maximum number of books for the time to live, the least
+ * recently used books are evicted first. The ids of the cached books are
+ * indexed by author, so the books of an author are removed without a scan.
+ * <p>
+ * The books are read without a lock, the lock is held by the changes only.
+ * A read queues the id of the book, the queue is replayed into the access
+ * order by the next put. The books are stored apart from the instances
+ * passed in and a new instance is returned for every read, so a caller that
+ * modifies its book does not modify the cached one.
+ */
+@ManagedResource(objectName = "ru.akh.spring_web:type=BookCache")
+public class BookCache {
+
+    private static class Entry {
+
+        private final long id;
+
+        private final String title;
+
+        private final int year;
+
+        private final long authorId;
+
+        private final String authorName;
+
+        private final long expirationTime;
+
+        Entry(long id, Book book, long expirationTime) {
+            Author author = book.getAuthor();
+            this.id = id;
+            this.title = book.getTitle();
+            this.year = book.getYear();
+            this.authorId = author.getId();
+            this.authorName = author.getName();
+            this.expirationTime = expirationTime;
+        }
+
+        Book toBook() {
+            Author author = new Author();
+            author.setId(authorId);
+            author.setName(authorName);
+
+            Book book = new Book();
+            book.setId(id);
+            book.setTitle(title);
+            book.setYear(year);
+            book.setAuthor(author);
+            return book;
+        }
+
+    }
+
+    private final int maxSize;
+
+    private final long timeToLive;
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    // the entries in access order, guarded by this
+    private final LinkedHashMap<Long, Entry> accessOrder = new LinkedHashMap<>(16, 0.75f, true);
+
+    // the ids read since the last put, up to the maximum size, the ones beyond it are not ordered
+    private final Queue<Long> readIds = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger readIdCount = new AtomicInteger();
+
+    // guarded by this
+    private final Map<Long, Set<Long>> authorBookIds = new HashMap<>();
+
+    // incremented by every invalidation, so a book read before it is not cached after it
+    private volatile long stamp;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public BookCache(int maxSize, long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+    }
+
+    long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Returns a copy of the book or {@code null} if it is not cached.
+     */
+    Book get(long id) {
+        Entry entry = entries.get(id);
+        if ((entry != null) && (entry.expirationTime - System.currentTimeMillis() <= 0)) {
+            removeExpired(entry);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        if (readIdCount.incrementAndGet() <= maxSize) {
+            readIds.add(id);
+        } else {
+            readIdCount.decrementAndGet();
+        }
+        return entry.toBook();
+    }
+
+    /**
+     * Caches a copy of the book, unless the cache has been invalidated since
+     * the stamp was taken.
+     */
+    synchronized void put(long id, long loadStamp, Book book) {
+        if (loadStamp != stamp) {
+            return;
+        }
+
+        // the books read before this one are ordered before it
+        for (Long readId; (readId = readIds.poll()) != null;) {
+            readIdCount.decrementAndGet();
+            accessOrder.get(readId);
+        }
+
+        Entry entry = new Entry(id, book, System.currentTimeMillis() + timeToLive);
+        Entry oldEntry = entries.put(id, entry);
+        if (oldEntry != null) {
+            accessOrder.remove(id);
+            removeAuthorBook(oldEntry);
+        }
+        accessOrder.put(id, entry);
+        authorBookIds.computeIfAbsent(entry.authorId, key -> new HashSet<>()).add(id);
+
+        for (Iterator<Entry> iterator = accessOrder.values().iterator(); entries.size() > maxSize;) {
+            Entry eldestEntry = iterator.next();
+            iterator.remove();
+            entries.remove(eldestEntry.id);
+            removeAuthorBook(eldestEntry);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Removes the book and the books of the author, whose embedded author may
+     * have been renamed.
+     */
+    public synchronized void invalidate(Long id, Long authorId) {
+        stamp++;
+        if (id != null) {
+            remove(id);
+        }
+
+        if (authorId != null) {
+            Set<Long> ids = authorBookIds.remove(authorId);
+            if (ids != null) {
+                entries.keySet().removeAll(ids);
+                accessOrder.keySet().removeAll(ids);
+            }
+        }
+    }
+
+    /**
+     * Removes all the books.
+     */
+    public synchronized void invalidateAll() {
+        stamp++;
+        entries.clear();
+        accessOrder.clear();
+        authorBookIds.clear();
+    }
+
+    private synchronized void removeExpired(Entry entry) {
+        // the entry may have been replaced or removed since it was read
+        if (entries.remove(entry.id, entry)) {
+            accessOrder.remove(entry.id);
+            removeAuthorBook(entry);
+            evictions.increment();
+        }
+    }
+
+    private void remove(long id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            accessOrder.remove(id);
+            removeAuthorBook(entry);
+        }
+    }
+
+    private void removeAuthorBook(Entry entry) {
+        Set<Long> ids = authorBookIds.get(entry.authorId);
+        if ((ids != null) && ids.remove(entry.id) && ids.isEmpty()) {
+            authorBookIds.remove(entry.authorId);
+        }
+    }
+
+    @ManagedAttribute
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @ManagedAttribute
+    public int getSize() {
+        return entries.size();
+    }
+
+    @ManagedAttribute
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @ManagedAttribute
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @ManagedAttribute
+    public double getHitRatio() {
+        long hits = getHits();
+        long requests = hits + getMisses();
+        return (requests == 0) ? 0 : (double) hits / requests;
+    }
+
+    @ManagedAttribute
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+}
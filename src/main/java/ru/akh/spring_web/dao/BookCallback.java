@@ -0,0 +1,16 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Callback for reading books one by one as they are fetched from a cursor.
+ * The book must not be kept, so the books read before it may be collected.
+ */
+@FunctionalInterface
+public interface BookCallback {
+
+    void doWithBook(Book book) throws IOException;
+
+}
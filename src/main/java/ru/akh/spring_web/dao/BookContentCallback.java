@@ -0,0 +1,18 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import ru.akh.spring_web.dto.BookContent;
+
+/**
+ * Callback for reading book content as a stream. The stream is valid only
+ * inside {@link #doWithContent(BookContent, InputStream)}, i.e. within the
+ * repository transaction, and is closed by the repository afterwards.
+ */
+@FunctionalInterface
+public interface BookContentCallback<T> {
+
+    T doWithContent(BookContent content, InputStream stream) throws IOException;
+
+}
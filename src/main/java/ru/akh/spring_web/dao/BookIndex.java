@@ -0,0 +1,292 @@
+package ru.akh.spring_web.dao;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Sorted set of book ids by an {@code int} key and then by id, kept in blocks
+ * of primitive arrays, so an entry takes twelve bytes and no objects. The keys
+ * are ordered by a {@link KeyOrder}, e.g. by the strings they refer to in a
+ * {@link StringPool}, and looked up by a {@link KeyProbe}, so a key is never
+ * compared with another one apart from the entries.
+ * <p>
+ * A block is never modified once it is published, a write replaces the block
+ * it changes. Reads are optimistic and do not block unless a write to the
+ * index is in progress, which holds the lock while it copies a single block.
+ */
+class BookIndex {
+
+    private static final int BLOCK_SIZE = 256;
+
+    @FunctionalInterface
+    interface KeyOrder {
+
+        int compare(int key1, int key2);
+
+    }
+
+    /**
+     * Compares the searched key with the key of an entry. Under an optimistic
+     * read the key may have been released, so the probe must not fail on it.
+     */
+    @FunctionalInterface
+    interface KeyProbe {
+
+        int compareTo(int key);
+
+    }
+
+    private static class Block {
+
+        private final int[] keys;
+
+        private final long[] ids;
+
+        Block(int[] keys, long[] ids) {
+            this.keys = keys;
+            this.ids = ids;
+        }
+
+        int size() {
+            return keys.length;
+        }
+
+        Block insert(int index, int key, long id) {
+            int[] newKeys = new int[keys.length + 1];
+            long[] newIds = new long[ids.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(ids, 0, newIds, 0, index);
+            newKeys[index] = key;
+            newIds[index] = id;
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(ids, index, newIds, index + 1, ids.length - index);
+            return new Block(newKeys, newIds);
+        }
+
+        Block delete(int index) {
+            int[] newKeys = new int[keys.length - 1];
+            long[] newIds = new long[ids.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(ids, 0, newIds, 0, index);
+            System.arraycopy(keys, index + 1, newKeys, index, newKeys.length - index);
+            System.arraycopy(ids, index + 1, newIds, index, newIds.length - index);
+            return new Block(newKeys, newIds);
+        }
+
+        Block slice(int from, int to) {
+            return new Block(Arrays.copyOfRange(keys, from, to), Arrays.copyOfRange(ids, from, to));
+        }
+
+    }
+
+    private final KeyOrder order;
+
+    private final StampedLock lock = new StampedLock();
+
+    // the blocks in order, each one sorted and not empty, a new array is published when a block is added or removed,
+    // a changed block replaces its slot, which a reader sees through the stamp of the write
+    private volatile Block[] blocks = new Block[0];
+
+    private volatile int size;
+
+    BookIndex(KeyOrder order) {
+        this.order = order;
+    }
+
+    void add(int key, long id) {
+        KeyProbe probe = entryKey -> order.compare(key, entryKey);
+        long stamp = lock.writeLock();
+        try {
+            Block[] currentBlocks = blocks;
+            if (currentBlocks.length == 0) {
+                blocks = new Block[] { new Block(new int[] { key }, new long[] { id }) };
+                size++;
+                return;
+            }
+
+            // past the last block the entry is appended to it
+            int block = Math.min(findBlock(currentBlocks, probe, id), currentBlocks.length - 1);
+            Block oldBlock = currentBlocks[block];
+            int index = findIndex(oldBlock, probe, id);
+            if ((index < oldBlock.size()) && (compare(probe, id, oldBlock, index) == 0)) {
+                return;
+            }
+
+            Block newBlock = oldBlock.insert(index, key, id);
+            if (newBlock.size() > BLOCK_SIZE) {
+                // the upper half is moved to a new block
+                int half = newBlock.size() / 2;
+                Block[] newBlocks = new Block[currentBlocks.length + 1];
+                System.arraycopy(currentBlocks, 0, newBlocks, 0, block);
+                newBlocks[block] = newBlock.slice(0, half);
+                newBlocks[block + 1] = newBlock.slice(half, newBlock.size());
+                System.arraycopy(currentBlocks, block + 1, newBlocks, block + 2, currentBlocks.length - block - 1);
+                blocks = newBlocks;
+            } else {
+                currentBlocks[block] = newBlock;
+            }
+            size++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the entry and returns its key, so a reference it holds may be
+     * released.
+     *
+     * @throws IllegalStateException if there is no such entry
+     */
+    int remove(KeyProbe probe, long id) {
+        long stamp = lock.writeLock();
+        try {
+            Block[] currentBlocks = blocks;
+            int block = findBlock(currentBlocks, probe, id);
+            int index = (block < currentBlocks.length) ? findIndex(currentBlocks[block], probe, id) : 0;
+            if ((block == currentBlocks.length) || (index == currentBlocks[block].size())
+                    || (compare(probe, id, currentBlocks[block], index) != 0)) {
+                throw new IllegalStateException("Book[id=" + id + "] is not indexed");
+            }
+
+            Block oldBlock = currentBlocks[block];
+            if (oldBlock.size() == 1) {
+                Block[] newBlocks = new Block[currentBlocks.length - 1];
+                System.arraycopy(currentBlocks, 0, newBlocks, 0, block);
+                System.arraycopy(currentBlocks, block + 1, newBlocks, block, newBlocks.length - block);
+                blocks = newBlocks;
+            } else {
+                currentBlocks[block] = oldBlock.delete(index);
+            }
+            size--;
+            return oldBlock.keys[index];
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the ids of the first entries up to the limit.
+     */
+    long[] getFirst(int limit) {
+        long stamp = lock.tryOptimisticRead();
+        long[] result = collect(blocks, 0, 0, limit, null);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = collect(blocks, 0, 0, limit, null);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ids of the entries that follow the key and the id, up to the
+     * limit.
+     */
+    long[] getAfter(KeyProbe probe, long id, int limit) {
+        long stamp = lock.tryOptimisticRead();
+        long[] result = collectAfter(blocks, probe, id, limit);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = collectAfter(blocks, probe, id, limit);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ids of the entries with the key.
+     */
+    long[] getEqual(KeyProbe probe) {
+        long stamp = lock.tryOptimisticRead();
+        long[] result = collectEqual(blocks, probe);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = collectEqual(blocks, probe);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private long[] collectAfter(Block[] currentBlocks, KeyProbe probe, long id, int limit) {
+        // ids are compared as well, so the entries not less than the next id follow the id
+        int block = findBlock(currentBlocks, probe, id + 1);
+        int index = (block < currentBlocks.length) ? findIndex(currentBlocks[block], probe, id + 1) : 0;
+        return collect(currentBlocks, block, index, limit, null);
+    }
+
+    private long[] collectEqual(Block[] currentBlocks, KeyProbe probe) {
+        int block = findBlock(currentBlocks, probe, Long.MIN_VALUE);
+        int index = (block < currentBlocks.length) ? findIndex(currentBlocks[block], probe, Long.MIN_VALUE) : 0;
+        return collect(currentBlocks, block, index, Integer.MAX_VALUE, probe);
+    }
+
+    // the ids from the position on, while the keys are equal to the probe if there is one
+    private long[] collect(Block[] currentBlocks, int block, int index, int limit, KeyProbe equalProbe) {
+        // the size may be read apart from the blocks under an optimistic read, so it only sizes the result
+        long[] result = new long[Math.max(Math.min(Math.min(limit, size), BLOCK_SIZE), 1)];
+        int count = 0;
+        for (; (block < currentBlocks.length) && (count < limit); block++, index = 0) {
+            Block currentBlock = currentBlocks[block];
+            for (; (index < currentBlock.size()) && (count < limit); index++) {
+                if ((equalProbe != null) && (equalProbe.compareTo(currentBlock.keys[index]) != 0)) {
+                    return Arrays.copyOf(result, count);
+                }
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, (int) Math.min((long) count * 2, limit));
+                }
+                result[count++] = currentBlock.ids[index];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // the first block whose last entry is not less than the key and the id, or the block count
+    private static int findBlock(Block[] currentBlocks, KeyProbe probe, long id) {
+        int low = 0;
+        int high = currentBlocks.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Block block = currentBlocks[middle];
+            if (compare(probe, id, block, block.size() - 1) > 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // the first entry of the block not less than the key and the id, or the block size
+    private static int findIndex(Block block, KeyProbe probe, long id) {
+        int low = 0;
+        int high = block.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(probe, id, block, middle) > 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(KeyProbe probe, long id, Block block, int index) {
+        int result = probe.compareTo(block.keys[index]);
+        return (result != 0) ? result : Long.compare(id, block.ids[index]);
+    }
+
+}
@@ -0,0 +1,534 @@
+package ru.akh.spring_web.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import ru.akh.spring_web.dto.BookContent;
+
+/**
+ * Makes the state of {@link InMemoryBookRepository} durable with an append-only
+ * log of memory-mapped segments and periodic snapshots. An append reserves
+ * the space of its record in the mapped segment under a lock and copies the
+ * record outside of it, so appends of different books copy in parallel. The
+ * segment is forced to disk by {@link #flush()} for all the records appended
+ * since the last flush at once, so a process crash loses nothing, a system
+ * crash loses at most one flush interval. A snapshot is a compacted log written in the background, after it
+ * is written the segments it covers are deleted, so recovery reads at most a
+ * snapshot and the segments appended since.
+ */
+public class BookJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BookJournal.class);
+
+    private static final String SEGMENT_PREFIX = "log-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final byte AUTHOR_RECORD = 1;
+    private static final byte BOOK_RECORD = 2;
+    private static final byte CONTENT_RECORD = 3;
+
+    // length and checksum of the payload
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * The journaled state. Records are replayed in the order they were
+     * appended, each of them replaces the previous state of its author, book or
+     * content.
+     */
+    public interface State {
+
+        void restoreAuthor(long authorId, String name, long version);
+
+        void restoreBook(long id, String title, int year, long authorId, long version);
+
+        /**
+         * Restores the content with its encoded bytes, which the records of the
+         * same hash share.
+         */
+        void restoreContent(BookContent content);
+
+        /**
+         * Writes the current state, it may be modified concurrently, since the
+         * records appended meanwhile are replayed after the snapshot.
+         */
+        void writeSnapshot(SnapshotWriter writer) throws IOException;
+
+    }
+
+    public static class SnapshotWriter {
+
+        private final DataOutputStream output;
+
+        SnapshotWriter(DataOutputStream output) {
+            this.output = output;
+        }
+
+        public void writeAuthor(long authorId, String name, long version) throws IOException {
+            writeRecord(output, encodeAuthor(authorId, name, version), null);
+        }
+
+        public void writeBook(long id, String title, int year, long authorId, long version) throws IOException {
+            writeRecord(output, encodeBook(id, title, year, authorId, version), null);
+        }
+
+        /**
+         * Writes the content, its bytes only if {@code withContent} is set.
+         */
+        public void writeContent(BookContent content, boolean withContent) throws IOException {
+            writeRecord(output, encodeContent(content, withContent), withContent ? content.getContent() : null);
+        }
+
+    }
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private State state;
+
+    private long segmentNumber;
+
+    private MappedByteBuffer segment;
+
+    private boolean dirty;
+
+    // full segments with records appended since the last flush
+    private List<MappedByteBuffer> retiredSegments = new ArrayList<>();
+
+    // the first segment not covered by the latest snapshot
+    private long snapshotSegmentNumber;
+
+    // the hashes whose bytes have been appended since the latest snapshot, the other records of them have none
+    private Set<String> appendedHashes = new HashSet<>();
+
+    private final Object snapshotLock = new Object();
+
+    // shared by the copies of the records, so a flush waits for the ones in progress
+    private final ReadWriteLock copyLock = new ReentrantReadWriteLock();
+
+    public BookJournal(Path directory, int segmentSize) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Replays the latest snapshot and the log appended since into the state,
+     * then starts a new segment for the appends.
+     */
+    public synchronized void recover(State state) throws IOException {
+        for (Path path : listFiles("*" + TEMP_SUFFIX)) {
+            // an interrupted snapshot
+            Files.delete(path);
+        }
+
+        // the bytes of every hash replayed, a record without them may follow a change that released them
+        Map<String, byte[]> contents = new HashMap<>();
+        List<Path> snapshots = listFiles(SNAPSHOT_PREFIX + "*");
+        if (!snapshots.isEmpty()) {
+            Path snapshot = snapshots.get(snapshots.size() - 1);
+            snapshotSegmentNumber = getNumber(snapshot, SNAPSHOT_PREFIX);
+            logger.info("Replaying snapshot {}", snapshot);
+            replay(snapshot, state, contents);
+        }
+
+        long lastSegmentNumber = snapshotSegmentNumber;
+        for (Path path : listFiles(SEGMENT_PREFIX + "*")) {
+            long number = getNumber(path, SEGMENT_PREFIX);
+            if (number >= snapshotSegmentNumber) {
+                logger.info("Replaying log segment {}", path);
+                replay(path, state, contents);
+            }
+            lastSegmentNumber = Math.max(lastSegmentNumber, number);
+        }
+
+        this.state = state;
+        // the tail of the last segment may be torn, so it is never appended to
+        openSegment(lastSegmentNumber + 1, segmentSize);
+    }
+
+    public void appendAuthor(long authorId, String name, long version) {
+        append(encodeAuthor(authorId, name, version), null);
+    }
+
+    public void appendBook(long id, String title, int year, long authorId, long version) {
+        append(encodeBook(id, title, year, authorId, version), null);
+    }
+
+    /**
+     * Appends the content, with its encoded bytes only if they have not been
+     * appended since the latest snapshot.
+     */
+    public void appendContent(BookContent content) {
+        copyLock.readLock().lock();
+        try {
+            byte[] payload;
+            byte[] data;
+            ByteBuffer record;
+            synchronized (this) {
+                // decided along with the space, so the record with the bytes is replayed first
+                boolean withContent = appendedHashes.add(content.getHash());
+                payload = encodeContent(content, withContent);
+                data = withContent ? content.getContent() : null;
+                record = reserve(payload, data);
+            }
+            copy(record, payload, data);
+        } finally {
+            copyLock.readLock().unlock();
+        }
+    }
+
+    private void append(byte[] payload, byte[] data) {
+        copyLock.readLock().lock();
+        try {
+            ByteBuffer record;
+            synchronized (this) {
+                record = reserve(payload, data);
+            }
+            copy(record, payload, data);
+        } finally {
+            copyLock.readLock().unlock();
+        }
+    }
+
+    // returns the space of the checksum and the payload, the length is written first,
+    // so a record left half copied by a crash is skipped on replay
+    private ByteBuffer reserve(byte[] payload, byte[] data) {
+        int length = payload.length + ((data != null) ? data.length : 0);
+        try {
+            // the end of a segment is marked by a zero length
+            if (segment.remaining() < RECORD_HEADER_SIZE + length + 4) {
+                openSegment(segmentNumber + 1, Math.max(segmentSize, RECORD_HEADER_SIZE + length + 4));
+            }
+        } catch (IOException e) {
+            throw new DataAccessResourceFailureException("Could not open a new log segment", e);
+        }
+
+        segment.putInt(length);
+        ByteBuffer record = segment.slice();
+        record.limit(4 + length);
+        segment.position(segment.position() + record.limit());
+        dirty = true;
+        return record;
+    }
+
+    // outside the lock, so appends of different books copy in parallel
+    private static void copy(ByteBuffer record, byte[] payload, byte[] data) {
+        record.putInt(checksum(payload, data));
+        record.put(payload);
+        if (data != null) {
+            record.put(data);
+        }
+    }
+
+    /**
+     * Forces the records appended since the last flush to disk.
+     */
+    @Scheduled(fixedDelayString = "${books.in-memory.journal.flush-interval:10}")
+    public void flush() {
+        List<MappedByteBuffer> segments;
+        // no record is forced half copied
+        copyLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (dirty) {
+                    retiredSegments.add(segment);
+                    dirty = false;
+                }
+                segments = retiredSegments;
+                retiredSegments = new ArrayList<>();
+            }
+        } finally {
+            copyLock.writeLock().unlock();
+        }
+        // appends go on meanwhile
+        for (MappedByteBuffer dirtySegment : segments) {
+            dirtySegment.force();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the state and deletes the segments and the
+     * snapshot it replaces. Nothing is written if nothing was appended since
+     * the latest snapshot.
+     */
+    @Scheduled(fixedDelayString = "${books.in-memory.journal.snapshot-interval:PT10M}",
+            initialDelayString = "${books.in-memory.journal.snapshot-interval:PT10M}")
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long number;
+            synchronized (this) {
+                if ((state == null) || ((segmentNumber == snapshotSegmentNumber) && (segment.position() == 0))) {
+                    return;
+                }
+
+                // the records appended from now on are replayed after the snapshot
+                openSegment(segmentNumber + 1, segmentSize);
+                number = segmentNumber;
+                appendedHashes = new HashSet<>();
+            }
+
+            Path path = directory.resolve(getFileName(SNAPSHOT_PREFIX, number));
+            Path tempPath = directory.resolve(path.getFileName() + TEMP_SUFFIX);
+            try (FileOutputStream fileStream = new FileOutputStream(tempPath.toFile());
+                    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileStream))) {
+                state.writeSnapshot(new SnapshotWriter(output));
+                output.flush();
+                fileStream.getFD().sync();
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(tempPath);
+                throw e;
+            }
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+            snapshotSegmentNumber = number;
+            logger.info("Written snapshot {}", path);
+
+            for (Path oldPath : listFiles(SNAPSHOT_PREFIX + "*")) {
+                if (getNumber(oldPath, SNAPSHOT_PREFIX) < number) {
+                    Files.delete(oldPath);
+                }
+            }
+            for (Path oldPath : listFiles(SEGMENT_PREFIX + "*")) {
+                if (getNumber(oldPath, SEGMENT_PREFIX) < number) {
+                    Files.delete(oldPath);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    // the previous segment is unmapped once it is garbage collected
+    private void openSegment(long number, int size) throws IOException {
+        if (dirty) {
+            retiredSegments.add(segment);
+            dirty = false;
+        }
+
+        Path path = directory.resolve(getFileName(SEGMENT_PREFIX, number));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        segmentNumber = number;
+    }
+
+    private static void replay(Path path, State state, Map<String, byte[]> contents) throws IOException {
+        long size = Files.size(path);
+        try (InputStream stream = Files.newInputStream(path);
+                DataInputStream input = new DataInputStream(new BufferedInputStream(stream))) {
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length == 0) {
+                    return;
+                }
+                if ((length < 0) || (length > size)) {
+                    logger.warn("Log {} ends with a torn record", path);
+                    return;
+                }
+
+                int checksum = input.readInt();
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                if (checksum(payload, null) != checksum) {
+                    // its append was interrupted, the ones that reserved their space later may have completed
+                    logger.warn("Log {} has a torn record, skipping it", path);
+                    continue;
+                }
+                replayRecord(new DataInputStream(new ByteArrayInputStream(payload)), state, contents);
+            }
+        } catch (EOFException e) {
+            logger.warn("Log {} ends with a torn record", path);
+        }
+    }
+
+    private static void replayRecord(DataInputStream input, State state, Map<String, byte[]> contents)
+            throws IOException {
+        byte type = input.readByte();
+        switch (type) {
+        case AUTHOR_RECORD:
+            state.restoreAuthor(input.readLong(), readString(input), input.readLong());
+            break;
+        case BOOK_RECORD:
+            state.restoreBook(input.readLong(), readString(input), input.readInt(), input.readLong(),
+                    input.readLong());
+            break;
+        case CONTENT_RECORD:
+            BookContent content = new BookContent();
+            content.setId(input.readLong());
+            content.setFileName(readString(input));
+            content.setMimeType(readString(input));
+            content.setSize(input.readLong());
+            content.setHash(readString(input));
+            content.setEncoding(readString(input));
+            if (input.readBoolean()) {
+                content.setContent(input.readAllBytes());
+                contents.put(content.getHash(), content.getContent());
+            } else {
+                content.setContent(contents.get(content.getHash()));
+                if (content.getContent() == null) {
+                    // the record with the bytes was torn
+                    logger.warn("The bytes of Book[id={}]'s content are missing, skipping it", content.getId());
+                    break;
+                }
+            }
+            state.restoreContent(content);
+            break;
+        default:
+            throw new IOException("Unknown record type: " + type);
+        }
+    }
+
+    private static byte[] encodeAuthor(long authorId, String name, long version) {
+        return encode(output -> {
+            output.writeByte(AUTHOR_RECORD);
+            output.writeLong(authorId);
+            writeString(output, name);
+            output.writeLong(version);
+        });
+    }
+
+    private static byte[] encodeBook(long id, String title, int year, long authorId, long version) {
+        return encode(output -> {
+            output.writeByte(BOOK_RECORD);
+            output.writeLong(id);
+            writeString(output, title);
+            output.writeInt(year);
+            output.writeLong(authorId);
+            output.writeLong(version);
+        });
+    }
+
+    // the content bytes follow the encoded record, so that they are not copied
+    private static byte[] encodeContent(BookContent content, boolean withContent) {
+        return encode(output -> {
+            output.writeByte(CONTENT_RECORD);
+            output.writeLong(content.getId());
+            writeString(output, content.getFileName());
+            writeString(output, content.getMimeType());
+            output.writeLong(content.getSize());
+            writeString(output, content.getHash());
+            writeString(output, content.getEncoding());
+            output.writeBoolean(withContent);
+        });
+    }
+
+    private interface Encoder {
+
+        void encode(DataOutputStream output) throws IOException;
+
+    }
+
+    private static byte[] encode(Encoder encoder) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            encoder.encode(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(DataOutputStream output, byte[] payload, byte[] data) throws IOException {
+        output.writeInt(payload.length + ((data != null) ? data.length : 0));
+        output.writeInt(checksum(payload, data));
+        output.write(payload);
+        if (data != null) {
+            output.write(data);
+        }
+    }
+
+    private static int checksum(byte[] payload, byte[] data) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(payload);
+        if (data != null) {
+            checksum.update(data);
+        }
+        return (int) checksum.getValue();
+    }
+
+    // strings may be longer than writeUTF() allows, null is written as -1
+    private static void writeString(DataOutputStream output, String string) throws IOException {
+        if (string == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private List<Path> listFiles(String glob) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        // numbers are zero-padded, so the names sort in order
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private static String getFileName(String prefix, long number) {
+        return String.format("%s%019d", prefix, number);
+    }
+
+    private static long getNumber(Path path, String prefix) {
+        return Long.parseLong(path.getFileName().toString().substring(prefix.length()));
+    }
+
+}
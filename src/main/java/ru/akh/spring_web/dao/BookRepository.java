@@ -1,10 +1,14 @@
 package ru.akh.spring_web.dao;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
 
 import javax.validation.Valid;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import javax.validation.groups.ConvertGroup;
 
 import org.springframework.validation.annotation.Validated;
 
@@ -17,15 +21,77 @@ public interface BookRepository {
     @NotNull
     Book get(long id);
 
+    /**
+     * Returns the stored books of the ids in the order of the ids, each once.
+     * The books that are not found are skipped, so they are told by the ids
+     * missing in the result.
+     */
+    List<Book> getAll(@NotNull Collection<Long> ids);
+
+    /**
+     * Returns the version of the book, which grows whenever the book or its
+     * author is changed, so it may be compared instead of the book itself.
+     */
+    long getVersion(long id);
+
+    /**
+     * Returns the version of the catalog, which grows whenever a book or an
+     * author is changed, so it may be compared instead of the lists of books.
+     */
+    long getCatalogVersion();
+
     long put(@NotNull @Valid Book book);
 
+    /**
+     * Puts the books in a single transaction and returns their ids in the same
+     * order. The new authors of the same name are stored once, so the books of
+     * a new author do not have to be put one by one to share it.
+     */
+    List<Long> putAll(@NotNull @Valid List<Book> books);
+
     List<Book> getTopBooks(@NotNull Book.Field field, @Min(1) int limit);
 
+    /**
+     * Returns the books following the given one in the order of the field,
+     * ties are broken by the id, so pages of any depth are read at the same
+     * cost. Only the id and the field of the given book are used, it does not
+     * have to be stored anymore.
+     */
+    List<Book> getTopBooks(@NotNull Book.Field field, @Min(1) int limit, @NotNull Book after);
+
     List<Book> getBooksByAuthor(@NotNull String author);
 
+    /**
+     * Passes every book to the callback in the order of the id, the books are
+     * read through a cursor and are never all held in memory.
+     */
+    void exportBooks(@NotNull BookCallback callback) throws IOException;
+
     @NotNull
     BookContent getContent(long id);
 
+    /**
+     * Returns the content metadata with the stored encoding, the content itself
+     * is not read.
+     */
+    @NotNull
+    BookContent getContentInfo(long id);
+
+    <T> T getContent(long id, @NotNull BookContentCallback<T> callback) throws IOException;
+
+    <T> T getContent(long id, @Min(0) long position, @Min(1) long length,
+            @NotNull BookContentCallback<T> callback) throws IOException;
+
+    /**
+     * Passes the content as it is stored, the callback decodes it according to
+     * {@link BookContent#getEncoding()}. The other methods decode the content
+     * themselves.
+     */
+    <T> T getEncodedContent(long id, @NotNull BookContentCallback<T> callback) throws IOException;
+
     void putContent(@NotNull @Valid BookContent content);
 
+    void putContent(@NotNull @Valid @ConvertGroup(to = BookContent.Metadata.class) BookContent content,
+            @NotNull InputStream stream) throws IOException;
+
 }
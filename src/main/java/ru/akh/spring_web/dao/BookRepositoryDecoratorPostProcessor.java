@@ -0,0 +1,69 @@
+package ru.akh.spring_web.dao;
+
+import java.util.function.Function;
+
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.support.MergedBeanDefinitionPostProcessor;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.core.Ordered;
+import org.springframework.validation.beanvalidation.MethodValidationInterceptor;
+
+/**
+ * Wraps the {@code bookRepository} bean into a decorator. The decorators are
+ * applied in their order, the lowest first, so it ends up innermost.
+ * <p>
+ * Being a {@code MergedBeanDefinitionPostProcessor}, it is registered with
+ * the internal post processors after all the others, so it runs after the
+ * transaction, validation and exception translation proxies are created,
+ * and the decorator calls the repository through them. The decorator itself
+ * gets its own validation proxy.
+ */
+public class BookRepositoryDecoratorPostProcessor implements MergedBeanDefinitionPostProcessor, Ordered {
+
+    /**
+     * Keeps the content in files, under the caches, which hold the content
+     * instead of the file pointers.
+     */
+    public static final int FILE_SYSTEM_ORDER = 100;
+
+    public static final int CONTENT_CACHE_ORDER = 200;
+
+    public static final int BOOK_CACHE_ORDER = 300;
+
+    /**
+     * Indexes the titles outermost, once the puts have passed all the other
+     * decorators.
+     */
+    public static final int TITLE_INDEX_ORDER = 400;
+
+    private final int order;
+
+    private final Function<BookRepository, BookRepository> decorator;
+
+    public BookRepositoryDecoratorPostProcessor(int order, Function<BookRepository, BookRepository> decorator) {
+        this.order = order;
+        this.decorator = decorator;
+    }
+
+    @Override
+    public int getOrder() {
+        return order;
+    }
+
+    @Override
+    public void postProcessMergedBeanDefinition(RootBeanDefinition beanDefinition, Class<?> beanType,
+            String beanName) {
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!"bookRepository".equals(beanName) || !(bean instanceof BookRepository)) {
+            return bean;
+        }
+
+        ProxyFactory proxyFactory = new ProxyFactory(decorator.apply((BookRepository) bean));
+        proxyFactory.addAdvice(new MethodValidationInterceptor());
+        return proxyFactory.getProxy();
+    }
+
+}
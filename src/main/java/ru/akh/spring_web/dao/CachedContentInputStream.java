@@ -0,0 +1,90 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads content kept in direct buffers of {@link OffHeapContentCache}.
+ */
+public class CachedContentInputStream extends InputStream {
+
+    private final ByteBuffer[] buffers;
+
+    private int index;
+
+    CachedContentInputStream(ByteBuffer[] buffers) {
+        this.buffers = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            // the buffers are shared by all readers of the entry
+            this.buffers[i] = buffers[i].asReadOnlyBuffer();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer buffer = nextBuffer();
+        return (buffer != null) ? (buffer.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        ByteBuffer buffer = nextBuffer();
+        if (buffer == null) {
+            return -1;
+        }
+
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        ByteBuffer buffer;
+        while ((skipped < n) && ((buffer = nextBuffer()) != null)) {
+            int count = (int) Math.min(n - skipped, buffer.remaining());
+            buffer.position(buffer.position() + count);
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        long available = 0;
+        for (int i = index; i < buffers.length; i++) {
+            available += buffers[i].remaining();
+        }
+        return (int) Math.min(available, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the rest of the content straight from the direct buffers.
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        long count = 0;
+        ByteBuffer buffer;
+        while ((buffer = nextBuffer()) != null) {
+            count += channel.write(buffer);
+        }
+        return count;
+    }
+
+    private ByteBuffer nextBuffer() {
+        while (index < buffers.length) {
+            if (buffers[index].hasRemaining()) {
+                return buffers[index];
+            }
+            index++;
+        }
+        return null;
+    }
+
+}
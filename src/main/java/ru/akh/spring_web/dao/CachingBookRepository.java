@@ -0,0 +1,145 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.util.StreamUtils;
+
+import ru.akh.spring_web.dto.BookContent;
+
+/**
+ * Serves book content from an {@link OffHeapContentCache}. Content is cached
+ * as it is stored, so encoded content is decoded on every read but sent as it
+ * is to clients accepting its encoding. Ranged reads use the cache but do not
+ * fill it.
+ */
+public class CachingBookRepository extends DelegatingBookRepository {
+
+    private final OffHeapContentCache cache;
+
+    public CachingBookRepository(BookRepository delegate, OffHeapContentCache cache) {
+        super(delegate);
+        this.cache = cache;
+    }
+
+    @Override
+    public BookContent getContent(long id) {
+        try {
+            return getContent(id, (content, stream) -> {
+                content.setContent(StreamUtils.copyToByteArray(stream));
+                return content;
+            });
+        } catch (IOException e) {
+            throw new DataRetrievalFailureException("Could not read Book[id=" + id + "]'s content", e);
+        }
+    }
+
+    @Override
+    public BookContent getContentInfo(long id) {
+        OffHeapContentCache.Entry entry = cache.acquire(id);
+        if (entry == null) {
+            return delegate.getContentInfo(id);
+        }
+
+        try {
+            return entry.getContentInfo();
+        } finally {
+            cache.release(entry);
+        }
+    }
+
+    @Override
+    public <T> T getContent(long id, BookContentCallback<T> callback) throws IOException {
+        return getEncodedContent(id, (content, stream) -> {
+            String encoding = content.getEncoding();
+            content.setEncoding(null);
+            content.setEncodedSize(0);
+            return callback.doWithContent(content, ContentEncodings.decode(stream, encoding));
+        });
+    }
+
+    @Override
+    public <T> T getContent(long id, long position, long length, BookContentCallback<T> callback)
+            throws IOException {
+        OffHeapContentCache.Entry entry = cache.acquire(id);
+        if (entry == null) {
+            return delegate.getContent(id, position, length, callback);
+        }
+
+        try {
+            BookContent content = entry.getContentInfo();
+            String encoding = content.getEncoding();
+            content.setEncoding(null);
+            content.setEncodedSize(0);
+            return callback.doWithContent(content,
+                    ContentEncodings.decode(entry.openStream(), encoding, position, length));
+        } finally {
+            cache.release(entry);
+        }
+    }
+
+    @Override
+    public <T> T getEncodedContent(long id, BookContentCallback<T> callback) throws IOException {
+        OffHeapContentCache.Entry entry = cache.acquire(id);
+        if (entry == null) {
+            long stamp = cache.getStamp();
+            return delegate.getEncodedContent(id, (content, stream) -> {
+                if ((stream instanceof FileContentInputStream) || (content.getSize() > cache.getMaxEntrySize())) {
+                    // files are sent with sendfile from the OS page cache
+                    return callback.doWithContent(copyInfo(content), stream);
+                }
+
+                OffHeapContentCache.Entry loadedEntry = cache.load(id, stamp, copyInfo(content), stream);
+                try {
+                    InputStream loadedStream = loadedEntry.openStream();
+                    if (!loadedEntry.isComplete()) {
+                        loadedStream = new SequenceInputStream(loadedStream, stream);
+                    }
+                    return callback.doWithContent(loadedEntry.getContentInfo(), loadedStream);
+                } finally {
+                    cache.release(loadedEntry);
+                }
+            });
+        }
+
+        try {
+            return callback.doWithContent(entry.getContentInfo(), entry.openStream());
+        } finally {
+            cache.release(entry);
+        }
+    }
+
+    @Override
+    public void putContent(BookContent content) {
+        try {
+            delegate.putContent(content);
+        } finally {
+            cache.invalidate(content.getId());
+        }
+    }
+
+    @Override
+    public void putContent(BookContent content, InputStream stream) throws IOException {
+        try {
+            delegate.putContent(content, stream);
+        } finally {
+            cache.invalidate(content.getId());
+        }
+    }
+
+    private static BookContent copyInfo(BookContent content) {
+        // the delegate's instance is not modified, it may be the stored one
+        BookContent contentInfo = new BookContent();
+        contentInfo.setId(content.getId());
+        contentInfo.setFileName(content.getFileName());
+        contentInfo.setMimeType(content.getMimeType());
+        contentInfo.setSize(content.getSize());
+        contentInfo.setHash(content.getHash());
+        contentInfo.setEncoding(content.getEncoding());
+        contentInfo.setEncodedSize(content.getEncodedSize());
+        return contentInfo;
+    }
+
+}
@@ -0,0 +1,314 @@
+package ru.akh.spring_web.dao;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Keeps books and authors in columns of primitive arrays indexed by a slot,
+ * titles and author names in a {@link StringPool}. Books refer to their author
+ * by id, so a rename is a single write. Every book and author keeps the version
+ * it was written with. {@link Book} and {@link Author} instances are
+ * created on every read and never stored. The books and the authors are
+ * striped by id, each stripe has its own columns and lock, so writes to
+ * different stripes do not contend. Reads are optimistic and do not block
+ * unless a write to the stripe is in progress.
+ */
+class CompactBookStore {
+
+    private static final int STRIPES = 64;
+
+    private static class BookStripe {
+
+        private final StampedLock lock = new StampedLock();
+
+        private final LongIntHashMap slots = new LongIntHashMap(64);
+
+        private int[] titles = new int[64];
+
+        private int[] years = new int[64];
+
+        private long[] authorIds = new long[64];
+
+        private long[] versions = new long[64];
+
+        private int size;
+
+    }
+
+    private static class AuthorStripe {
+
+        private final StampedLock lock = new StampedLock();
+
+        private final LongIntHashMap slots = new LongIntHashMap(8);
+
+        private int[] names = new int[8];
+
+        private long[] versions = new long[8];
+
+        private int size;
+
+    }
+
+    private final BookStripe[] bookStripes = new BookStripe[STRIPES];
+
+    private final AuthorStripe[] authorStripes = new AuthorStripe[STRIPES];
+
+    private final StringPool strings;
+
+    CompactBookStore() {
+        this(new StringPool());
+    }
+
+    /**
+     * Creates a store that shares the pool, e.g. with the indexes of the books.
+     */
+    CompactBookStore(StringPool strings) {
+        for (int i = 0; i < STRIPES; i++) {
+            bookStripes[i] = new BookStripe();
+            authorStripes[i] = new AuthorStripe();
+        }
+        this.strings = strings;
+    }
+
+    /**
+     * Returns a new instance of the book or {@code null} if it is absent.
+     */
+    Book get(long id) {
+        BookStripe stripe = getBookStripe(id);
+        long stamp = stripe.lock.tryOptimisticRead();
+        Book book = readBook(stripe, id);
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                book = readBook(stripe, id);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+
+        if (book != null) {
+            // the author is read apart, from its own stripe
+            book.getAuthor().setName(getAuthorName(book.getAuthor().getId()));
+        }
+        return book;
+    }
+
+    boolean contains(long id) {
+        BookStripe stripe = getBookStripe(id);
+        long stamp = stripe.lock.tryOptimisticRead();
+        boolean contains = stripe.slots.get(id) >= 0;
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                contains = stripe.slots.get(id) >= 0;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return contains;
+    }
+
+    /**
+     * Returns the greater of the versions of the book and its author or
+     * {@code -1} if the book is absent.
+     */
+    long getVersion(long id) {
+        BookStripe stripe = getBookStripe(id);
+        long stamp = stripe.lock.tryOptimisticRead();
+        long[] version = readVersion(stripe, id);
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                version = readVersion(stripe, id);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+
+        if (version == null) {
+            return -1;
+        }
+
+        long authorVersion = getAuthorVersion(version[1]);
+        return (authorVersion >= 0) ? Math.max(version[0], authorVersion) : -1;
+    }
+
+    /**
+     * Returns the version of the author or {@code -1} if the author is absent.
+     */
+    long getAuthorVersion(long authorId) {
+        AuthorStripe stripe = getAuthorStripe(authorId);
+        long stamp = stripe.lock.tryOptimisticRead();
+        long version = readAuthorVersion(stripe, authorId);
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                version = readAuthorVersion(stripe, authorId);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Returns the author's name or {@code null} if the author is absent.
+     */
+    String getAuthorName(long authorId) {
+        AuthorStripe stripe = getAuthorStripe(authorId);
+        long stamp = stripe.lock.tryOptimisticRead();
+        String name = readAuthorName(stripe, authorId);
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                name = readAuthorName(stripe, authorId);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Adds or renames the author.
+     */
+    void putAuthor(long authorId, String name, long version) {
+        int nameRef = strings.acquire(name);
+        int oldNameRef = -1;
+        AuthorStripe stripe = getAuthorStripe(authorId);
+        long stamp = stripe.lock.writeLock();
+        try {
+            int slot = stripe.slots.get(authorId);
+            if (slot < 0) {
+                slot = stripe.size++;
+                if (slot == stripe.names.length) {
+                    stripe.names = Arrays.copyOf(stripe.names, slot * 2);
+                    stripe.versions = Arrays.copyOf(stripe.versions, slot * 2);
+                }
+            } else {
+                oldNameRef = stripe.names[slot];
+            }
+
+            stripe.names[slot] = nameRef;
+            stripe.versions[slot] = version;
+            stripe.slots.put(authorId, slot);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+
+        // released once no reader may get it from the stripe, so it is never seen reused
+        if (oldNameRef >= 0) {
+            strings.release(oldNameRef);
+        }
+    }
+
+    /**
+     * Adds or replaces the book, the author must be present. Returns a new
+     * instance of the stored book.
+     */
+    Book put(long id, String title, int year, long authorId, long version) {
+        // acquired first, so an unchanged title is not released from the pool
+        int titleRef = strings.acquire(title);
+        int oldTitleRef = -1;
+        BookStripe stripe = getBookStripe(id);
+        long stamp = stripe.lock.writeLock();
+        try {
+            int slot = stripe.slots.get(id);
+            if (slot < 0) {
+                slot = stripe.size++;
+                if (slot == stripe.titles.length) {
+                    stripe.titles = Arrays.copyOf(stripe.titles, slot * 2);
+                    stripe.years = Arrays.copyOf(stripe.years, slot * 2);
+                    stripe.authorIds = Arrays.copyOf(stripe.authorIds, slot * 2);
+                    stripe.versions = Arrays.copyOf(stripe.versions, slot * 2);
+                }
+            } else {
+                oldTitleRef = stripe.titles[slot];
+            }
+
+            stripe.titles[slot] = titleRef;
+            stripe.years[slot] = year;
+            stripe.authorIds[slot] = authorId;
+            stripe.versions[slot] = version;
+            stripe.slots.put(id, slot);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+
+        if (oldTitleRef >= 0) {
+            strings.release(oldTitleRef);
+        }
+        return get(id);
+    }
+
+    int size() {
+        int size = 0;
+        for (BookStripe stripe : bookStripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                size += stripe.size;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    private BookStripe getBookStripe(long id) {
+        return bookStripes[Math.floorMod(id, STRIPES)];
+    }
+
+    private AuthorStripe getAuthorStripe(long authorId) {
+        return authorStripes[Math.floorMod(authorId, STRIPES)];
+    }
+
+    // may read an inconsistent state under an optimistic read, so every index is checked
+    private Book readBook(BookStripe stripe, long id) {
+        int slot = stripe.slots.get(id);
+        int[] currentTitles = stripe.titles;
+        int[] currentYears = stripe.years;
+        long[] currentAuthorIds = stripe.authorIds;
+        if ((slot < 0) || (slot >= currentTitles.length) || (slot >= currentYears.length)
+                || (slot >= currentAuthorIds.length)) {
+            return null;
+        }
+
+        Author author = new Author();
+        author.setId(currentAuthorIds[slot]);
+
+        Book book = new Book();
+        book.setId(id);
+        book.setTitle(strings.get(currentTitles[slot]));
+        book.setYear(currentYears[slot]);
+        book.setAuthor(author);
+        return book;
+    }
+
+    // the version of the book and the id of its author, or null if the book is absent
+    private static long[] readVersion(BookStripe stripe, long id) {
+        int slot = stripe.slots.get(id);
+        long[] currentAuthorIds = stripe.authorIds;
+        long[] currentVersions = stripe.versions;
+        if ((slot < 0) || (slot >= currentAuthorIds.length) || (slot >= currentVersions.length)) {
+            return null;
+        }
+
+        return new long[] { currentVersions[slot], currentAuthorIds[slot] };
+    }
+
+    private static long readAuthorVersion(AuthorStripe stripe, long authorId) {
+        int slot = stripe.slots.get(authorId);
+        long[] currentVersions = stripe.versions;
+        return ((slot >= 0) && (slot < currentVersions.length)) ? currentVersions[slot] : -1;
+    }
+
+    private String readAuthorName(AuthorStripe stripe, long authorId) {
+        int slot = stripe.slots.get(authorId);
+        int[] currentNames = stripe.names;
+        return ((slot >= 0) && (slot < currentNames.length)) ? strings.get(currentNames[slot]) : null;
+    }
+
+}
@@ -0,0 +1,194 @@
+package ru.akh.spring_web.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Codecs of stored book content. Content is stored either as it is (the
+ * encoding is {@code null}) or gzip compressed, the encoding names match the
+ * HTTP content codings.
+ */
+public final class ContentEncodings {
+
+    public static final String GZIP = "gzip";
+
+    // gzip adds 18 bytes of header and trailer, small content is not worth it
+    private static final long MIN_COMPRESSIBLE_SIZE = 1024;
+
+    private ContentEncodings() {
+    }
+
+    /**
+     * Returns the encoding to store content of the given type and size with.
+     */
+    public static String select(String mimeType, long size) {
+        if (size < MIN_COMPRESSIBLE_SIZE) {
+            return null;
+        }
+
+        MimeType type;
+        try {
+            type = MimeTypeUtils.parseMimeType(mimeType);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        String subtype = type.getSubtype();
+        boolean compressible = type.getType().equals("text") || subtype.equals("xml") || subtype.endsWith("+xml")
+                || subtype.equals("json") || subtype.endsWith("+json") || subtype.equals("javascript");
+        return compressible ? GZIP : null;
+    }
+
+    public static InputStream encode(InputStream stream, String encoding) {
+        return (encoding == null) ? stream : new GzipEncodingInputStream(stream);
+    }
+
+    public static byte[] encode(byte[] content, String encoding) {
+        if (encoding == null) {
+            return content;
+        }
+
+        try {
+            return StreamUtils.copyToByteArray(encode(new ByteArrayInputStream(content), encoding));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static InputStream decode(InputStream stream, String encoding) throws IOException {
+        return (encoding == null) ? stream : new GZIPInputStream(stream);
+    }
+
+    /**
+     * Decodes the stream and skips to the position, compressed content can not
+     * be read from the middle.
+     */
+    public static InputStream decode(InputStream stream, String encoding, long position, long length)
+            throws IOException {
+        InputStream decoded = decode(stream, encoding);
+        long skipped = 0;
+        while (skipped < position) {
+            long count = decoded.skip(position - skipped);
+            if (count <= 0) {
+                break;
+            }
+            skipped += count;
+        }
+
+        return new BoundedInputStream(decoded, length);
+    }
+
+    public static byte[] decode(byte[] content, String encoding) {
+        if (encoding == null) {
+            return content;
+        }
+
+        try {
+            return StreamUtils.copyToByteArray(decode(new ByteArrayInputStream(content), encoding));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Compresses the source while it is read, RFC 1952.
+     */
+    private static class GzipEncodingInputStream extends InputStream {
+
+        private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+        private final CRC32 crc = new CRC32();
+
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        private final InputStream deflated;
+
+        private InputStream current = new ByteArrayInputStream(HEADER);
+
+        private boolean trailerStarted;
+
+        GzipEncodingInputStream(InputStream source) {
+            deflated = new DeflaterInputStream(new InputStream() {
+
+                @Override
+                public int read() throws IOException {
+                    int b = source.read();
+                    if (b >= 0) {
+                        crc.update(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = source.read(b, off, len);
+                    if (count > 0) {
+                        crc.update(b, off, count);
+                    }
+                    return count;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    source.close();
+                }
+
+            }, deflater);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) > 0) ? (b[0] & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (current != null) {
+                int count = current.read(b, off, len);
+                if (count > 0) {
+                    return count;
+                }
+                nextPart();
+            }
+            return -1;
+        }
+
+        private void nextPart() {
+            if (current instanceof ByteArrayInputStream) {
+                current = trailerStarted ? null : deflated;
+                return;
+            }
+
+            long crcValue = crc.getValue();
+            long size = deflater.getBytesRead();
+            deflater.end();
+            trailerStarted = true;
+            current = new ByteArrayInputStream(new byte[] {
+                    (byte) crcValue, (byte) (crcValue >> 8), (byte) (crcValue >> 16), (byte) (crcValue >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24) });
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflated.close();
+            deflater.end();
+        }
+
+    }
+
+}
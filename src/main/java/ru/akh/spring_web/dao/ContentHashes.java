@@ -0,0 +1,81 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import ru.akh.spring_web.dao.exception.BookException;
+import ru.akh.spring_web.dto.BookContent;
+
+/**
+ * SHA-256 hashes identifying book content, as lowercase hex strings.
+ */
+public final class ContentHashes {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private ContentHashes() {
+    }
+
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported", e);
+        }
+    }
+
+    public static String hash(byte[] content) {
+        return toString(createDigest().digest(content));
+    }
+
+    /**
+     * Reads the stream to the end through a fixed-size buffer.
+     */
+    public static String hash(InputStream stream) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = stream.read(buffer)) >= 0) {
+            digest.update(buffer, 0, count);
+        }
+        return toString(digest.digest());
+    }
+
+    /**
+     * Returns the declared hash of the content passed as a stream, which is
+     * needed to find the content stored before reading the stream.
+     */
+    public static String requireHash(BookContent content) {
+        String hash = content.getHash();
+        if (hash == null) {
+            throw new BookException("Book[id=" + content.getId() + "]'s content hash is missing");
+        }
+        return hash;
+    }
+
+    /**
+     * Checks that the content read through the stream has the expected hash.
+     */
+    public static void verify(long id, String expectedHash, DigestInputStream stream) {
+        String hash = toString(stream.getMessageDigest().digest());
+        if (!hash.equals(expectedHash)) {
+            throw new BookException(
+                    "Book[id=" + id + "]'s content hash " + hash + " does not match the declared " + expectedHash);
+        }
+    }
+
+    private static String toString(byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX_DIGITS[digest[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+}
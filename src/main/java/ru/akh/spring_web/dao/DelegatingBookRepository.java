@@ -0,0 +1,134 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.aop.framework.Advised;
+
+import ru.akh.spring_web.dto.Book;
+import ru.akh.spring_web.dto.BookContent;
+
+/**
+ * Base class for decorators of {@link BookRepository}, forwards every call to
+ * the delegate.
+ */
+public abstract class DelegatingBookRepository implements BookRepository {
+
+    protected final BookRepository delegate;
+
+    protected DelegatingBookRepository(BookRepository delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Returns the repository under all the decorators of this one, behind
+     * its own transaction and validation proxies. Nothing read from it is
+     * served from a cache of this node.
+     */
+    public static BookRepository getUndecorated(BookRepository repository) {
+        while (true) {
+            Object target = repository;
+            if (repository instanceof Advised) {
+                try {
+                    target = ((Advised) repository).getTargetSource().getTarget();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Could not get the target of " + repository, e);
+                }
+            }
+
+            if (!(target instanceof DelegatingBookRepository)) {
+                return repository;
+            }
+            repository = ((DelegatingBookRepository) target).delegate;
+        }
+    }
+
+    @Override
+    public Book get(long id) {
+        return delegate.get(id);
+    }
+
+    @Override
+    public List<Book> getAll(Collection<Long> ids) {
+        return delegate.getAll(ids);
+    }
+
+    @Override
+    public long getVersion(long id) {
+        return delegate.getVersion(id);
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        return delegate.getCatalogVersion();
+    }
+
+    @Override
+    public long put(Book book) {
+        return delegate.put(book);
+    }
+
+    @Override
+    public List<Long> putAll(List<Book> books) {
+        return delegate.putAll(books);
+    }
+
+    @Override
+    public List<Book> getTopBooks(Book.Field field, int limit) {
+        return delegate.getTopBooks(field, limit);
+    }
+
+    @Override
+    public List<Book> getTopBooks(Book.Field field, int limit, Book after) {
+        return delegate.getTopBooks(field, limit, after);
+    }
+
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        return delegate.getBooksByAuthor(author);
+    }
+
+    @Override
+    public void exportBooks(BookCallback callback) throws IOException {
+        delegate.exportBooks(callback);
+    }
+
+    @Override
+    public BookContent getContent(long id) {
+        return delegate.getContent(id);
+    }
+
+    @Override
+    public BookContent getContentInfo(long id) {
+        return delegate.getContentInfo(id);
+    }
+
+    @Override
+    public <T> T getContent(long id, BookContentCallback<T> callback) throws IOException {
+        return delegate.getContent(id, callback);
+    }
+
+    @Override
+    public <T> T getContent(long id, long position, long length, BookContentCallback<T> callback)
+            throws IOException {
+        return delegate.getContent(id, position, length, callback);
+    }
+
+    @Override
+    public <T> T getEncodedContent(long id, BookContentCallback<T> callback) throws IOException {
+        return delegate.getEncodedContent(id, callback);
+    }
+
+    @Override
+    public void putContent(BookContent content) {
+        delegate.putContent(content);
+    }
+
+    @Override
+    public void putContent(BookContent content, InputStream stream) throws IOException {
+        delegate.putContent(content, stream);
+    }
+
+}
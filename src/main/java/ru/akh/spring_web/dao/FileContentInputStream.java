@@ -0,0 +1,96 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stream over a region of a file on local disk. Consumers which can hand the
+ * file to the kernel (sendfile, {@link FileChannel#transferTo}) may use
+ * {@link #getPath()}, {@link #getPosition()} and {@link #getLength()} instead of
+ * reading the stream.
+ */
+public class FileContentInputStream extends InputStream {
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final long fileSize;
+
+    private final long position;
+
+    private final long length;
+
+    private final InputStream in;
+
+    public FileContentInputStream(Path path, long position, long length) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.position = Math.min(position, fileSize);
+        this.length = Math.min(length, fileSize - this.position);
+        this.in = new BoundedInputStream(Channels.newInputStream(channel.position(this.position)), this.length);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Transfers the whole region to the target channel, bypassing the stream.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            long count = channel.transferTo(position + transferred, length - transferred, target);
+            if (count <= 0) {
+                break;
+            }
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
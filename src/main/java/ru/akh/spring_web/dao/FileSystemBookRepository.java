@@ -0,0 +1,177 @@
+package ru.akh.spring_web.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.util.StreamUtils;
+
+import ru.akh.spring_web.dao.exception.BookContentNotFoundException;
+import ru.akh.spring_web.dto.BookContent;
+
+/**
+ * Keeps book content in files on local disk, the delegate stores the metadata
+ * and a pointer to the file (its path relative to the content directory) as
+ * content. Files are spread over two levels of 256 directories.
+ */
+public class FileSystemBookRepository extends DelegatingBookRepository {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileSystemBookRepository.class);
+
+    private final Path directory;
+
+    public FileSystemBookRepository(BookRepository delegate, Path directory) {
+        super(delegate);
+        this.directory = directory.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public BookContent getContent(long id) {
+        try {
+            return getContent(id, (content, stream) -> {
+                content.setContent(StreamUtils.copyToByteArray(stream));
+                return content;
+            });
+        } catch (IOException e) {
+            throw new DataRetrievalFailureException("Could not read Book[id=" + id + "]'s content", e);
+        }
+    }
+
+    @Override
+    public BookContent getContentInfo(long id) {
+        try {
+            BookContent content = getPointer(id);
+            long size = Files.size(getPath(content));
+            content.setContent(null);
+            content.setSize(size);
+            return content;
+        } catch (IOException e) {
+            throw new DataRetrievalFailureException("Could not read Book[id=" + id + "]'s content", e);
+        }
+    }
+
+    @Override
+    public <T> T getContent(long id, BookContentCallback<T> callback) throws IOException {
+        return getContent(id, 0, Long.MAX_VALUE, callback);
+    }
+
+    @Override
+    public <T> T getContent(long id, long position, long length, BookContentCallback<T> callback)
+            throws IOException {
+        BookContent content = getPointer(id);
+        FileContentInputStream stream;
+        try {
+            stream = new FileContentInputStream(getPath(content), position, length);
+        } catch (NoSuchFileException e) {
+            // the file may have been replaced by a concurrent put
+            content = getPointer(id);
+            stream = new FileContentInputStream(getPath(content), position, length);
+        }
+
+        try {
+            content.setContent(null);
+            content.setSize(stream.getFileSize());
+            return callback.doWithContent(content, stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public <T> T getEncodedContent(long id, BookContentCallback<T> callback) throws IOException {
+        // files are stored as they are, so that they can be sent with sendfile
+        return getContent(id, callback);
+    }
+
+    @Override
+    public void putContent(BookContent content) {
+        byte[] bytes = content.getContent();
+        content.setSize(bytes.length);
+        try {
+            putContent(content, new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void putContent(BookContent content, InputStream stream) throws IOException {
+        long id = content.getId();
+        Path oldPath = null;
+        try {
+            oldPath = getPath(getPointer(id));
+        } catch (BookContentNotFoundException e) {
+            // the book has no content yet or does not exist, the latter is reported by the delegate
+        } catch (DataRetrievalFailureException e) {
+            // the content was stored before the file system tier was enabled
+        }
+
+        String uuid = UUID.randomUUID().toString().replace("-", "");
+        String pointer = uuid.substring(0, 2) + "/" + uuid.substring(2, 4) + "/" + uuid;
+        Path path = directory.resolve(pointer);
+        Files.createDirectories(path.getParent());
+        try {
+            Files.copy(stream, path);
+
+            BookContent pointerContent = new BookContent();
+            pointerContent.setId(id);
+            pointerContent.setFileName(content.getFileName());
+            pointerContent.setMimeType(content.getMimeType());
+            pointerContent.setContent(pointer.getBytes(StandardCharsets.UTF_8));
+            delegate.putContent(pointerContent);
+        } catch (IOException | RuntimeException e) {
+            deleteFile(path);
+            throw e;
+        }
+
+        if (oldPath != null) {
+            deleteFile(oldPath);
+        }
+    }
+
+    private BookContent getPointer(long id) throws IOException {
+        // the delegate's instance is not modified, it may be the stored one
+        return delegate.getContent(id, (content, stream) -> {
+            BookContent pointerContent = new BookContent();
+            pointerContent.setId(content.getId());
+            pointerContent.setFileName(content.getFileName());
+            pointerContent.setMimeType(content.getMimeType());
+            pointerContent.setContent(StreamUtils.copyToByteArray(stream));
+            return pointerContent;
+        });
+    }
+
+    private Path getPath(BookContent pointerContent) {
+        String pointer = new String(pointerContent.getContent(), StandardCharsets.UTF_8);
+        Path path;
+        try {
+            path = directory.resolve(pointer).normalize();
+        } catch (InvalidPathException e) {
+            path = directory;
+        }
+        if (!path.startsWith(directory) || path.equals(directory)) {
+            throw new DataRetrievalFailureException(
+                    "Book[id=" + pointerContent.getId() + "]'s content is not a file pointer");
+        }
+        return path;
+    }
+
+    private static void deleteFile(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Could not delete content file {}", path, e);
+        }
+    }
+
+}
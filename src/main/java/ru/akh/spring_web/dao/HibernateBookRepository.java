@@ -1,16 +1,42 @@
 package ru.akh.spring_web.dao;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.sql.Blob;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.hibernate.type.BlobType;
+import org.hibernate.type.StringType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import ru.akh.spring_web.dao.exception.AuthorNotFoundException;
 import ru.akh.spring_web.dao.exception.BookContentNotFoundException;
 import ru.akh.spring_web.dao.exception.BookNotFoundException;
+import ru.akh.spring_web.dto.Author;
 import ru.akh.spring_web.dto.Book;
 import ru.akh.spring_web.dto.BookContent;
 
@@ -19,6 +45,23 @@ import ru.akh.spring_web.dto.BookContent;
 @Transactional(readOnly = true)
 public class HibernateBookRepository implements BookRepository {
 
+    @FunctionalInterface
+    private static interface ContentOpener {
+
+        InputStream openContent(Blob blob, String encoding) throws SQLException, IOException;
+
+    }
+
+    // rows fetched from the cursor at a time
+    private static final int EXPORT_FETCH_SIZE = 500;
+
+    private static final String FIND_AUTHORS_QUERY = "from Author a where a.id in (:ids)";
+    // the authors are fetched along with the books instead of one by one
+    private static final String FIND_BOOKS_QUERY = "from Book b join fetch b.author where b.id in (:ids)";
+
+    // ids read by a single query, long lists are split so the statements stay small
+    private static final int FIND_ALL_CHUNK_SIZE = 500;
+
     @Autowired
     private SessionFactory sessionFactory;
 
@@ -38,9 +81,42 @@ public class HibernateBookRepository implements BookRepository {
         return book;
     }
 
+    @Override
+    public List<Book> getAll(Collection<Long> ids) {
+        Map<Long, Book> books = findAll(FIND_BOOKS_QUERY, Book.class, Book::getId, ids);
+        return ids.stream().distinct().map(books::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    @Override
+    public long getVersion(long id) {
+        List<?> rows = getCurrentSession().createNamedQuery("Book.getVersion").setParameter("id", id).getResultList();
+        if (rows.isEmpty()) {
+            throw new BookNotFoundException(id);
+        }
+
+        return (Long) rows.get(0);
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        return (Long) getCurrentSession().createNamedQuery("Catalog.getVersion").getSingleResult();
+    }
+
     @Override
     @Transactional
     public long put(Book book) {
+        Author author = book.getAuthor();
+        Long authorId = author.getId();
+        boolean authorChanged = true;
+        if (authorId != null) {
+            Author existingAuthor = getCurrentSession().get(Author.class, authorId);
+            if (existingAuthor == null) {
+                throw new AuthorNotFoundException(authorId);
+            }
+            authorChanged = !existingAuthor.getName().equals(author.getName());
+            getCurrentSession().detach(existingAuthor);
+        }
+
         Long id = book.getId();
         if (id == null) {
             id = (Long) getCurrentSession().save(book);
@@ -53,53 +129,309 @@ public class HibernateBookRepository implements BookRepository {
             getCurrentSession().update(book);
         }
 
+        // the versions are not mapped, the changes are flushed first, so the catalog stays locked only to stamp them
+        getCurrentSession().flush();
+        long version = nextVersion();
+        setVersion("Book.setVersion", id, version);
+        if (authorChanged) {
+            setVersion("Author.setVersion", author.getId(), version);
+        }
+
         getCurrentSession().detach(book);
 
         return id;
     }
 
+    // locks the catalog until the transaction ends, so the versions are given out in the order of the commits
+    private long nextVersion() {
+        getCurrentSession().createNamedQuery("Catalog.incrementVersion").executeUpdate();
+        return getCatalogVersion();
+    }
+
+    private void setVersion(String queryName, long id, long version) {
+        getCurrentSession().createNamedQuery(queryName).setParameter("version", version).setParameter("id", id)
+                .executeUpdate();
+    }
+
+    @Override
+    @Transactional
+    public List<Long> putAll(List<Book> books) {
+        // the stored authors and books are read with one query each instead of one per book
+        Map<Long, Author> existingAuthors = findAll(FIND_AUTHORS_QUERY, Author.class, Author::getId,
+                books.stream().map(book -> book.getAuthor().getId()).collect(Collectors.toList()));
+        Map<Long, Book> existingBooks = findAll(FIND_BOOKS_QUERY, Book.class, Book::getId,
+                books.stream().map(Book::getId).collect(Collectors.toList()));
+
+        Map<String, Author> newAuthors = new HashMap<>();
+        Set<Long> changedAuthorIds = new HashSet<>();
+        List<Long> ids = new ArrayList<>(books.size());
+        for (Book book : books) {
+            Author author = book.getAuthor();
+            Long authorId = author.getId();
+            if (authorId == null) {
+                // the new authors of the same name are inserted once
+                book.setAuthor(newAuthors.computeIfAbsent(author.getName(), name -> {
+                    getCurrentSession().persist(author);
+                    return author;
+                }));
+            } else {
+                Author existingAuthor = existingAuthors.get(authorId);
+                if (existingAuthor == null) {
+                    throw new AuthorNotFoundException(authorId);
+                }
+                if (!existingAuthor.getName().equals(author.getName())) {
+                    changedAuthorIds.add(authorId);
+                    existingAuthor.setName(author.getName());
+                }
+                // the stored author is referenced, so a new book may be persisted with it
+                book.setAuthor(existingAuthor);
+            }
+
+            Long id = book.getId();
+            if (id == null) {
+                getCurrentSession().persist(book);
+            } else if (!existingBooks.containsKey(id)) {
+                throw new BookNotFoundException(id);
+            } else {
+                getCurrentSession().merge(book);
+            }
+            ids.add(book.getId());
+        }
+
+        // the versions are not mapped, the changes are flushed first, so the catalog stays locked only to stamp them
+        getCurrentSession().flush();
+        long version = nextVersion();
+        setVersions("Book.setVersions", ids, version);
+        newAuthors.values().forEach(author -> changedAuthorIds.add(author.getId()));
+        setVersions("Author.setVersions", changedAuthorIds, version);
+
+        getCurrentSession().clear();
+
+        return ids;
+    }
+
+    private <T> Map<Long, T> findAll(String query, Class<T> resultClass, Function<T, Long> idGetter,
+            Collection<Long> ids) {
+        List<Long> uniqueIds = ids.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        Map<Long, T> entities = new HashMap<>();
+        for (int from = 0; from < uniqueIds.size(); from += FIND_ALL_CHUNK_SIZE) {
+            List<Long> chunk = uniqueIds.subList(from, Math.min(from + FIND_ALL_CHUNK_SIZE, uniqueIds.size()));
+            for (T entity : getCurrentSession().createQuery(query, resultClass).setParameter("ids", chunk)
+                    .getResultList()) {
+                entities.put(idGetter.apply(entity), entity);
+            }
+        }
+        return entities;
+    }
+
+    private void setVersions(String queryName, Collection<Long> ids, long version) {
+        if (!ids.isEmpty()) {
+            getCurrentSession().createNamedQuery(queryName).setParameter("version", version).setParameter("ids", ids)
+                    .executeUpdate();
+        }
+    }
+
     @Override
     public List<Book> getTopBooks(Book.Field field, int limit) {
-        String fieldName;
+        String fieldName = getSortProperty(field);
+        return getCurrentSession().createQuery("from Book b order by b." + fieldName + ", b.id", Book.class).setMaxResults(limit)
+                .setCacheable(true).getResultList();
+    }
+
+    @Override
+    public List<Book> getTopBooks(Book.Field field, int limit, Book after) {
+        String fieldName = getSortProperty(field);
+        // the comparison of the sort property alone may seek an index
+        return getCurrentSession().createQuery("from Book b where b." + fieldName + " >= :value and (b." + fieldName
+                + " > :value or b.id > :id) order by b." + fieldName + ", b.id", Book.class)
+                .setParameter("value", field.getValue(after)).setParameter("id", after.getId())
+                .setMaxResults(limit).setCacheable(true).getResultList();
+    }
+
+    private static String getSortProperty(Book.Field field) {
         switch (field) {
         case ID:
         case TITLE:
         case YEAR:
-            fieldName = field.toString().toLowerCase();
-            break;
+            return field.toString().toLowerCase();
         case AUTHOR:
-            fieldName = "author.name";
-            break;
+            return "author.name";
         default:
             throw new IllegalArgumentException("Unknown field value: " + field);
         }
-
-        return getCurrentSession().createQuery("from Book order by " + fieldName, Book.class).setMaxResults(limit)
-                .getResultList();
     }
 
     @Override
     public List<Book> getBooksByAuthor(String author) {
         return getCurrentSession().createQuery("from Book where author.name = ?1", Book.class).setParameter(1, author)
-                .getResultList();
+                .setCacheable(true).getResultList();
+    }
+
+    @Override
+    public void exportBooks(BookCallback callback) throws IOException {
+        Session session = getCurrentSession();
+        // the books are not put to the second-level cache, and the session is cleared as it is fetched
+        try (ScrollableResults books = session.createQuery("from Book b join fetch b.author order by b.id")
+                .setFetchSize(EXPORT_FETCH_SIZE).setReadOnly(true).setCacheMode(CacheMode.IGNORE)
+                .scroll(ScrollMode.FORWARD_ONLY)) {
+            int count = 0;
+            while (books.next()) {
+                callback.doWithBook((Book) books.get(0));
+                if (++count % EXPORT_FETCH_SIZE == 0) {
+                    session.clear();
+                }
+            }
+        }
     }
 
     @Override
     public BookContent getContent(long id) {
         BookContent content = getCurrentSession().get(BookContent.class, id);
-        if (content == null) {
+        if ((content == null) || (content.getHash() == null)) {
             throw new BookContentNotFoundException(id);
         }
 
         getCurrentSession().detach(content);
+        content.setContent(ContentEncodings.decode(content.getContent(), content.getEncoding()));
+        content.setEncoding(null);
+
+        return content;
+    }
+
+    @Override
+    public BookContent getContentInfo(long id) {
+        List<?> rows = getCurrentSession().createNamedQuery("BookContent.getContentInfo").setParameter("id", id).getResultList();
+        if (rows.isEmpty()) {
+            throw new BookContentNotFoundException(id);
+        }
 
+        Object[] row = (Object[]) rows.get(0);
+        BookContent content = mapContent(id, row);
+        content.setEncoding((String) row[3]);
         return content;
     }
 
+    @Override
+    public <T> T getContent(long id, BookContentCallback<T> callback) throws IOException {
+        return queryContent(id, (blob, encoding) -> ContentEncodings.decode(blob.getBinaryStream(), encoding),
+                false, callback);
+    }
+
+    @Override
+    public <T> T getContent(long id, long position, long length, BookContentCallback<T> callback)
+            throws IOException {
+        return queryContent(id, (blob, encoding) -> {
+            if (encoding == null) {
+                // only the requested slice is read from the LOB
+                return blob.getBinaryStream(position + 1, length);
+            }
+            return ContentEncodings.decode(blob.getBinaryStream(), encoding, position, length);
+        }, false, callback);
+    }
+
+    @Override
+    public <T> T getEncodedContent(long id, BookContentCallback<T> callback) throws IOException {
+        return queryContent(id, (blob, encoding) -> blob.getBinaryStream(), true, callback);
+    }
+
     @Override
     @Transactional
     public void putContent(BookContent content) {
-        getCurrentSession().update(content);
+        byte[] bytes = content.getContent();
+        String encoding = ContentEncodings.select(content.getMimeType(), bytes.length);
+        Blob blob = (encoding == null) ? BlobProxy.generateProxy(bytes)
+                : BlobProxy.generateProxy(ContentEncodings.encode(new ByteArrayInputStream(bytes), encoding), -1);
+        updateContent(content, ContentHashes.hash(bytes), hash -> insertContent(hash, encoding, bytes.length, blob));
+    }
+
+    @Override
+    @Transactional
+    public void putContent(BookContent content, InputStream stream) {
+        updateContent(content, ContentHashes.requireHash(content), hash -> {
+            long size = content.getSize();
+            String encoding = ContentEncodings.select(content.getMimeType(), size);
+            DigestInputStream digestStream = new DigestInputStream(stream, ContentHashes.createDigest());
+            // the length of compressed content is not known until it is written
+            insertContent(hash, encoding, size, BlobProxy.generateProxy(
+                    ContentEncodings.encode(digestStream, encoding), (encoding == null) ? size : -1));
+            ContentHashes.verify(content.getId(), hash, digestStream);
+        });
+    }
+
+    private void updateContent(BookContent content, String hash, Consumer<String> contentInserter) {
+        long id = content.getId();
+        // locks the book, so concurrent puts see each other's reference counts
+        List<?> rows = getCurrentSession().createNamedQuery("BookContent.getContentHash").setParameter("id", id)
+                .getResultList();
+        if (rows.isEmpty()) {
+            throw new BookNotFoundException(id);
+        }
+
+        String oldHash = (String) rows.get(0);
+        boolean changed = !hash.equals(oldHash);
+        if (changed && (getCurrentSession().createNamedQuery("BookContent.acquireContent").setParameter("hash", hash)
+                .executeUpdate() == 0)) {
+            // the content is not stored yet
+            contentInserter.accept(hash);
+        }
+
+        getCurrentSession().createNamedQuery("BookContent.putContent")
+                .setParameter("fileName", content.getFileName())
+                .setParameter("mimeType", content.getMimeType())
+                .setParameter("hash", hash)
+                .setParameter("id", id)
+                .executeUpdate();
+
+        if (changed && (oldHash != null)) {
+            Session session = getCurrentSession();
+            session.createNamedQuery("BookContent.releaseContent").setParameter("hash", oldHash).executeUpdate();
+            session.createNamedQuery("BookContent.deleteContent").setParameter("hash", oldHash).executeUpdate();
+        }
+    }
+
+    private void insertContent(String hash, String encoding, long size, Blob content) {
+        getCurrentSession().createNamedQuery("BookContent.insertContent")
+                .setParameter("hash", hash)
+                .setParameter("encoding", encoding, StringType.INSTANCE)
+                .setParameter("size", size)
+                .setParameter("content", content, BlobType.INSTANCE)
+                .executeUpdate();
+    }
+
+    private <T> T queryContent(long id, ContentOpener contentOpener, boolean encoded,
+            BookContentCallback<T> callback) throws IOException {
+        List<?> rows = getCurrentSession().createNamedQuery("BookContent.getContentStream").setParameter("id", id)
+                .getResultList();
+        if (rows.isEmpty()) {
+            throw new BookContentNotFoundException(id);
+        }
+
+        Object[] row = (Object[]) rows.get(0);
+        BookContent content = mapContent(id, row);
+        String encoding = (String) row[3];
+        if (encoded) {
+            content.setEncoding(encoding);
+        }
+
+        Blob blob = (Blob) row[5];
+        try (InputStream stream = contentOpener.openContent(blob, encoding)) {
+            if (encoded) {
+                content.setEncodedSize(blob.length());
+            }
+            return callback.doWithContent(content, stream);
+        } catch (SQLException e) {
+            throw new DataRetrievalFailureException("Could not read Book[id=" + id + "]'s content", e);
+        }
+    }
+
+    private static BookContent mapContent(long id, Object[] row) {
+        BookContent content = new BookContent();
+        content.setId(id);
+        content.setFileName((String) row[0]);
+        content.setMimeType((String) row[1]);
+        content.setHash((String) row[2]);
+        content.setSize((Long) row[4]);
+        return content;
     }
 
 }
@@ -1,15 +1,32 @@
 package ru.akh.spring_web.dao;
 
-import java.util.Comparator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Repository;
+import org.springframework.util.StreamUtils;
 
 import ru.akh.spring_web.dao.exception.AuthorNotFoundException;
 import ru.akh.spring_web.dao.exception.BookContentNotFoundException;
@@ -22,24 +39,86 @@ import ru.akh.spring_web.dto.BookContent;
 @Profile("inMemory")
 public class InMemoryBookRepository implements BookRepository {
 
-    private static final Map<Book.Field, Comparator<Book>> FIELD_COMPARATORS = new HashMap<>(
-            Book.Field.values().length);
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryBookRepository.class);
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final int EXPORT_PAGE_SIZE = 500;
+
+    private static final Book.Field[] INDEXED_FIELDS = { Book.Field.TITLE, Book.Field.YEAR, Book.Field.AUTHOR };
+
+    private static class StoredContent {
+
+        private final byte[] content;
+
+        private final String encoding;
+
+        private int refCount;
+
+        StoredContent(byte[] content, String encoding) {
+            this.content = content;
+            this.encoding = encoding;
+        }
 
-    static {
-        FIELD_COMPARATORS.put(Book.Field.ID, Comparator.comparing(Book::getId));
-        FIELD_COMPARATORS.put(Book.Field.TITLE, Comparator.comparing(Book::getTitle));
-        FIELD_COMPARATORS.put(Book.Field.YEAR, Comparator.comparing(Book::getYear));
-        FIELD_COMPARATORS.put(Book.Field.AUTHOR,
-                Comparator.comparing(((Function<Book, Author>) Book::getAuthor).andThen(Author::getName)));
     }
 
-    private TreeMap<Long, Author> authors = new TreeMap<>();
-    private TreeMap<Long, Book> books = new TreeMap<>();
-    private Map<Long, BookContent> contents = new HashMap<>();
+    private final AtomicLong authorIds = new AtomicLong();
+    private final AtomicLong bookIds = new AtomicLong();
+    // books and authors are stamped with the next version under the lock that orders their changes,
+    // so the greater of the versions of a book and its author grows with every change of either
+    private final AtomicLong versions = new AtomicLong();
+    // counts the changes once they are made, so a list is never older than the version read before it
+    private final AtomicLong catalogVersion = new AtomicLong();
+    // the texts of the indexes refer to the strings of the store
+    private final StringPool strings = new StringPool();
+    private final CompactBookStore store = new CompactBookStore(strings);
+    // book ids in id order by case-folded author name
+    private final BookIndex authorNameBooks = new BookIndex(this::compareStrings);
+    private final Map<Book.Field, BookIndex> indexes = new EnumMap<>(Book.Field.class);
+    private final Map<Long, BookContent> contents = new ConcurrentHashMap<>();
+    // books with the same content share a single array, keyed by the content hash
+    private final Map<String, StoredContent> storedContents = new ConcurrentHashMap<>();
+
+    // readers do not lock unless a write to the same stripe or index is in progress,
+    // writers lock the book's stripe, an author rename excludes all of them
+    private final Object[] bookLocks = new Object[LOCK_STRIPES];
+    private final ReadWriteLock authorsLock = new ReentrantReadWriteLock();
+
+    // every change is appended under the lock that orders it, so the log replays in the same order
+    private final BookJournal journal;
+
+    public InMemoryBookRepository() {
+        this(null);
+    }
+
+    @Autowired
+    public InMemoryBookRepository(@Nullable BookJournal journal) {
+        indexes.put(Book.Field.TITLE, new BookIndex(this::compareStrings));
+        indexes.put(Book.Field.YEAR, new BookIndex(Integer::compare));
+        indexes.put(Book.Field.AUTHOR, new BookIndex(this::compareStrings));
+
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            bookLocks[i] = new Object();
+        }
+
+        if (journal != null) {
+            // the journal is only set afterwards, so the replayed changes are not appended again
+            try {
+                journal.recover(new JournaledState());
+            } catch (IOException e) {
+                throw new DataAccessResourceFailureException("Could not recover the journal", e);
+            }
+        } else {
+            // the books do not survive a restart, so the versions given out before it are not repeated
+            versions.set(System.currentTimeMillis() * 1000);
+        }
+        catalogVersion.set(versions.get());
+        this.journal = journal;
+    }
 
     @Override
     public Book get(long id) {
-        Book book = books.get(id);
+        Book book = store.get(id);
         if (book == null) {
             throw new BookNotFoundException(id);
         }
@@ -47,48 +126,348 @@ public class InMemoryBookRepository implements BookRepository {
         return book;
     }
 
+    @Override
+    public List<Book> getAll(Collection<Long> ids) {
+        List<Book> books = new ArrayList<>(ids.size());
+        for (Long id : new LinkedHashSet<>(ids)) {
+            addBook(books, id);
+        }
+        return books;
+    }
+
+    @Override
+    public long getVersion(long id) {
+        long version = store.getVersion(id);
+        if (version < 0) {
+            throw new BookNotFoundException(id);
+        }
+
+        return version;
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        return catalogVersion.get();
+    }
+
     @Override
     public long put(Book book) {
-        synchronized (authors) {
-            Author author = book.getAuthor();
-            Long authorId = author.getId();
-            if (authorId == null) {
-                authorId = (authors.isEmpty() ? 0 : authors.lastKey()) + 1;
-                author.setId(authorId);
-            } else if (!authors.containsKey(authorId)) {
+        try {
+            return putBook(book);
+        } finally {
+            catalogVersion.incrementAndGet();
+        }
+    }
+
+    @Override
+    public List<Long> putAll(List<Book> books) {
+        try {
+            // the new authors of the same name are stored once
+            Map<String, Long> newAuthorIds = new HashMap<>();
+            List<Long> ids = new ArrayList<>(books.size());
+            for (Book book : books) {
+                Author author = book.getAuthor();
+                boolean newAuthor = (author.getId() == null);
+                if (newAuthor) {
+                    author.setId(newAuthorIds.get(author.getName()));
+                }
+
+                ids.add(putBook(book));
+                if (newAuthor) {
+                    newAuthorIds.putIfAbsent(author.getName(), author.getId());
+                }
+            }
+            return ids;
+        } finally {
+            catalogVersion.incrementAndGet();
+        }
+    }
+
+    private long putBook(Book book) {
+        Author author = book.getAuthor();
+        Long authorId = author.getId();
+        if (authorId != null) {
+            String storedName = store.getAuthorName(authorId);
+            if (storedName == null) {
                 throw new AuthorNotFoundException(authorId);
             }
 
-            authors.put(authorId, author);
+            if (!storedName.equals(author.getName())) {
+                renameAuthor(authorId, author.getName());
+            }
         }
 
-        synchronized (books) {
+        authorsLock.readLock().lock();
+        try {
+            if (authorId == null) {
+                authorId = authorIds.incrementAndGet();
+                author.setId(authorId);
+                long version = versions.incrementAndGet();
+                store.putAuthor(authorId, author.getName(), version);
+                if (journal != null) {
+                    journal.appendAuthor(authorId, author.getName(), version);
+                }
+            }
+
             Long id = book.getId();
-            if (id == null) {
-                id = (books.isEmpty() ? 0 : books.lastKey()) + 1;
+            boolean newBook = (id == null);
+            if (newBook) {
+                id = bookIds.incrementAndGet();
                 book.setId(id);
-            } else if (!books.containsKey(id)) {
-                throw new BookNotFoundException(id);
             }
 
-            books.put(id, book);
+            synchronized (getBookLock(id)) {
+                Book oldBook = store.get(id);
+                if ((oldBook == null) && !newBook) {
+                    throw new BookNotFoundException(id);
+                }
+
+                long version = versions.incrementAndGet();
+                storeBook(oldBook, id, book.getTitle(), book.getYear(), authorId, version);
+                if (journal != null) {
+                    journal.appendBook(id, book.getTitle(), book.getYear(), authorId, version);
+                }
+            }
             return id;
+        } finally {
+            authorsLock.readLock().unlock();
+        }
+    }
+
+    private Object getBookLock(long id) {
+        return bookLocks[Math.floorMod(id, LOCK_STRIPES)];
+    }
+
+    private void storeBook(Book oldBook, long id, String title, int year, long authorId, long version) {
+        Book storedBook = store.put(id, title, year, authorId, version);
+        if (oldBook != null) {
+            removeFromIndexes(oldBook);
+        }
+        addToIndexes(storedBook);
+    }
+
+    private void renameAuthor(long authorId, String name) {
+        authorsLock.writeLock().lock();
+        try {
+            long version = versions.incrementAndGet();
+            storeAuthor(authorId, name, version);
+            if (journal != null) {
+                journal.appendAuthor(authorId, name, version);
+            }
+        } finally {
+            authorsLock.writeLock().unlock();
+        }
+    }
+
+    // the caller excludes concurrent puts
+    private void storeAuthor(long authorId, String name, long version) {
+        String oldName = store.getAuthorName(authorId);
+        if (oldName == null) {
+            store.putAuthor(authorId, name, version);
+            return;
+        }
+
+        List<Book> authorBookList = new ArrayList<>();
+        for (long id : authorNameBooks.getEqual(getTextProbe(foldCase(oldName)))) {
+            Book book = store.get(id);
+            if (book.getAuthor().getId() == authorId) {
+                authorBookList.add(book);
+            }
+        }
+
+        // the books refer to the author, so they are only re-sorted by its new name
+        for (Book book : authorBookList) {
+            removeFromIndexes(book);
+        }
+        store.putAuthor(authorId, name, version);
+        for (Book book : authorBookList) {
+            book.getAuthor().setName(store.getAuthorName(authorId));
+            addToIndexes(book);
+        }
+    }
+
+    // the keys of the texts are references to the pool, each entry holds its own
+    private void addToIndexes(Book book) {
+        long id = book.getId();
+        String authorName = book.getAuthor().getName();
+        indexes.get(Book.Field.TITLE).add(strings.acquire(book.getTitle()), id);
+        indexes.get(Book.Field.YEAR).add(book.getYear(), id);
+        indexes.get(Book.Field.AUTHOR).add(strings.acquire(authorName), id);
+        authorNameBooks.add(strings.acquire(foldCase(authorName)), id);
+    }
+
+    private void removeFromIndexes(Book book) {
+        long id = book.getId();
+        for (Book.Field field : INDEXED_FIELDS) {
+            int key = indexes.get(field).remove(getIndexProbe(field, book), id);
+            if (field != Book.Field.YEAR) {
+                strings.release(key);
+            }
+        }
+        strings.release(authorNameBooks.remove(getTextProbe(foldCase(book.getAuthor().getName())), id));
+    }
+
+    private BookIndex.KeyProbe getIndexProbe(Book.Field field, Book book) {
+        switch (field) {
+        case TITLE:
+            return getTextProbe(book.getTitle());
+        case YEAR:
+            int year = book.getYear();
+            return key -> Integer.compare(year, key);
+        case AUTHOR:
+            return getTextProbe(book.getAuthor().getName());
+        default:
+            throw new IllegalArgumentException("Unknown field value: " + field);
+        }
+    }
+
+    // under an optimistic read of an index the key may have been released, the read is then retried
+    private BookIndex.KeyProbe getTextProbe(String text) {
+        return key -> {
+            String string = strings.get(key);
+            return (string != null) ? text.compareTo(string) : -1;
+        };
+    }
+
+    private int compareStrings(int ref1, int ref2) {
+        return strings.get(ref1).compareTo(strings.get(ref2));
+    }
+
+    // folds char by char like String#equalsIgnoreCase(), which the lookup used to be
+    private static String foldCase(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
         }
+        return new String(chars);
     }
 
     @Override
     public List<Book> getTopBooks(Book.Field field, int limit) {
-        return books.values().stream().sorted(FIELD_COMPARATORS.get(field)).limit(limit).collect(Collectors.toList());
+        if (field == Book.Field.ID) {
+            return getBooksFrom(1, limit);
+        }
+        return getBooks(indexes.get(field).getFirst(limit));
+    }
+
+    @Override
+    public List<Book> getTopBooks(Book.Field field, int limit, Book after) {
+        if (field == Book.Field.ID) {
+            return getBooksFrom(after.getId() + 1, limit);
+        }
+        return getBooks(indexes.get(field).getAfter(getIndexProbe(field, after), after.getId(), limit));
+    }
+
+    private List<Book> getBooksFrom(long firstId, int limit) {
+        List<Book> books = new ArrayList<>();
+        // ids are allocated in sequence and books are never removed
+        long lastId = bookIds.get();
+        for (long id = firstId; (id <= lastId) && (books.size() < limit); id++) {
+            addBook(books, id);
+        }
+        return books;
+    }
+
+    private List<Book> getBooks(long[] ids) {
+        List<Book> books = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            addBook(books, id);
+        }
+        return books;
+    }
+
+    @Override
+    public void exportBooks(BookCallback callback) throws IOException {
+        // a page is copied at a time, the books put meanwhile are passed too
+        List<Book> books;
+        for (long firstId = 1; !(books = getBooksFrom(firstId, EXPORT_PAGE_SIZE)).isEmpty();
+                firstId = books.get(books.size() - 1).getId() + 1) {
+            for (Book book : books) {
+                callback.doWithBook(book);
+            }
+        }
     }
 
     @Override
     public List<Book> getBooksByAuthor(String author) {
-        return books.values().stream().filter(book -> book.getAuthor().getName().equalsIgnoreCase(author))
-                .collect(Collectors.toList());
+        String key = foldCase(author);
+        List<Book> authorBookList = new ArrayList<>();
+        for (long id : authorNameBooks.getEqual(getTextProbe(key))) {
+            Book book = store.get(id);
+            // the book may have been updated since the ids were read
+            if ((book != null) && foldCase(book.getAuthor().getName()).equals(key)) {
+                authorBookList.add(book);
+            }
+        }
+        return authorBookList;
+    }
+
+    private void addBook(List<Book> books, long id) {
+        // the book may not be stored yet
+        Book book = store.get(id);
+        if (book != null) {
+            books.add(book);
+        }
     }
 
     @Override
     public BookContent getContent(long id) {
+        BookContent content = getEncodedContent(id);
+        if (content.getEncoding() == null) {
+            return content;
+        }
+
+        BookContent decodedContent = copyMetadata(content);
+        decodedContent.setContent(ContentEncodings.decode(content.getContent(), content.getEncoding()));
+        return decodedContent;
+    }
+
+    @Override
+    public BookContent getContentInfo(long id) {
+        BookContent content = getEncodedContent(id);
+        BookContent contentInfo = copyMetadata(content);
+        contentInfo.setEncoding(content.getEncoding());
+        return contentInfo;
+    }
+
+    @Override
+    public <T> T getContent(long id, BookContentCallback<T> callback) throws IOException {
+        BookContent content = getEncodedContent(id);
+        try (InputStream stream = ContentEncodings.decode(new ByteArrayInputStream(content.getContent()),
+                content.getEncoding())) {
+            return callback.doWithContent(copyMetadata(content), stream);
+        }
+    }
+
+    @Override
+    public <T> T getContent(long id, long position, long length, BookContentCallback<T> callback)
+            throws IOException {
+        BookContent content = getEncodedContent(id);
+        if (content.getEncoding() == null) {
+            try (InputStream stream = new ByteArrayInputStream(content.getContent(), Math.toIntExact(position),
+                    Math.toIntExact(length))) {
+                return callback.doWithContent(content, stream);
+            }
+        }
+
+        try (InputStream stream = ContentEncodings.decode(new ByteArrayInputStream(content.getContent()),
+                content.getEncoding(), position, length)) {
+            return callback.doWithContent(copyMetadata(content), stream);
+        }
+    }
+
+    @Override
+    public <T> T getEncodedContent(long id, BookContentCallback<T> callback) throws IOException {
+        BookContent content = getEncodedContent(id);
+        BookContent contentInfo = copyMetadata(content);
+        contentInfo.setEncoding(content.getEncoding());
+        contentInfo.setEncodedSize(content.getContent().length);
+        try (InputStream stream = new ByteArrayInputStream(content.getContent())) {
+            return callback.doWithContent(contentInfo, stream);
+        }
+    }
+
+    private BookContent getEncodedContent(long id) {
         BookContent content = contents.get(id);
         if (content == null) {
             throw new BookContentNotFoundException(id);
@@ -100,11 +479,137 @@ public class InMemoryBookRepository implements BookRepository {
     @Override
     public void putContent(BookContent content) {
         long id = content.getId();
-        if (!books.containsKey(id)) {
+        if (!store.contains(id)) {
             throw new BookNotFoundException(id);
         }
 
-        contents.put(id, content);
+        byte[] bytes = content.getContent();
+        storeContent(content, ContentHashes.hash(bytes), bytes);
+    }
+
+    @Override
+    public void putContent(BookContent content, InputStream stream) throws IOException {
+        long id = content.getId();
+        if (!store.contains(id)) {
+            throw new BookNotFoundException(id);
+        }
+
+        DigestInputStream digestStream = new DigestInputStream(stream, ContentHashes.createDigest());
+        byte[] bytes = StreamUtils.copyToByteArray(digestStream);
+        ContentHashes.verify(id, content.getHash(), digestStream);
+        storeContent(content, content.getHash(), bytes);
+    }
+
+    private void storeContent(BookContent content, String hash, byte[] bytes) {
+        BookContent newContent = new BookContent();
+        newContent.setId(content.getId());
+        newContent.setFileName(content.getFileName());
+        newContent.setMimeType(content.getMimeType());
+        newContent.setSize(bytes.length);
+        newContent.setHash(hash);
+
+        synchronized (getBookLock(newContent.getId())) {
+            storeContent(newContent, () -> {
+                String encoding = ContentEncodings.select(content.getMimeType(), bytes.length);
+                return new StoredContent(ContentEncodings.encode(bytes, encoding), encoding);
+            });
+            if (journal != null) {
+                journal.appendContent(newContent);
+            }
+        }
+    }
+
+    // the content and the encoding of the new content are set to the stored ones
+    private void storeContent(BookContent newContent, Supplier<StoredContent> contentSupplier) {
+        // reference counts are only changed inside compute(), which locks the hash's bin
+        StoredContent storedContent = storedContents.compute(newContent.getHash(), (key, existingContent) -> {
+            StoredContent newStoredContent = (existingContent != null) ? existingContent : contentSupplier.get();
+            newStoredContent.refCount++;
+            return newStoredContent;
+        });
+        newContent.setContent(storedContent.content);
+        newContent.setEncoding(storedContent.encoding);
+
+        BookContent oldContent = contents.put(newContent.getId(), newContent);
+        if (oldContent != null) {
+            storedContents.computeIfPresent(oldContent.getHash(),
+                    (key, oldStoredContent) -> (--oldStoredContent.refCount == 0) ? null : oldStoredContent);
+        }
+    }
+
+    private static BookContent copyMetadata(BookContent content) {
+        BookContent copy = new BookContent();
+        copy.setId(content.getId());
+        copy.setFileName(content.getFileName());
+        copy.setMimeType(content.getMimeType());
+        copy.setSize(content.getSize());
+        copy.setHash(content.getHash());
+        return copy;
+    }
+
+    private class JournaledState implements BookJournal.State {
+
+        @Override
+        public void restoreAuthor(long authorId, String name, long version) {
+            authorIds.accumulateAndGet(authorId, Math::max);
+            versions.accumulateAndGet(version, Math::max);
+            storeAuthor(authorId, name, version);
+        }
+
+        @Override
+        public void restoreBook(long id, String title, int year, long authorId, long version) {
+            bookIds.accumulateAndGet(id, Math::max);
+            versions.accumulateAndGet(version, Math::max);
+            if (store.getAuthorName(authorId) == null) {
+                // the record of the author was torn, its id is not given out again
+                authorIds.accumulateAndGet(authorId, Math::max);
+                logger.warn("Book[id={}]'s Author[id={}] is unknown, skipping the book", id, authorId);
+                return;
+            }
+            storeBook(store.get(id), id, title, year, authorId, version);
+        }
+
+        @Override
+        public void restoreContent(BookContent content) {
+            BookContent newContent = copyMetadata(content);
+            storeContent(newContent, () -> new StoredContent(content.getContent(), content.getEncoding()));
+        }
+
+        @Override
+        public void writeSnapshot(BookJournal.SnapshotWriter writer) throws IOException {
+            // an author is written before its first book, since it may be added while the books are written
+            Set<Long> writtenAuthorIds = new HashSet<>();
+            long lastId = bookIds.get();
+            for (long id = 1; id <= lastId; id++) {
+                Book book = store.get(id);
+                if (book == null) {
+                    continue;
+                }
+
+                // the versions are read apart from the book, the changes made meanwhile are replayed after it
+                Author author = book.getAuthor();
+                if (writtenAuthorIds.add(author.getId())) {
+                    writer.writeAuthor(author.getId(), author.getName(), store.getAuthorVersion(author.getId()));
+                }
+                // the greater of the versions, which is all that is compared
+                writer.writeBook(id, book.getTitle(), book.getYear(), author.getId(), store.getVersion(id));
+            }
+
+            long lastAuthorId = authorIds.get();
+            for (long authorId = 1; authorId <= lastAuthorId; authorId++) {
+                String name = store.getAuthorName(authorId);
+                if ((name != null) && writtenAuthorIds.add(authorId)) {
+                    writer.writeAuthor(authorId, name, store.getAuthorVersion(authorId));
+                }
+            }
+
+            // books with the same content share its bytes in the snapshot too
+            Set<String> writtenHashes = new HashSet<>();
+            for (BookContent content : contents.values()) {
+                writer.writeContent(content, writtenHashes.add(content.getHash()));
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,36 @@
+package ru.akh.spring_web.dao;
+
+import java.util.List;
+
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Indexes the titles of the books in a {@link TitleIndex} after the delegate
+ * has put them.
+ */
+public class IndexingBookRepository extends DelegatingBookRepository {
+
+    private final TitleIndex index;
+
+    public IndexingBookRepository(BookRepository delegate, TitleIndex index) {
+        super(delegate);
+        this.index = index;
+    }
+
+    @Override
+    public long put(Book book) {
+        long id = delegate.put(book);
+        index.put(id, book.getTitle());
+        return id;
+    }
+
+    @Override
+    public List<Long> putAll(List<Book> books) {
+        List<Long> ids = delegate.putAll(books);
+        for (int i = 0; i < ids.size(); i++) {
+            index.put(ids.get(i), books.get(i).getTitle());
+        }
+        return ids;
+    }
+
+}
@@ -1,17 +1,42 @@
 package ru.akh.spring_web.dao;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestInputStream;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import javax.sql.DataSource;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.support.AbstractLobCreatingPreparedStatementCallback;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
@@ -19,7 +44,9 @@ import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.jdbc.support.lob.LobCreator;
 import org.springframework.jdbc.support.lob.LobHandler;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import ru.akh.spring_web.dao.exception.AuthorNotFoundException;
 import ru.akh.spring_web.dao.exception.BookContentNotFoundException;
@@ -37,6 +64,8 @@ public class JdbcBookRepository implements BookRepository {
 
         public static final String AUTHORS = "AUTHORS";
         public static final String BOOKS = "BOOKS";
+        public static final String CONTENTS = "CONTENTS";
+        public static final String CATALOG = "CATALOG";
 
     }
 
@@ -51,6 +80,32 @@ public class JdbcBookRepository implements BookRepository {
         public static final String MIMETYPE = "MIMETYPE";
         public static final String CONTENT = "CONTENT";
         public static final String SIZE = "SIZE";
+        public static final String HASH = "HASH";
+        public static final String ENCODING = "ENCODING";
+        public static final String REFCOUNT = "REFCOUNT";
+        public static final String CONTENT_HASH = "CONTENT_HASH";
+        public static final String VERSION = "VERSION";
+        public static final String ENCODED_SIZE = "ENCODED_SIZE";
+
+    }
+
+    private static class SequenceNames {
+
+        public static final String CATALOG = "CATALOG_SEQUENCE";
+
+    }
+
+    @FunctionalInterface
+    private static interface ContentSetter {
+
+        void setContent(PreparedStatement ps, LobCreator lobCreator) throws SQLException;
+
+    }
+
+    @FunctionalInterface
+    private static interface ContentOpener {
+
+        InputStream openContent(ResultSet resultSet, String encoding) throws SQLException, IOException;
 
     }
 
@@ -61,31 +116,107 @@ public class JdbcBookRepository implements BookRepository {
 
     private static final String GET_BY_ID_QUERY = GET_QUERY + MessageFormat.format(" where b.{0} = ?", ColumnNames.ID);
 
-    private static final String INSERT_AUTHOR_QUERY = MessageFormat.format("insert into {0} ({1}) values (?)",
-            TableNames.AUTHORS, ColumnNames.NAME);
+    // '{0}' is the list of the parameters, quoted to be formatted later
+    private static final String GET_ALL_QUERY = GET_QUERY + MessageFormat.format(" where b.{0} in ('{0}')",
+            ColumnNames.ID);
+
+    // ids read by a single query, long lists are split so the statements stay small
+    private static final int GET_ALL_CHUNK_SIZE = 500;
+
+    private static final String GET_VERSION_QUERY = MessageFormat.format(
+            "select greatest(b.{0}, a.{0}) from {1} b inner join {2} a on b.{3} = a.{4} where b.{4} = ?",
+            ColumnNames.VERSION, TableNames.BOOKS, TableNames.AUTHORS, ColumnNames.AUTHOR_ID, ColumnNames.ID);
+
+    private static final String GET_CATALOG_VERSION_QUERY = MessageFormat.format("select {0} from {1}",
+            ColumnNames.VERSION, TableNames.CATALOG);
+
+    // given out without a lock, the rows are written with the negated value and stamped once the put is done
+    private static final String NEXT_DRAFT_VERSION_QUERY = MessageFormat.format("select next value for {0}",
+            SequenceNames.CATALOG);
+
+    // locks the catalog until the transaction ends, so the versions are given out in the order of the commits,
+    // while the puts wait for each other only to stamp their rows
+    private static final String INCREMENT_CATALOG_VERSION_QUERY = MessageFormat.format(
+            "update {0} set {1} = {1} + 1", TableNames.CATALOG, ColumnNames.VERSION);
+
+    // the rows of the put are found by the index of the versions
+    private static final String STAMP_AUTHORS_VERSION_QUERY = MessageFormat.format(
+            "update {0} set {1} = ? where {1} = ?", TableNames.AUTHORS, ColumnNames.VERSION);
+
+    private static final String STAMP_BOOKS_VERSION_QUERY = MessageFormat.format(
+            "update {0} set {1} = ? where {1} = ?", TableNames.BOOKS, ColumnNames.VERSION);
 
+    private static final String INSERT_AUTHOR_QUERY = MessageFormat.format(
+            "insert into {0} ({1}, {2}) values (?, ?)",
+            TableNames.AUTHORS, ColumnNames.NAME, ColumnNames.VERSION);
+
+    // the version is only changed along with the name
     private static final String UPDATE_AUTHOR_QUERY = MessageFormat.format(
-            "update {0} set {1} = ? where {2} = ?",
-            TableNames.AUTHORS, ColumnNames.NAME, ColumnNames.ID);
+            "update {0} set {1} = case when {2} = ? then {1} else ? end, {2} = ? where {3} = ?",
+            TableNames.AUTHORS, ColumnNames.VERSION, ColumnNames.NAME, ColumnNames.ID);
 
-    private static final String INSERT_QUERY = MessageFormat.format("insert into {0} ({1}, {2}, {3}) values (?, ?, ?)",
-            TableNames.BOOKS, ColumnNames.TITLE, ColumnNames.YEAR, ColumnNames.AUTHOR_ID);
+    private static final String INSERT_QUERY = MessageFormat.format(
+            "insert into {0} ({1}, {2}, {3}, {4}) values (?, ?, ?, ?)",
+            TableNames.BOOKS, ColumnNames.TITLE, ColumnNames.YEAR, ColumnNames.AUTHOR_ID, ColumnNames.VERSION);
 
     private static final String UPDATE_QUERY = MessageFormat.format(
-            "update {0} set {1} = ?, {2} = ?, {3} = ? where {4} = ?",
-            TableNames.BOOKS, ColumnNames.TITLE, ColumnNames.YEAR, ColumnNames.AUTHOR_ID, ColumnNames.ID);
+            "update {0} set {1} = ?, {2} = ?, {3} = ?, {4} = ? where {5} = ?",
+            TableNames.BOOKS, ColumnNames.TITLE, ColumnNames.YEAR, ColumnNames.AUTHOR_ID, ColumnNames.VERSION,
+            ColumnNames.ID);
+
+    // '{0}' is the sort column, quoted to be formatted later
+    private static final String GET_TOP_QUERY = GET_QUERY
+            + MessageFormat.format(" order by '{0}', b.{0} fetch first ? rows only", ColumnNames.ID);
+
+    // the row value comparison is not used to seek an index, the comparison of the sort column alone is
+    private static final String GET_TOP_AFTER_QUERY = GET_QUERY + MessageFormat.format(
+            " where '{0}' >= ? and ('{0}', b.{0}) > (?, ?) order by '{0}', b.{0} fetch first ? rows only",
+            ColumnNames.ID);
+
+    private static final String EXPORT_QUERY = GET_QUERY + MessageFormat.format(" order by b.{0}", ColumnNames.ID);
+
+    // rows fetched from the cursor at a time
+    private static final int EXPORT_FETCH_SIZE = 500;
 
     private static final String GET_BY_AUTHOR_QUERY = GET_QUERY
             + MessageFormat.format(" where a.{0} = ?", ColumnNames.NAME);
 
+    private static final String GET_CONTENT_INFO_QUERY = MessageFormat.format(
+            "select b.{0}, b.{1}, c.{2}, c.{3}, c.{4} from {5} b inner join {6} c on b.{7} = c.{2} where b.{8} = ?",
+            ColumnNames.FILENAME, ColumnNames.MIMETYPE, ColumnNames.HASH, ColumnNames.ENCODING, ColumnNames.SIZE,
+            TableNames.BOOKS, TableNames.CONTENTS, ColumnNames.CONTENT_HASH, ColumnNames.ID);
+
     private static final String GET_CONTENT_QUERY = MessageFormat.format(
-            "select {0}, {1}, {2}, LENGTH({2}) as \"{3}\" from {4} where {5} = ? and {2} is not null",
-            ColumnNames.FILENAME, ColumnNames.MIMETYPE, ColumnNames.CONTENT, ColumnNames.SIZE, TableNames.BOOKS,
-            ColumnNames.ID);
+            "select b.{0}, b.{1}, c.{2}, c.{3}, c.{4}, c.{5}, length(c.{5}) as {6} from {7} b inner join {8} c"
+                    + " on b.{9} = c.{2} where b.{10} = ?",
+            ColumnNames.FILENAME, ColumnNames.MIMETYPE, ColumnNames.HASH, ColumnNames.ENCODING, ColumnNames.SIZE,
+            ColumnNames.CONTENT, ColumnNames.ENCODED_SIZE, TableNames.BOOKS, TableNames.CONTENTS,
+            ColumnNames.CONTENT_HASH, ColumnNames.ID);
+
+    private static final String GET_CONTENT_HASH_QUERY = MessageFormat.format(
+            "select {0} from {1} where {2} = ? for update",
+            ColumnNames.CONTENT_HASH, TableNames.BOOKS, ColumnNames.ID);
 
     private static final String UPDATE_CONTENT_QUERY = MessageFormat.format(
             "update {0} set {1} = ?, {2} = ?, {3} = ? where {4} = ?",
-            TableNames.BOOKS, ColumnNames.FILENAME, ColumnNames.MIMETYPE, ColumnNames.CONTENT, ColumnNames.ID);
+            TableNames.BOOKS, ColumnNames.FILENAME, ColumnNames.MIMETYPE, ColumnNames.CONTENT_HASH, ColumnNames.ID);
+
+    private static final String ACQUIRE_CONTENT_QUERY = MessageFormat.format(
+            "update {0} set {1} = {1} + 1 where {2} = ?",
+            TableNames.CONTENTS, ColumnNames.REFCOUNT, ColumnNames.HASH);
+
+    private static final String INSERT_CONTENT_QUERY = MessageFormat.format(
+            "insert into {0} ({1}, {2}, {3}, {4}, {5}) values (?, ?, ?, ?, 1)",
+            TableNames.CONTENTS, ColumnNames.HASH, ColumnNames.ENCODING, ColumnNames.SIZE, ColumnNames.CONTENT,
+            ColumnNames.REFCOUNT);
+
+    private static final String RELEASE_CONTENT_QUERY = MessageFormat.format(
+            "update {0} set {1} = {1} - 1 where {2} = ?",
+            TableNames.CONTENTS, ColumnNames.REFCOUNT, ColumnNames.HASH);
+
+    private static final String DELETE_CONTENT_QUERY = MessageFormat.format(
+            "delete from {0} where {1} = ? and {2} = 0",
+            TableNames.CONTENTS, ColumnNames.HASH, ColumnNames.REFCOUNT);
 
     private static final RowMapper<Book> BOOK_MAPPER = (resultSet, rowNum) -> {
         Book book = new Book();
@@ -120,9 +251,41 @@ public class JdbcBookRepository implements BookRepository {
         }
     }
 
+    @Override
+    public List<Book> getAll(Collection<Long> ids) {
+        List<Long> uniqueIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<Long, Book> books = new HashMap<>();
+        for (int from = 0; from < uniqueIds.size(); from += GET_ALL_CHUNK_SIZE) {
+            List<Long> chunk = uniqueIds.subList(from, Math.min(from + GET_ALL_CHUNK_SIZE, uniqueIds.size()));
+            String query = MessageFormat.format(GET_ALL_QUERY,
+                    String.join(", ", Collections.nCopies(chunk.size(), "?")));
+            for (Book book : jdbcTemplate.query(query, BOOK_MAPPER, chunk.toArray())) {
+                books.put(book.getId(), book);
+            }
+        }
+
+        return uniqueIds.stream().map(books::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    @Override
+    public long getVersion(long id) {
+        try {
+            return jdbcTemplate.queryForObject(GET_VERSION_QUERY, Long.class, id);
+        } catch (EmptyResultDataAccessException e) {
+            throw new BookNotFoundException(id);
+        }
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        return jdbcTemplate.queryForObject(GET_CATALOG_VERSION_QUERY, Long.class);
+    }
+
     @Override
     @Transactional
     public long put(Book book) {
+        long version = nextDraftVersion();
+
         Author author = book.getAuthor();
         Long authorId = author.getId();
         if (authorId == null) {
@@ -131,11 +294,13 @@ public class JdbcBookRepository implements BookRepository {
                 PreparedStatement ps = connection.prepareStatement(INSERT_AUTHOR_QUERY,
                         new String[] { ColumnNames.ID });
                 ps.setString(1, author.getName());
+                ps.setLong(2, version);
                 return ps;
             }, keyHolder);
             authorId = keyHolder.getKey().longValue();
         } else {
-            int count = jdbcTemplate.update(UPDATE_AUTHOR_QUERY, author.getName(), authorId);
+            int count = jdbcTemplate.update(UPDATE_AUTHOR_QUERY, author.getName(), version, author.getName(),
+                    authorId);
             if (count == 0) {
                 throw new AuthorNotFoundException(authorId);
             }
@@ -151,48 +316,184 @@ public class JdbcBookRepository implements BookRepository {
                 ps.setString(1, book.getTitle());
                 ps.setInt(2, book.getYear());
                 ps.setLong(3, finalAuthorId);
+                ps.setLong(4, version);
                 return ps;
             }, keyHolder);
             id = keyHolder.getKey().longValue();
         } else {
-            int count = jdbcTemplate.update(UPDATE_QUERY, book.getTitle(), book.getYear(), authorId, id);
+            int count = jdbcTemplate.update(UPDATE_QUERY, book.getTitle(), book.getYear(), authorId, version, id);
             if (count == 0) {
                 throw new BookNotFoundException(id);
             }
         }
 
+        stampVersions(version);
+
         return id;
     }
 
+    @Override
+    @Transactional
+    public List<Long> putAll(List<Book> books) {
+        long version = nextDraftVersion();
+
+        // the authors of the same id are updated once, the new authors of the same name are inserted once
+        Map<Long, String> authorNames = new LinkedHashMap<>();
+        Set<String> newAuthorNames = new LinkedHashSet<>();
+        for (Book book : books) {
+            Author author = book.getAuthor();
+            if (author.getId() != null) {
+                authorNames.put(author.getId(), author.getName());
+            } else {
+                newAuthorNames.add(author.getName());
+            }
+        }
+
+        List<Long> authorIds = new ArrayList<>(authorNames.keySet());
+        int[] authorCounts = updateAll(UPDATE_AUTHOR_QUERY, authorIds, (ps, authorId) -> {
+            String name = authorNames.get(authorId);
+            ps.setString(1, name);
+            ps.setLong(2, version);
+            ps.setString(3, name);
+            ps.setLong(4, authorId);
+        });
+        for (int i = 0; i < authorCounts.length; i++) {
+            if (authorCounts[i] == 0) {
+                throw new AuthorNotFoundException(authorIds.get(i));
+            }
+        }
+
+        Map<String, Long> newAuthorIds = new HashMap<>();
+        Iterator<Long> generatedAuthorIds = insertAll(INSERT_AUTHOR_QUERY, newAuthorNames, (ps, name) -> {
+            ps.setString(1, name);
+            ps.setLong(2, version);
+        }).iterator();
+        for (String name : newAuthorNames) {
+            newAuthorIds.put(name, generatedAuthorIds.next());
+        }
+
+        List<Book> newBooks = new ArrayList<>();
+        List<Book> updatedBooks = new ArrayList<>();
+        for (Book book : books) {
+            (book.getId() == null ? newBooks : updatedBooks).add(book);
+        }
+
+        Function<Book, Long> authorIdOf = book -> {
+            Long authorId = book.getAuthor().getId();
+            return (authorId != null) ? authorId : newAuthorIds.get(book.getAuthor().getName());
+        };
+        int[] bookCounts = updateAll(UPDATE_QUERY, updatedBooks, (ps, book) -> {
+            ps.setString(1, book.getTitle());
+            ps.setInt(2, book.getYear());
+            ps.setLong(3, authorIdOf.apply(book));
+            ps.setLong(4, version);
+            ps.setLong(5, book.getId());
+        });
+        for (int i = 0; i < bookCounts.length; i++) {
+            if (bookCounts[i] == 0) {
+                throw new BookNotFoundException(updatedBooks.get(i).getId());
+            }
+        }
+
+        Map<Book, Long> newBookIds = new IdentityHashMap<>();
+        Iterator<Long> generatedBookIds = insertAll(INSERT_QUERY, newBooks, (ps, book) -> {
+            ps.setString(1, book.getTitle());
+            ps.setInt(2, book.getYear());
+            ps.setLong(3, authorIdOf.apply(book));
+            ps.setLong(4, version);
+        }).iterator();
+        for (Book book : newBooks) {
+            newBookIds.put(book, generatedBookIds.next());
+        }
+
+        stampVersions(version);
+
+        return books.stream().map(book -> (book.getId() != null) ? book.getId() : newBookIds.get(book))
+                .collect(Collectors.toList());
+    }
+
+    private long nextDraftVersion() {
+        return -jdbcTemplate.queryForObject(NEXT_DRAFT_VERSION_QUERY, Long.class);
+    }
+
+    /**
+     * Replaces the draft version of the rows changed by the put with the next
+     * catalog version.
+     */
+    private void stampVersions(long draftVersion) {
+        jdbcTemplate.update(INCREMENT_CATALOG_VERSION_QUERY);
+        long version = getCatalogVersion();
+        jdbcTemplate.update(STAMP_AUTHORS_VERSION_QUERY, version, draftVersion);
+        jdbcTemplate.update(STAMP_BOOKS_VERSION_QUERY, version, draftVersion);
+    }
+
+    /**
+     * Updates the rows in a single batch and returns the update counts in the
+     * same order.
+     */
+    private <T> int[] updateAll(String sql, List<T> rows, ParameterizedPreparedStatementSetter<T> setter) {
+        if (rows.isEmpty()) {
+            return new int[0];
+        }
+        return jdbcTemplate.batchUpdate(sql, rows, rows.size(), setter)[0];
+    }
+
+    /**
+     * Inserts the rows in a single batch and returns their generated ids in
+     * the same order.
+     */
+    private <T> List<Long> insertAll(String sql, Collection<T> rows, ParameterizedPreparedStatementSetter<T> setter) {
+        if (rows.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        return jdbcTemplate.execute(connection -> connection.prepareStatement(sql, new String[] { ColumnNames.ID }),
+                (PreparedStatementCallback<List<Long>>) ps -> {
+                    for (T row : rows) {
+                        setter.setValues(ps, row);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+
+                    List<Long> ids = new ArrayList<>(rows.size());
+                    try (ResultSet keys = ps.getGeneratedKeys()) {
+                        while (keys.next()) {
+                            ids.add(keys.getLong(1));
+                        }
+                    }
+                    if (ids.size() != rows.size()) {
+                        throw new DataRetrievalFailureException(
+                                "Got " + ids.size() + " generated keys for " + rows.size() + " inserted rows");
+                    }
+                    return ids;
+                });
+    }
+
     @Override
     public List<Book> getTopBooks(Book.Field field, int limit) {
-        String tableAlias = "b";
-        String fieldName;
+        return jdbcTemplate.query(MessageFormat.format(GET_TOP_QUERY, getSortColumn(field)), BOOK_MAPPER, limit);
+    }
+
+    @Override
+    public List<Book> getTopBooks(Book.Field field, int limit, Book after) {
+        Object value = field.getValue(after);
+        return jdbcTemplate.query(MessageFormat.format(GET_TOP_AFTER_QUERY, getSortColumn(field)), BOOK_MAPPER,
+                value, value, after.getId(), limit);
+    }
+
+    private static String getSortColumn(Book.Field field) {
         switch (field) {
         case ID:
-            fieldName = ColumnNames.ID;
-            break;
+            return "b." + ColumnNames.ID;
         case TITLE:
-            fieldName = ColumnNames.TITLE;
-            break;
+            return "b." + ColumnNames.TITLE;
         case YEAR:
-            fieldName = ColumnNames.YEAR;
-            break;
+            return "b." + ColumnNames.YEAR;
         case AUTHOR:
-            tableAlias = "a";
-            fieldName = ColumnNames.NAME;
-            break;
+            return "a." + ColumnNames.NAME;
         default:
             throw new IllegalArgumentException("Unknown field value: " + field);
         }
-
-        jdbcTemplate.setMaxRows(limit);
-        try {
-            return jdbcTemplate.query(MessageFormat.format(GET_QUERY + " order by {0}.{1}", tableAlias, fieldName),
-                    BOOK_MAPPER);
-        } finally {
-            jdbcTemplate.setMaxRows(-1);
-        }
     }
 
     @Override
@@ -200,18 +501,36 @@ public class JdbcBookRepository implements BookRepository {
         return jdbcTemplate.query(GET_BY_AUTHOR_QUERY, BOOK_MAPPER, author);
     }
 
+    @Override
+    public void exportBooks(BookCallback callback) throws IOException {
+        try {
+            jdbcTemplate.query(connection -> {
+                PreparedStatement ps = connection.prepareStatement(EXPORT_QUERY, ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY);
+                ps.setFetchSize(EXPORT_FETCH_SIZE);
+                return ps;
+            }, (RowCallbackHandler) resultSet -> {
+                try {
+                    callback.doWithBook(BOOK_MAPPER.mapRow(resultSet, resultSet.getRow()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
     @Override
     public BookContent getContent(long id) {
         try {
             return jdbcTemplate.queryForObject(
                     GET_CONTENT_QUERY,
                     (resultSet, rowNum) -> {
-                        BookContent bookContent = new BookContent();
-                        bookContent.setId(id);
-                        bookContent.setFileName(resultSet.getString(ColumnNames.FILENAME));
-                        bookContent.setMimeType(resultSet.getString(ColumnNames.MIMETYPE));
-                        bookContent.setContent(lobHandler.getBlobAsBytes(resultSet, ColumnNames.CONTENT));
-                        bookContent.setSize(resultSet.getLong(ColumnNames.SIZE));
+                        BookContent bookContent = mapContent(id, resultSet);
+                        bookContent.setContent(ContentEncodings.decode(
+                                lobHandler.getBlobAsBytes(resultSet, ColumnNames.CONTENT),
+                                resultSet.getString(ColumnNames.ENCODING)));
                         return bookContent;
                     },
                     id);
@@ -220,26 +539,162 @@ public class JdbcBookRepository implements BookRepository {
         }
     }
 
+    @Override
+    public BookContent getContentInfo(long id) {
+        try {
+            return jdbcTemplate.queryForObject(
+                    GET_CONTENT_INFO_QUERY,
+                    (resultSet, rowNum) -> {
+                        BookContent bookContent = mapContent(id, resultSet);
+                        bookContent.setEncoding(resultSet.getString(ColumnNames.ENCODING));
+                        return bookContent;
+                    },
+                    id);
+        } catch (EmptyResultDataAccessException e) {
+            throw new BookContentNotFoundException(id);
+        }
+    }
+
+    @Override
+    public <T> T getContent(long id, BookContentCallback<T> callback) throws IOException {
+        return queryContent(id, (resultSet, encoding) -> ContentEncodings.decode(
+                lobHandler.getBlobAsBinaryStream(resultSet, ColumnNames.CONTENT), encoding), false, callback);
+    }
+
+    @Override
+    public <T> T getContent(long id, long position, long length, BookContentCallback<T> callback)
+            throws IOException {
+        return queryContent(id, (resultSet, encoding) -> {
+            if (encoding == null) {
+                // only the requested slice is read from the LOB
+                return resultSet.getBlob(ColumnNames.CONTENT).getBinaryStream(position + 1, length);
+            }
+            return ContentEncodings.decode(lobHandler.getBlobAsBinaryStream(resultSet, ColumnNames.CONTENT),
+                    encoding, position, length);
+        }, false, callback);
+    }
+
+    @Override
+    public <T> T getEncodedContent(long id, BookContentCallback<T> callback) throws IOException {
+        return queryContent(id, (resultSet, encoding) -> lobHandler.getBlobAsBinaryStream(resultSet,
+                ColumnNames.CONTENT), true, callback);
+    }
+
+    private <T> T queryContent(long id, ContentOpener contentOpener, boolean encoded,
+            BookContentCallback<T> callback) throws IOException {
+        try {
+            return jdbcTemplate.query(
+                    GET_CONTENT_QUERY,
+                    resultSet -> {
+                        if (!resultSet.next()) {
+                            throw new BookContentNotFoundException(id);
+                        }
+
+                        BookContent bookContent = mapContent(id, resultSet);
+                        String encoding = resultSet.getString(ColumnNames.ENCODING);
+                        if (encoded) {
+                            bookContent.setEncoding(encoding);
+                            bookContent.setEncodedSize(resultSet.getLong(ColumnNames.ENCODED_SIZE));
+                        }
+                        try (InputStream stream = contentOpener.openContent(resultSet, encoding)) {
+                            return callback.doWithContent(bookContent, stream);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    },
+                    id);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
     @Override
     @Transactional
     public void putContent(BookContent content) {
-        int count = jdbcTemplate.execute(UPDATE_CONTENT_QUERY,
-                new AbstractLobCreatingPreparedStatementCallback(lobHandler) {
-
-                    @Override
-                    protected void setValues(PreparedStatement ps, LobCreator lobCreator)
-                            throws SQLException, DataAccessException {
-                        ps.setString(1, content.getFileName());
-                        ps.setString(2, content.getMimeType());
-                        lobCreator.setBlobAsBytes(ps, 3, content.getContent());
-                        ps.setLong(4, content.getId());
-                    }
+        byte[] bytes = content.getContent();
+        String encoding = ContentEncodings.select(content.getMimeType(), bytes.length);
+        updateContent(content, ContentHashes.hash(bytes), hash -> {
+            if (encoding == null) {
+                insertContent(hash, null, bytes.length, (ps, lobCreator) -> lobCreator.setBlobAsBytes(ps, 4, bytes));
+            } else {
+                insertContent(hash, encoding, bytes.length, (ps, lobCreator) -> lobCreator.setBlobAsBinaryStream(
+                        ps, 4, ContentEncodings.encode(new ByteArrayInputStream(bytes), encoding), -1));
+            }
+        });
+    }
 
-                });
+    @Override
+    @Transactional
+    public void putContent(BookContent content, InputStream stream) {
+        updateContent(content, ContentHashes.requireHash(content), hash -> {
+            long size = content.getSize();
+            String encoding = ContentEncodings.select(content.getMimeType(), size);
+            DigestInputStream digestStream = new DigestInputStream(stream, ContentHashes.createDigest());
+            // the length of compressed content is not known until it is written
+            insertContent(hash, encoding, size, (ps, lobCreator) -> lobCreator.setBlobAsBinaryStream(ps, 4,
+                    ContentEncodings.encode(digestStream, encoding),
+                    (encoding == null) ? Math.toIntExact(size) : -1));
+            ContentHashes.verify(content.getId(), hash, digestStream);
+        });
+    }
+
+    private void updateContent(BookContent content, String hash, Consumer<String> contentInserter) {
+        long id = content.getId();
+        String oldHash;
+        try {
+            // locks the book, so concurrent puts see each other's reference counts
+            oldHash = jdbcTemplate.queryForObject(GET_CONTENT_HASH_QUERY, String.class, id);
+        } catch (EmptyResultDataAccessException e) {
+            throw new BookNotFoundException(id);
+        }
 
-        if (count == 0) {
-            throw new BookNotFoundException(content.getId());
+        boolean changed = !hash.equals(oldHash);
+        if (changed && (jdbcTemplate.update(ACQUIRE_CONTENT_QUERY, hash) == 0)) {
+            // the content is not stored yet, unless a concurrent put of it to another book inserts it meanwhile
+            TransactionStatus status = TransactionAspectSupport.currentTransactionStatus();
+            Object savepoint = status.createSavepoint();
+            try {
+                contentInserter.accept(hash);
+                status.releaseSavepoint(savepoint);
+            } catch (DuplicateKeyException e) {
+                status.rollbackToSavepoint(savepoint);
+                if (jdbcTemplate.update(ACQUIRE_CONTENT_QUERY, hash) == 0) {
+                    throw e;
+                }
+            }
         }
+
+        jdbcTemplate.update(UPDATE_CONTENT_QUERY, content.getFileName(), content.getMimeType(), hash, id);
+
+        if (changed && (oldHash != null)) {
+            jdbcTemplate.update(RELEASE_CONTENT_QUERY, oldHash);
+            jdbcTemplate.update(DELETE_CONTENT_QUERY, oldHash);
+        }
+    }
+
+    private void insertContent(String hash, String encoding, long size, ContentSetter contentSetter) {
+        jdbcTemplate.execute(INSERT_CONTENT_QUERY, new AbstractLobCreatingPreparedStatementCallback(lobHandler) {
+
+            @Override
+            protected void setValues(PreparedStatement ps, LobCreator lobCreator)
+                    throws SQLException, DataAccessException {
+                ps.setString(1, hash);
+                ps.setString(2, encoding);
+                ps.setLong(3, size);
+                contentSetter.setContent(ps, lobCreator);
+            }
+
+        });
+    }
+
+    private static BookContent mapContent(long id, ResultSet resultSet) throws SQLException {
+        BookContent bookContent = new BookContent();
+        bookContent.setId(id);
+        bookContent.setFileName(resultSet.getString(ColumnNames.FILENAME));
+        bookContent.setMimeType(resultSet.getString(ColumnNames.MIMETYPE));
+        bookContent.setSize(resultSet.getLong(ColumnNames.SIZE));
+        bookContent.setHash(resultSet.getString(ColumnNames.HASH));
+        return bookContent;
     }
 
 }
@@ -0,0 +1,104 @@
+package ru.akh.spring_web.dao;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map of {@code long} keys to non-negative {@code int} values
+ * with linear probing, without boxing or entry objects. Keys must not be
+ * {@link Long#MIN_VALUE}. Not thread-safe, but {@link #get(long)} never fails
+ * on a map being modified, so it may be used under an optimistic read.
+ */
+class LongIntHashMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private static final int NO_VALUE = -1;
+
+    private long[] keys;
+
+    private int[] values;
+
+    private int size;
+
+    LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        keys = newKeys(capacity);
+        values = new int[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value or {@code -1} if the key is absent.
+     */
+    int get(long key) {
+        long[] currentKeys = keys;
+        int[] currentValues = values;
+        int mask = currentKeys.length - 1;
+        int index = hash(key) & mask;
+        // bounded, a concurrently modified table may be seen without empty slots
+        for (int probes = 0; probes < currentKeys.length; probes++) {
+            long currentKey = currentKeys[index];
+            if (currentKey == key) {
+                // the arrays are replaced one by one when the map grows
+                return (index < currentValues.length) ? currentValues[index] : NO_VALUE;
+            } else if (currentKey == EMPTY) {
+                break;
+            }
+            index = (index + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    void put(long key, int value) {
+        // at most half full, so a probe always ends at an empty slot
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+
+        if (insert(keys, values, key, value)) {
+            size++;
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] newKeys = newKeys(capacity);
+        int[] newValues = new int[capacity];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                insert(newKeys, newValues, keys[i], values[i]);
+            }
+        }
+
+        values = newValues;
+        keys = newKeys;
+    }
+
+    private static boolean insert(long[] keys, int[] values, long key, int value) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while ((keys[index] != EMPTY) && (keys[index] != key)) {
+            index = (index + 1) & mask;
+        }
+
+        boolean inserted = (keys[index] == EMPTY);
+        values[index] = value;
+        keys[index] = key;
+        return inserted;
+    }
+
+    private static long[] newKeys(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    private static int hash(long key) {
+        // spreads sequential ids over the table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,284 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import ru.akh.spring_web.dto.BookContent;
+
+/**
+ * Keeps book content as it is stored, outside of the Java heap. The memory is
+ * allocated in direct buffer slabs on demand up to the capacity and handed out
+ * in fixed-size pages, so entries of any size fit without fragmentation. The
+ * least recently used entries are evicted when no free page is left.
+ */
+@ManagedResource(objectName = "ru.akh.spring_web:type=OffHeapContentCache")
+public class OffHeapContentCache {
+
+    private static final int PAGE_SIZE = 8 * 1024;
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    static class Entry {
+
+        private final BookContent contentInfo;
+
+        private final ByteBuffer[] pages;
+
+        private final boolean complete;
+
+        private int refCount = 1;
+
+        private boolean retired;
+
+        Entry(BookContent contentInfo, ByteBuffer[] pages, boolean complete) {
+            this.contentInfo = contentInfo;
+            this.pages = pages;
+            this.complete = complete;
+        }
+
+        BookContent getContentInfo() {
+            BookContent content = new BookContent();
+            content.setId(contentInfo.getId());
+            content.setFileName(contentInfo.getFileName());
+            content.setMimeType(contentInfo.getMimeType());
+            content.setSize(contentInfo.getSize());
+            content.setHash(contentInfo.getHash());
+            content.setEncoding(contentInfo.getEncoding());
+            content.setEncodedSize(contentInfo.getEncodedSize());
+            return content;
+        }
+
+        /**
+         * Returns whether the whole content has been read into the pages.
+         */
+        boolean isComplete() {
+            return complete;
+        }
+
+        CachedContentInputStream openStream() {
+            return new CachedContentInputStream(pages);
+        }
+
+    }
+
+    private final long capacity;
+
+    private final long maxEntrySize;
+
+    private final Deque<ByteBuffer> freePages = new ArrayDeque<>();
+
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long allocated;
+
+    // incremented by every invalidation, so content read before it is not cached after it
+    private long stamp;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    public OffHeapContentCache(long capacity) {
+        this.capacity = capacity - capacity % PAGE_SIZE;
+        // a single large book must not evict everything else
+        this.maxEntrySize = this.capacity / 8;
+    }
+
+    long getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    synchronized long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Returns the entry, which must be released, or {@code null} if the content
+     * is not cached.
+     */
+    synchronized Entry acquire(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        entry.refCount++;
+        return entry;
+    }
+
+    synchronized void release(Entry entry) {
+        if ((--entry.refCount == 0) && entry.retired) {
+            free(entry);
+        }
+    }
+
+    /**
+     * Reads the stream into pages and caches it, unless the cache has been
+     * invalidated since the stamp was taken. The returned entry must be
+     * released. If the content does not fit, the entry is incomplete and is
+     * not cached, the rest of the content is left in the stream.
+     */
+    Entry load(long id, long loadStamp, BookContent contentInfo, InputStream stream) throws IOException {
+        List<ByteBuffer> pages = new ArrayList<>();
+        ReadableByteChannel channel = Channels.newChannel(stream);
+        boolean complete = false;
+        try {
+            while ((long) pages.size() * PAGE_SIZE < maxEntrySize) {
+                ByteBuffer page = allocatePage();
+                if (page == null) {
+                    break;
+                }
+
+                page.clear();
+                pages.add(page);
+                while (page.hasRemaining() && !complete) {
+                    complete = channel.read(page) < 0;
+                }
+                page.flip();
+
+                if (complete) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                freePages.addAll(pages);
+            }
+            throw e;
+        }
+
+        Entry entry = new Entry(contentInfo, pages.toArray(new ByteBuffer[0]), complete);
+        synchronized (this) {
+            if (complete && (loadStamp == stamp)) {
+                Entry oldEntry = entries.put(id, entry);
+                if (oldEntry != null) {
+                    retire(oldEntry);
+                }
+            } else {
+                entry.retired = true;
+            }
+        }
+        return entry;
+    }
+
+    public synchronized void invalidate(long id) {
+        stamp++;
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            retire(entry);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        stamp++;
+        for (Entry entry : entries.values()) {
+            retire(entry);
+        }
+        entries.clear();
+    }
+
+    private synchronized ByteBuffer allocatePage() {
+        while (freePages.isEmpty()) {
+            if (allocated < capacity) {
+                int slabSize = (int) Math.min(SLAB_SIZE, capacity - allocated);
+                ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+                for (int position = 0; position < slabSize; position += PAGE_SIZE) {
+                    slab.limit(position + PAGE_SIZE).position(position);
+                    freePages.add(slab.slice());
+                }
+                allocated += slabSize;
+                break;
+            }
+
+            if (!evictEldestUnread()) {
+                // the pages are held by entries being read
+                return null;
+            }
+        }
+
+        return freePages.poll();
+    }
+
+    /**
+     * Evicts the least recently used entry that is not being read, so its
+     * pages are freed at once. Returns {@code false} if there is none.
+     */
+    private boolean evictEldestUnread() {
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+            Entry entry = iterator.next();
+            if (entry.refCount == 0) {
+                iterator.remove();
+                retire(entry);
+                evictions++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void retire(Entry entry) {
+        entry.retired = true;
+        if (entry.refCount == 0) {
+            free(entry);
+        }
+    }
+
+    private void free(Entry entry) {
+        for (ByteBuffer page : entry.pages) {
+            freePages.add(page);
+        }
+    }
+
+    @ManagedAttribute
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @ManagedAttribute
+    public synchronized long getSize() {
+        long size = 0;
+        for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+            for (ByteBuffer page : entry.getValue().pages) {
+                size += page.limit();
+            }
+        }
+        return size;
+    }
+
+    @ManagedAttribute
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @ManagedAttribute
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @ManagedAttribute
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @ManagedAttribute
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+}
@@ -0,0 +1,88 @@
+package ru.akh.spring_web.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Serves books by id from a {@link BookCache}, books missing in it are read
+ * from the delegate and cached. A put invalidates the book and the other books
+ * of its author after the delegate returns, so a book read before the put is
+ * never cached after it.
+ */
+public class ReadThroughBookRepository extends DelegatingBookRepository {
+
+    private final BookCache cache;
+
+    public ReadThroughBookRepository(BookRepository delegate, BookCache cache) {
+        super(delegate);
+        this.cache = cache;
+    }
+
+    @Override
+    public Book get(long id) {
+        Book book = cache.get(id);
+        if (book == null) {
+            long stamp = cache.getStamp();
+            book = delegate.get(id);
+            cache.put(id, stamp, book);
+        }
+        return book;
+    }
+
+    /**
+     * Reads the books missing in the cache from the delegate at once.
+     */
+    @Override
+    public List<Book> getAll(Collection<Long> ids) {
+        Map<Long, Book> books = new LinkedHashMap<>();
+        List<Long> missingIds = new ArrayList<>();
+        for (Long id : ids) {
+            Book book = cache.get(id);
+            if (book == null) {
+                missingIds.add(id);
+            }
+            books.putIfAbsent(id, book);
+        }
+
+        if (!missingIds.isEmpty()) {
+            long stamp = cache.getStamp();
+            for (Book book : delegate.getAll(missingIds)) {
+                cache.put(book.getId(), stamp, book);
+                books.put(book.getId(), book);
+            }
+        }
+
+        return books.values().stream().filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    @Override
+    public long put(Book book) {
+        try {
+            return delegate.put(book);
+        } finally {
+            Author author = book.getAuthor();
+            cache.invalidate(book.getId(), (author != null) ? author.getId() : null);
+        }
+    }
+
+    @Override
+    public List<Long> putAll(List<Book> books) {
+        try {
+            return delegate.putAll(books);
+        } finally {
+            for (Book book : books) {
+                Author author = book.getAuthor();
+                cache.invalidate(book.getId(), (author != null) ? author.getId() : null);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package ru.akh.spring_web.dao;
+
+import java.util.Arrays;
+
+/**
+ * Reference counted pool of strings, equal strings share a single instance
+ * and are referred to by an {@code int}. The strings are looked up through an
+ * open addressing table of references, so the pool adds no objects of its
+ * own. References are acquired and released under the pool's monitor, and
+ * {@link #get(int)} does not lock, it never fails on a pool being modified.
+ */
+class StringPool {
+
+    private String[] strings = new String[16];
+
+    private int[] refCounts = new int[16];
+
+    // references plus one by string hash, zero is an empty slot
+    private int[] table = new int[32];
+
+    private int[] freeRefs = new int[16];
+
+    private int freeCount;
+
+    private int nextRef;
+
+    private int size;
+
+    /**
+     * Returns the reference to the string, which must be released.
+     */
+    synchronized int acquire(String string) {
+        int slot = findSlot(string);
+        if (table[slot] != 0) {
+            int ref = table[slot] - 1;
+            refCounts[ref]++;
+            return ref;
+        }
+
+        int ref;
+        if (freeCount > 0) {
+            ref = freeRefs[--freeCount];
+        } else {
+            ref = nextRef++;
+            if (ref == strings.length) {
+                refCounts = Arrays.copyOf(refCounts, ref * 2);
+                strings = Arrays.copyOf(strings, ref * 2);
+            }
+        }
+
+        strings[ref] = string;
+        refCounts[ref] = 1;
+        table[slot] = ref + 1;
+        if (++size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return ref;
+    }
+
+    synchronized void release(int ref) {
+        if (--refCounts[ref] > 0) {
+            return;
+        }
+
+        removeSlot(findSlot(strings[ref]));
+        size--;
+        strings[ref] = null;
+        if (freeCount == freeRefs.length) {
+            freeRefs = Arrays.copyOf(freeRefs, freeCount * 2);
+        }
+        freeRefs[freeCount++] = ref;
+    }
+
+    /**
+     * Returns the string or {@code null} if the reference is not valid.
+     */
+    String get(int ref) {
+        String[] currentStrings = strings;
+        return ((ref >= 0) && (ref < currentStrings.length)) ? currentStrings[ref] : null;
+    }
+
+    /**
+     * Returns the number of distinct strings.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    // the slot of the string or the empty slot to insert it into
+    private int findSlot(String string) {
+        int mask = table.length - 1;
+        int slot = hash(string) & mask;
+        while ((table[slot] != 0) && !strings[table[slot] - 1].equals(string)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // linear probing deletion, the following entries are shifted back into the gap
+    private void removeSlot(int slot) {
+        int mask = table.length - 1;
+        int gap = slot;
+        table[gap] = 0;
+        for (int next = (gap + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = hash(strings[table[next] - 1]) & mask;
+            boolean reachable = (gap <= next) ? ((home <= gap) || (home > next)) : ((home <= gap) && (home > next));
+            if (reachable) {
+                table[gap] = table[next];
+                table[next] = 0;
+                gap = next;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] oldTable = table;
+        table = new int[capacity];
+        for (int entry : oldTable) {
+            if (entry != 0) {
+                table[findSlot(strings[entry - 1])] = entry;
+            }
+        }
+    }
+
+    private static int hash(String string) {
+        int h = string.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,337 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Inverted index of the titles of the books, a title is split into terms of
+ * lower case letters and digits without accents. The terms are kept sorted,
+ * so the terms starting with a query token are a range of them, and each one
+ * has the sorted ids of its books. Each book keeps its terms, so a new title
+ * replaces them.
+ */
+@ManagedResource(objectName = "ru.akh.spring_web:type=TitleIndex")
+public class TitleIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(TitleIndex.class);
+
+    // the books looked at by a search, a query matching more titles ranks only the ones looked at first
+    private static final int MAX_CANDIDATES = 2000;
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+
+    private static final String[] NO_TERMS = new String[0];
+
+    private static class Postings {
+
+        private long[] ids = new long[4];
+
+        private int size;
+
+        void add(long id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                return;
+            }
+
+            // new books have the greatest ids, so they are mostly appended
+            index = -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        void remove(long id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+                size--;
+            }
+        }
+
+    }
+
+    private static class Match {
+
+        private final long id;
+
+        private final int score;
+
+        private final int termCount;
+
+        Match(long id, int score, int termCount) {
+            this.id = id;
+            this.score = score;
+            this.termCount = termCount;
+        }
+
+    }
+
+    // the best match first: the greatest score, then the shortest title, then the lowest id
+    private static final Comparator<Match> RANK = Comparator.<Match> comparingInt(match -> -match.score)
+            .thenComparingInt(match -> match.termCount).thenComparingLong(match -> match.id);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+
+    private final LongIntHashMap slots = new LongIntHashMap(1024);
+
+    // the terms of the books by slot, they share the instances of the keys of the terms
+    private String[][] titles = new String[1024][];
+
+    private int size;
+
+    /**
+     * Indexes the titles of all the books of the repository. The books put
+     * meanwhile are indexed by the puts, so their titles read by the export
+     * are skipped.
+     */
+    public void build(BookRepository repository) {
+        long startTime = System.currentTimeMillis();
+        try {
+            repository.exportBooks(book -> put(book.getId(), book.getTitle(), false));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        logger.info("Indexed {} titles in {} ms", getTitleCount(), System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Indexes the title of the book, replacing the one indexed before.
+     */
+    public void put(long id, String title) {
+        put(id, title, true);
+    }
+
+    private void put(long id, String title, boolean replace) {
+        String[] tokens = tokenize(title);
+        lock.writeLock().lock();
+        try {
+            int slot = slots.get(id);
+            if (slot < 0) {
+                slot = size++;
+                if (slot == titles.length) {
+                    titles = Arrays.copyOf(titles, slot * 2);
+                }
+                slots.put(id, slot);
+            } else if (replace) {
+                removeTerms(id, slot);
+            } else {
+                return;
+            }
+
+            for (int i = 0; i < tokens.length; i++) {
+                Postings postings;
+                Map.Entry<String, Postings> entry = terms.ceilingEntry(tokens[i]);
+                if ((entry != null) && entry.getKey().equals(tokens[i])) {
+                    tokens[i] = entry.getKey();
+                    postings = entry.getValue();
+                } else {
+                    postings = new Postings();
+                    terms.put(tokens[i], postings);
+                }
+                postings.add(id);
+            }
+            titles[slot] = tokens;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the title of the deleted book, its slot is kept.
+     */
+    public void remove(long id) {
+        lock.writeLock().lock();
+        try {
+            int slot = slots.get(id);
+            if (slot >= 0) {
+                removeTerms(id, slot);
+                titles[slot] = NO_TERMS;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeTerms(long id, int slot) {
+        for (String term : titles[slot]) {
+            Postings postings = terms.get(term);
+            postings.remove(id);
+            if (postings.size == 0) {
+                terms.remove(term);
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the books up to the limit whose titles have a term
+     * starting with every token of the query, the best matches first. A term
+     * equal to a token scores more than a longer one, a title starting with
+     * the first token scores more than the others, and a shorter title ranks
+     * above a longer one with the same score.
+     */
+    public List<Long> search(String query, int limit) {
+        String[] tokens = tokenize(query);
+        if (tokens.length == 0) {
+            return Collections.emptyList();
+        }
+
+        PriorityQueue<Match> matches = new PriorityQueue<>(RANK.reversed());
+        lock.readLock().lock();
+        try {
+            // the books are scanned from the terms of the token with the fewest of them
+            String scanToken = null;
+            List<Map.Entry<String, Postings>> scanTerms = null;
+            int scanCount = Integer.MAX_VALUE;
+            for (String token : tokens) {
+                List<Map.Entry<String, Postings>> tokenTerms = new ArrayList<>();
+                int count = 0;
+                // the term equal to the token is the first one, so its books are scanned first
+                for (Map.Entry<String, Postings> entry : terms.subMap(token, token + Character.MAX_VALUE).entrySet()) {
+                    tokenTerms.add(entry);
+                    count += entry.getValue().size;
+                    if (count >= Math.min(scanCount, MAX_CANDIDATES)) {
+                        // not fewer books than the other tokens or more than a scan takes
+                        break;
+                    }
+                }
+                if (count < scanCount) {
+                    scanToken = token;
+                    scanTerms = tokenTerms;
+                    scanCount = count;
+                }
+            }
+
+            int scanned = 0;
+            for (Map.Entry<String, Postings> entry : scanTerms) {
+                Postings postings = entry.getValue();
+                for (int i = 0; (i < postings.size) && (scanned++ < MAX_CANDIDATES); i++) {
+                    long id = postings.ids[i];
+                    String[] title = titles[slots.get(id)];
+                    if (hasPrecedingTerm(title, scanToken, entry.getKey())) {
+                        // scanned with that term already
+                        continue;
+                    }
+
+                    int score = score(tokens, title);
+                    if (score > 0) {
+                        matches.add(new Match(id, score, title.length));
+                        if (matches.size() > limit) {
+                            matches.poll();
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Match> sortedMatches = new ArrayList<>(matches);
+        sortedMatches.sort(RANK);
+        List<Long> ids = new ArrayList<>(sortedMatches.size());
+        for (Match match : sortedMatches) {
+            ids.add(match.id);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns {@code true} if the title has a term starting with the token
+     * that precedes the term.
+     */
+    private static boolean hasPrecedingTerm(String[] title, String token, String term) {
+        for (String titleTerm : title) {
+            if (titleTerm.startsWith(token) && (titleTerm.compareTo(term) < 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code 0} if a token is not the prefix of any term of the title.
+     */
+    private static int score(String[] tokens, String[] title) {
+        int score = 0;
+        for (String token : tokens) {
+            int tokenScore = 0;
+            for (String term : title) {
+                if (term.equals(token)) {
+                    tokenScore = 2;
+                    break;
+                }
+                if (term.startsWith(token)) {
+                    tokenScore = 1;
+                }
+            }
+            if (tokenScore == 0) {
+                return 0;
+            }
+            score += tokenScore;
+        }
+
+        if (title[0].startsWith(tokens[0])) {
+            score++;
+        }
+        return score;
+    }
+
+    /**
+     * Returns the distinct terms of the text in the order they appear in it.
+     */
+    static String[] tokenize(String text) {
+        if (text == null) {
+            return NO_TERMS;
+        }
+
+        String normalized = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFKD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        return Arrays.stream(SEPARATORS.split(normalized)).filter(token -> !token.isEmpty()).distinct()
+                .toArray(String[]::new);
+    }
+
+    @ManagedAttribute
+    public int getTitleCount() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @ManagedAttribute
+    public int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+}
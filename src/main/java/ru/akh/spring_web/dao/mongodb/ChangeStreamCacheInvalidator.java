@@ -0,0 +1,324 @@
+package ru.akh.spring_web.dao.mongodb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import ru.akh.spring_web.controller.JsonResponseCache;
+import ru.akh.spring_web.dao.BookCache;
+import ru.akh.spring_web.dao.OffHeapContentCache;
+import ru.akh.spring_web.dao.TitleIndex;
+
+/**
+ * Invalidates the caches of this node and indexes the titles on the changes
+ * made to the books and the authors by any node, as they are reported by a
+ * change stream. The stream is resumed after the last change seen when it
+ * fails or the invalidator is restarted. When the changes since then are no
+ * longer in the oplog, or the collections are dropped, everything is
+ * invalidated, all the titles are indexed again and a new stream is watched
+ * from then on. The resume token is kept in memory only: a new node starts
+ * with empty caches and builds the title index from the database, so it has
+ * nothing to resume.
+ */
+@Component
+@Profile("mongodb")
+@ConditionalOnExpression("'${books.cache.max-size:}' != '' or '${books.content.cache.capacity:}' != ''"
+        + " or '${books.title-index.enabled:false}' == 'true'")
+public class ChangeStreamCacheInvalidator implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeStreamCacheInvalidator.class);
+
+    // ChangeStreamFatalError, ChangeStreamHistoryLost and InvalidResumeToken
+    private static final List<Integer> LOST_RESUME_ERROR_CODES = Arrays.asList(280, 286, 260);
+
+    private static final long MAX_AWAIT_MILLIS = 1000;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final MongoTemplate template;
+
+    private final BookCache bookCache;
+
+    private final OffHeapContentCache contentCache;
+
+    private final JsonResponseCache jsonCache;
+
+    private final TitleIndex titleIndex;
+
+    // opened before the title index is built, so no title put meanwhile is missed
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> initialCursor;
+
+    private volatile Thread thread;
+
+    private volatile BsonDocument resumeToken;
+
+    public ChangeStreamCacheInvalidator(MongoTemplate template, ObjectProvider<BookCache> bookCache,
+            ObjectProvider<OffHeapContentCache> contentCache, ObjectProvider<JsonResponseCache> jsonCache,
+            ObjectProvider<TitleIndex> titleIndex) {
+        this.template = template;
+        this.bookCache = bookCache.getIfAvailable();
+        this.contentCache = contentCache.getIfAvailable();
+        this.jsonCache = jsonCache.getIfAvailable();
+        this.titleIndex = titleIndex.getIfAvailable();
+        this.initialCursor = watchStream().cursor();
+    }
+
+    /**
+     * Opens the stream before returning, so no change made after the start is
+     * missed.
+     */
+    @Override
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = (initialCursor != null) ? initialCursor
+                : openStream();
+        initialCursor = null;
+        thread = new Thread(() -> watch(cursor), "change-stream-cache-invalidator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread stoppedThread;
+        synchronized (this) {
+            stoppedThread = thread;
+            thread = null;
+        }
+
+        if (stoppedThread != null) {
+            stoppedThread.interrupt();
+            try {
+                stoppedThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    @Override
+    public int getPhase() {
+        // before the web server starts and after it stops
+        return 0;
+    }
+
+    private ChangeStreamIterable<Document> watchStream() {
+        List<Bson> pipeline = Collections.singletonList(Aggregates.match(Filters.in("ns.coll",
+                Constants.CollectionNames.BOOKS, Constants.CollectionNames.AUTHORS)));
+        return template.getDb().watch(pipeline).maxAwaitTime(MAX_AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Resumes the stream after the last change seen or, if that is not
+     * possible, opens a new one and invalidates everything.
+     */
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openStream() {
+        ChangeStreamIterable<Document> stream = watchStream();
+        BsonDocument currentResumeToken = resumeToken;
+        if (currentResumeToken != null) {
+            try {
+                return stream.resumeAfter(currentResumeToken).cursor();
+            } catch (MongoServerException e) {
+                if (!LOST_RESUME_ERROR_CODES.contains(e.getCode())) {
+                    throw e;
+                }
+
+                logger.warn("Could not resume the change stream, invalidating all the cached books", e);
+            }
+        }
+
+        // opened first, so a book read after the invalidation is not changed unnoticed
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = stream.cursor();
+        resumeToken = null;
+        invalidateAll();
+        return cursor;
+    }
+
+    private void watch(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                readChanges(cursor);
+            } catch (MongoInterruptedException e) {
+                break;
+            } catch (MongoException e) {
+                logger.warn("The change stream failed, resuming it", e);
+            } finally {
+                cursor.close();
+            }
+
+            cursor = reopenStream();
+            if (cursor == null) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns when the stream is invalidated or the thread is interrupted.
+     */
+    private void readChanges(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor) {
+        while (!Thread.currentThread().isInterrupted()) {
+            ChangeStreamDocument<Document> change = cursor.tryNext();
+            if ((change != null) && !invalidate(change)) {
+                // the stream is closed, it cannot be resumed after this event
+                resumeToken = null;
+                return;
+            }
+
+            // also advances past the changes filtered out, so they are not scanned again on resume
+            BsonDocument currentResumeToken = cursor.getResumeToken();
+            if (currentResumeToken != null) {
+                resumeToken = currentResumeToken;
+            }
+        }
+    }
+
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> reopenStream() {
+        while (true) {
+            try {
+                Thread.sleep(RETRY_DELAY_MILLIS);
+                return openStream();
+            } catch (InterruptedException | MongoInterruptedException e) {
+                return null;
+            } catch (MongoException e) {
+                logger.warn("Could not open the change stream, retrying", e);
+            }
+        }
+    }
+
+    /**
+     * Returns {@code false} if the change invalidates the stream.
+     */
+    private boolean invalidate(ChangeStreamDocument<Document> change) {
+        switch (change.getOperationType()) {
+        case INSERT:
+        case UPDATE:
+        case REPLACE:
+        case DELETE: {
+            long id = change.getDocumentKey().get("_id").asNumber().longValue();
+            if (Constants.CollectionNames.BOOKS.equals(change.getNamespace().getCollectionName())) {
+                invalidateBook(id);
+                indexTitle(id, change);
+            } else {
+                invalidateAuthor(id);
+            }
+            return true;
+        }
+        case INVALIDATE:
+            return false;
+        default:
+            // drops and renames of the collections
+            invalidateAll();
+            return true;
+        }
+    }
+
+    private void invalidateBook(long id) {
+        if (bookCache != null) {
+            bookCache.invalidate(id, null);
+        }
+        if (contentCache != null) {
+            contentCache.invalidate(id);
+        }
+        if (jsonCache != null) {
+            jsonCache.invalidate(id);
+        }
+    }
+
+    private void invalidateAuthor(long authorId) {
+        if (bookCache != null) {
+            bookCache.invalidate(null, authorId);
+        }
+        // the serialized books of the author are not known
+        if (jsonCache != null) {
+            jsonCache.invalidateAll();
+        }
+    }
+
+    private void invalidateAll() {
+        if (bookCache != null) {
+            bookCache.invalidateAll();
+        }
+        if (contentCache != null) {
+            contentCache.invalidateAll();
+        }
+        if (jsonCache != null) {
+            jsonCache.invalidateAll();
+        }
+        if (titleIndex != null) {
+            indexAllTitles();
+        }
+    }
+
+    private void indexTitle(long id, ChangeStreamDocument<Document> change) {
+        if (titleIndex == null) {
+            return;
+        }
+
+        switch (change.getOperationType()) {
+        case INSERT:
+        case REPLACE:
+            titleIndex.put(id, change.getFullDocument().getString("title"));
+            break;
+        case UPDATE: {
+            BsonValue title = change.getUpdateDescription().getUpdatedFields().get("title");
+            if (title != null) {
+                titleIndex.put(id, title.asString().getValue());
+            }
+            break;
+        }
+        default:
+            titleIndex.remove(id);
+            break;
+        }
+    }
+
+    /**
+     * Indexes the titles of all the books again, the books deleted meanwhile
+     * keep their titles but are not found by id.
+     */
+    private void indexAllTitles() {
+        Query query = new Query();
+        query.fields().include("title");
+        try (CloseableIterator<Document> books = template.stream(query, Document.class,
+                Constants.CollectionNames.BOOKS)) {
+            while (books.hasNext()) {
+                Document book = books.next();
+                titleIndex.put(((Number) book.get("_id")).longValue(), book.getString("title"));
+            }
+        }
+    }
+
+}
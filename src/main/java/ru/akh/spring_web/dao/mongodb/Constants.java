@@ -9,12 +9,17 @@ class Constants {
         public static final String AUTHORS = "authors";
         public static final String BOOKS = "books";
 
+        // collections of the default GridFS bucket
+        public static final String FILES = "fs.files";
+        public static final String CHUNKS = "fs.chunks";
+
     }
 
     public static class SequenceNames {
 
         public static final String AUTHORS = "authors_sequence";
         public static final String BOOKS = "books_sequence";
+        public static final String CATALOG = "catalog_sequence";
 
     }
 
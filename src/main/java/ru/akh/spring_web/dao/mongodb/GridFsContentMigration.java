@@ -0,0 +1,116 @@
+package ru.akh.spring_web.dao.mongodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+import javax.annotation.PostConstruct;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.dao.ContentHashes;
+import ru.akh.spring_web.dto.BookContent;
+
+/**
+ * Moves content embedded into book documents as {@code binData} to GridFS
+ * and hashes GridFS files stored before content deduplication. Runs on
+ * startup before the application serves requests, books and files already
+ * migrated are not touched.
+ */
+@Component
+@Profile("mongodb")
+public class GridFsContentMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(GridFsContentMigration.class);
+
+    @Autowired
+    private MongoTemplate template;
+
+    @Autowired
+    private GridFsTemplate gridFsTemplate;
+
+    @Autowired
+    private BookRepository repository;
+
+    @PostConstruct
+    public void migrate() {
+        template.indexOps(Constants.CollectionNames.FILES).ensureIndex(new Index("metadata.hash", Sort.Direction.ASC));
+
+        int fileCount = 0;
+        for (GridFSFile file : gridFsTemplate.find(Query.query(Criteria.where("metadata.hash").exists(false)))) {
+            hash(file);
+            fileCount++;
+        }
+
+        Query query = Query.query(Criteria.where("content").exists(true));
+        query.fields().include("fileName").include("mimeType").include("content");
+
+        int bookCount = 0;
+        // the cursor keeps a single document with its content in memory at a time
+        try (CloseableIterator<Document> books = template.stream(query, Document.class,
+                Constants.CollectionNames.BOOKS)) {
+            while (books.hasNext()) {
+                migrate(books.next());
+                bookCount++;
+            }
+        }
+
+        if ((fileCount > 0) || (bookCount > 0)) {
+            logger.info("Hashed {} GridFS files, moved content of {} books to GridFS", fileCount, bookCount);
+        }
+    }
+
+    private void hash(GridFSFile file) {
+        ObjectId contentId = file.getObjectId();
+        String hash;
+        try (InputStream stream = gridFsTemplate.getResource(file).getInputStream()) {
+            hash = ContentHashes.hash(stream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        long refCount = template.count(Query.query(Criteria.where("contentId").is(contentId)),
+                Constants.CollectionNames.BOOKS);
+        template.updateFirst(Query.query(Criteria.where("_id").is(contentId)),
+                new Update().set("metadata.hash", hash).set("metadata.refCount", (int) refCount),
+                Constants.CollectionNames.FILES);
+    }
+
+    private void migrate(Document book) {
+        Object content = book.get("content");
+        byte[] bytes = (content instanceof Binary) ? ((Binary) content).getData() : (byte[]) content;
+
+        BookContent bookContent = new BookContent();
+        bookContent.setId(((Number) book.get("_id")).longValue());
+        bookContent.setFileName(book.getString("fileName"));
+        bookContent.setMimeType(book.getString("mimeType"));
+        bookContent.setSize(bytes.length);
+        bookContent.setHash(ContentHashes.hash(bytes));
+        try {
+            // stores the content once per hash and removes the embedded field
+            repository.putContent(bookContent, new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -1,24 +1,56 @@
 package ru.akh.spring_web.dao.mongodb;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestInputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.LongFunction;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StreamUtils;
 
 import com.mongodb.DBRef;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 
+import ru.akh.spring_web.dao.BookCallback;
+import ru.akh.spring_web.dao.BookContentCallback;
 import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.dao.ContentEncodings;
+import ru.akh.spring_web.dao.ContentHashes;
 import ru.akh.spring_web.dao.exception.AuthorNotFoundException;
 import ru.akh.spring_web.dao.exception.BookContentNotFoundException;
 import ru.akh.spring_web.dao.exception.BookNotFoundException;
@@ -31,12 +63,35 @@ import ru.akh.spring_web.dto.BookContent;
 @Transactional(readOnly = true)
 public class MongoBookRepository implements BookRepository {
 
+    // documents fetched from the cursor at a time
+    private static final int EXPORT_BATCH_SIZE = 500;
+
+    // ids read by a single query, long lists are split so the queries stay small
+    private static final int GET_ALL_CHUNK_SIZE = 500;
+
     @Autowired
     private MongoTemplate template;
 
+    @Autowired
+    private GridFsTemplate gridFsTemplate;
+
     @Autowired
     private SequenceGenerator sequenceGenerator;
 
+    /**
+     * Creates the indexes the top books are read by, so a page is found
+     * without sorting the books before it.
+     */
+    @PostConstruct
+    public void ensureIndexes() {
+        IndexOperations bookIndexOps = template.indexOps(Constants.CollectionNames.BOOKS);
+        bookIndexOps.ensureIndex(new Index("title", Sort.Direction.ASC).on("_id", Sort.Direction.ASC));
+        bookIndexOps.ensureIndex(new Index("year", Sort.Direction.ASC).on("_id", Sort.Direction.ASC));
+        bookIndexOps.ensureIndex(new Index("author.$id", Sort.Direction.ASC).on("_id", Sort.Direction.ASC));
+        template.indexOps(Constants.CollectionNames.AUTHORS)
+                .ensureIndex(new Index("name", Sort.Direction.ASC).on("_id", Sort.Direction.ASC));
+    }
+
     @Override
     public Book get(long id) {
         Book book = template.findById(id, Book.class, Constants.CollectionNames.BOOKS);
@@ -47,19 +102,70 @@ public class MongoBookRepository implements BookRepository {
         return book;
     }
 
+    @Override
+    public List<Book> getAll(Collection<Long> ids) {
+        List<Long> uniqueIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<Long, Book> books = new HashMap<>();
+        for (int from = 0; from < uniqueIds.size(); from += GET_ALL_CHUNK_SIZE) {
+            List<Long> chunk = uniqueIds.subList(from, Math.min(from + GET_ALL_CHUNK_SIZE, uniqueIds.size()));
+            List<Document> documents = template.find(Query.query(Criteria.where("_id").in(chunk)), Document.class,
+                    Constants.CollectionNames.BOOKS);
+            for (Book book : toBooks(documents)) {
+                books.put(book.getId(), book);
+            }
+        }
+
+        return uniqueIds.stream().map(books::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    @Override
+    public long getVersion(long id) {
+        Query query = Query.query(Criteria.where("_id").is(id));
+        query.fields().include("author").include("version");
+        Document book = template.findOne(query, Document.class, Constants.CollectionNames.BOOKS);
+        if (book == null) {
+            throw new BookNotFoundException(id);
+        }
+
+        Object authorId = getAuthorId(book.get("author"));
+        Query authorQuery = Query.query(Criteria.where("_id").is(authorId));
+        authorQuery.fields().include("version");
+        Document author = template.findOne(authorQuery, Document.class, Constants.CollectionNames.AUTHORS);
+        return (author != null) ? Math.max(getVersion(book), getVersion(author)) : getVersion(book);
+    }
+
+    // documents written before the versions were added have none
+    private static long getVersion(Document document) {
+        Number version = (Number) document.get("version");
+        return (version != null) ? version.longValue() : 0;
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        return sequenceGenerator.getSequence(Constants.SequenceNames.CATALOG);
+    }
+
     @Override
     @Transactional
     public long put(Book book) {
+        // concurrent transactions conflict on the sequence, so the versions are given out in the order of the changes
+        long version = sequenceGenerator.generateSequence(Constants.SequenceNames.CATALOG);
+
         Author author = book.getAuthor();
         Long authorId = author.getId();
         if (authorId == null) {
             authorId = sequenceGenerator.generateSequence(Constants.SequenceNames.AUTHORS);
             author.setId(authorId);
-            template.insert(author, Constants.CollectionNames.AUTHORS);
+            template.insert(new Document("_id", authorId).append("name", author.getName()).append("version", version),
+                    Constants.CollectionNames.AUTHORS);
         } else {
-            UpdateResult updateResult = template.updateFirst(Query.query(Criteria.where("_id").is(authorId)),
-                    Update.update("name", author.getName()), Author.class, Constants.CollectionNames.AUTHORS);
-            if (updateResult.getMatchedCount() == 0) {
+            // the version is only changed along with the name
+            UpdateResult updateResult = template.updateFirst(
+                    Query.query(Criteria.where("_id").is(authorId).and("name").ne(author.getName())),
+                    Update.update("name", author.getName()).set("version", version), Author.class,
+                    Constants.CollectionNames.AUTHORS);
+            if ((updateResult.getMatchedCount() == 0) && !template.exists(
+                    Query.query(Criteria.where("_id").is(authorId)), Constants.CollectionNames.AUTHORS)) {
                 throw new AuthorNotFoundException(authorId);
             }
         }
@@ -68,11 +174,13 @@ public class MongoBookRepository implements BookRepository {
         if (id == null) {
             id = sequenceGenerator.generateSequence(Constants.SequenceNames.BOOKS);
             book.setId(id);
-            template.insert(book, Constants.CollectionNames.BOOKS);
+            Document document = BookWriteConverter.INSTANCE.convert(book);
+            document.put("version", version);
+            template.insert(document, Constants.CollectionNames.BOOKS);
         } else {
             UpdateResult updateResult = template.updateFirst(Query.query(Criteria.where("_id").is(id)),
                     new Update().set("title", book.getTitle()).set("year", book.getYear()).set("author",
-                            new DBRef(Constants.CollectionNames.AUTHORS, author.getId())),
+                            new DBRef(Constants.CollectionNames.AUTHORS, author.getId())).set("version", version),
                     Book.class, Constants.CollectionNames.BOOKS);
             if (updateResult.getMatchedCount() == 0) {
                 throw new BookNotFoundException(id);
@@ -82,28 +190,154 @@ public class MongoBookRepository implements BookRepository {
         return id;
     }
 
+    @Override
+    @Transactional
+    public List<Long> putAll(List<Book> books) {
+        long version = sequenceGenerator.generateSequence(Constants.SequenceNames.CATALOG);
+
+        // the authors of the same id are updated once, the new authors of the same name are inserted once
+        Map<Long, String> authorNames = new LinkedHashMap<>();
+        Map<String, Long> newAuthorIds = new LinkedHashMap<>();
+        for (Book book : books) {
+            Author author = book.getAuthor();
+            if (author.getId() != null) {
+                authorNames.put(author.getId(), author.getName());
+            } else {
+                newAuthorIds.put(author.getName(), null);
+            }
+        }
+
+        if (!authorNames.isEmpty()) {
+            BulkOperations authorOps = template.bulkOps(BulkOperations.BulkMode.UNORDERED,
+                    Constants.CollectionNames.AUTHORS);
+            authorNames.forEach((authorId, name) -> authorOps.updateOne(
+                    Query.query(Criteria.where("_id").is(authorId).and("name").ne(name)),
+                    Update.update("name", name).set("version", version)));
+            authorOps.execute();
+            checkExisting(authorNames.keySet(), Constants.CollectionNames.AUTHORS, AuthorNotFoundException::new);
+        }
+
+        if (!newAuthorIds.isEmpty()) {
+            long authorId = sequenceGenerator.generateSequences(Constants.SequenceNames.AUTHORS, newAuthorIds.size());
+            BulkOperations authorOps = template.bulkOps(BulkOperations.BulkMode.UNORDERED,
+                    Constants.CollectionNames.AUTHORS);
+            for (Map.Entry<String, Long> entry : newAuthorIds.entrySet()) {
+                entry.setValue(authorId);
+                authorOps.insert(new Document("_id", authorId).append("name", entry.getKey())
+                        .append("version", version));
+                authorId++;
+            }
+            authorOps.execute();
+        }
+
+        int newBookCount = (int) books.stream().filter(book -> book.getId() == null).count();
+        long newBookId = (newBookCount > 0)
+                ? sequenceGenerator.generateSequences(Constants.SequenceNames.BOOKS, newBookCount)
+                : 0;
+        List<Long> ids = new ArrayList<>(books.size());
+        Set<Long> updatedIds = new LinkedHashSet<>();
+        BulkOperations bookOps = template.bulkOps(BulkOperations.BulkMode.UNORDERED,
+                Constants.CollectionNames.BOOKS);
+        for (Book book : books) {
+            Author author = book.getAuthor();
+            DBRef authorRef = new DBRef(Constants.CollectionNames.AUTHORS,
+                    (author.getId() != null) ? author.getId() : newAuthorIds.get(author.getName()));
+            Long id = book.getId();
+            if (id == null) {
+                id = newBookId++;
+                bookOps.insert(new Document("_id", id).append("title", book.getTitle())
+                        .append("year", book.getYear()).append("author", authorRef).append("version", version));
+            } else {
+                updatedIds.add(id);
+                bookOps.updateOne(Query.query(Criteria.where("_id").is(id)), new Update().set("title", book.getTitle())
+                        .set("year", book.getYear()).set("author", authorRef).set("version", version));
+            }
+            ids.add(id);
+        }
+
+        if (!books.isEmpty()) {
+            BulkWriteResult result = bookOps.execute();
+            if (result.getMatchedCount() < updatedIds.size()) {
+                checkExisting(updatedIds, Constants.CollectionNames.BOOKS, BookNotFoundException::new);
+            }
+        }
+
+        return ids;
+    }
+
+    private void checkExisting(Set<Long> ids, String collectionName, LongFunction<RuntimeException> notFound) {
+        Query query = Query.query(Criteria.where("_id").in(ids));
+        query.fields().include("_id");
+        Set<Long> existingIds = template.find(query, Document.class, collectionName).stream()
+                .map(document -> ((Number) document.get("_id")).longValue()).collect(Collectors.toSet());
+        for (Long id : ids) {
+            if (!existingIds.contains(id)) {
+                throw notFound.apply(id);
+            }
+        }
+    }
+
     @Override
     public List<Book> getTopBooks(Book.Field field, int limit) {
+        return findTopBooks(field, limit, null);
+    }
+
+    @Override
+    public List<Book> getTopBooks(Book.Field field, int limit, Book after) {
+        return findTopBooks(field, limit, after);
+    }
+
+    private List<Book> findTopBooks(Book.Field field, int limit, Book after) {
         switch (field) {
         case ID:
         case TITLE:
         case YEAR: {
             String fieldName = field.toString().toLowerCase();
-            Query query = new Query().with(Sort.by(fieldName)).limit(limit);
+            Query query = new Query().with(Sort.by(fieldName, "id")).limit(limit);
+            if (after != null) {
+                Object value = field.getValue(after);
+                query.addCriteria(Criteria.where(fieldName).gte(value).orOperator(
+                        Criteria.where(fieldName).gt(value), Criteria.where("id").gt(after.getId())));
+            }
             return template.find(query, Book.class, Constants.CollectionNames.BOOKS);
         }
         case AUTHOR: {
-            Query authorsQuery = new Query().with(Sort.by("name"));
-            List<Author> authors = template.find(authorsQuery, Author.class, Constants.CollectionNames.AUTHORS);
-            List<Long> authorIds = authors.stream().map(Author::getId).collect(Collectors.toList());
-
-            List<Book> books = new ArrayList<>(limit);
-            for (long authorId : authorIds) {
-                Query booksQuery = Query.query(Criteria.where("author.$id").is(authorId)).limit(limit - books.size());
-                List<Book> booksByAuthor = template.find(booksQuery, Book.class, Constants.CollectionNames.BOOKS);
-                books.addAll(booksByAuthor);
-                if (books.size() >= limit) {
-                    break;
+            // the books of the authors of the same name are read together in id order
+            Query authorsQuery = new Query().with(Sort.by("name", "id"));
+            if (after != null) {
+                authorsQuery.addCriteria(Criteria.where("name").gte(after.getAuthor().getName()));
+            }
+
+            List<Book> books = new ArrayList<>();
+            try (CloseableIterator<Author> authors = template.stream(authorsQuery, Author.class,
+                    Constants.CollectionNames.AUTHORS)) {
+                String name = null;
+                List<Long> authorIds = new ArrayList<>();
+                while (books.size() < limit) {
+                    Author author = authors.hasNext() ? authors.next() : null;
+                    if ((author != null) && ((name == null) || name.equals(author.getName()))) {
+                        name = author.getName();
+                        authorIds.add(author.getId());
+                        continue;
+                    }
+
+                    if (authorIds.isEmpty()) {
+                        break;
+                    }
+
+                    Criteria criteria = Criteria.where("author.$id").in(authorIds);
+                    if ((after != null) && name.equals(after.getAuthor().getName())) {
+                        criteria.and("id").gt(after.getId());
+                    }
+                    books.addAll(template.find(Query.query(criteria).with(Sort.by("id")).limit(limit - books.size()),
+                            Book.class, Constants.CollectionNames.BOOKS));
+                    if (author == null) {
+                        break;
+                    }
+
+                    name = author.getName();
+                    authorIds = new ArrayList<>();
+                    authorIds.add(author.getId());
                 }
             }
 
@@ -114,6 +348,55 @@ public class MongoBookRepository implements BookRepository {
         }
     }
 
+    @Override
+    public void exportBooks(BookCallback callback) throws IOException {
+        Query query = new Query().with(Sort.by("_id")).cursorBatchSize(EXPORT_BATCH_SIZE);
+        List<Document> batch = new ArrayList<>(EXPORT_BATCH_SIZE);
+        try (CloseableIterator<Document> books = template.stream(query, Document.class,
+                Constants.CollectionNames.BOOKS)) {
+            while (books.hasNext()) {
+                batch.add(books.next());
+                if (batch.size() == EXPORT_BATCH_SIZE) {
+                    exportBooks(batch, callback);
+                    batch.clear();
+                }
+            }
+        }
+        exportBooks(batch, callback);
+    }
+
+    private void exportBooks(List<Document> batch, BookCallback callback) throws IOException {
+        for (Book book : toBooks(batch)) {
+            callback.doWithBook(book);
+        }
+    }
+
+    /**
+     * Reads the authors of the books with a single query instead of resolving
+     * the reference of every book.
+     */
+    private List<Book> toBooks(List<Document> documents) {
+        Set<Object> authorIds = documents.stream().map(book -> getAuthorId(book.get("author")))
+                .collect(Collectors.toSet());
+        Map<Object, Author> authors = template.find(Query.query(Criteria.where("_id").in(authorIds)), Author.class,
+                Constants.CollectionNames.AUTHORS).stream().collect(Collectors.toMap(Author::getId, author -> author));
+
+        List<Book> books = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            Book book = new Book();
+            book.setId(((Number) document.get("_id")).longValue());
+            book.setTitle(document.getString("title"));
+            book.setYear(((Number) document.get("year")).intValue());
+            book.setAuthor(authors.get(((Number) getAuthorId(document.get("author"))).longValue()));
+            books.add(book);
+        }
+        return books;
+    }
+
+    private static Object getAuthorId(Object authorRef) {
+        return (authorRef instanceof DBRef) ? ((DBRef) authorRef).getId() : ((Document) authorRef).get("$id");
+    }
+
     @Override
     public List<Book> getBooksByAuthor(String author) {
         Query authorQuery = Query.query(Criteria.where("name").is(author));
@@ -126,29 +409,173 @@ public class MongoBookRepository implements BookRepository {
 
     @Override
     public BookContent getContent(long id) {
-        BookContent content = template.findById(id, BookContent.class, Constants.CollectionNames.BOOKS);
-        if (content == null) {
-            throw new BookContentNotFoundException(id);
+        try {
+            return getContent(id, (content, stream) -> {
+                content.setContent(StreamUtils.copyToByteArray(stream));
+                return content;
+            });
+        } catch (IOException e) {
+            throw new DataRetrievalFailureException("Could not read Book[id=" + id + "]'s content", e);
         }
+    }
 
-        if (content.getSize() == 0) {
-            content.setSize(content.getContent().length);
+    @Override
+    public BookContent getContentInfo(long id) {
+        // reads the book and the GridFS file document, not the chunks
+        BookContent content = new BookContent();
+        GridFSFile file = findContentFile(id, content);
+        content.setEncoding(getEncoding(file));
+        return content;
+    }
+
+    @Override
+    public <T> T getContent(long id, BookContentCallback<T> callback) throws IOException {
+        BookContent content = new BookContent();
+        GridFSFile file = findContentFile(id, content);
+        try (InputStream stream = ContentEncodings.decode(gridFsTemplate.getResource(file).getInputStream(),
+                getEncoding(file))) {
+            return callback.doWithContent(content, stream);
         }
+    }
 
-        return content;
+    @Override
+    public <T> T getContent(long id, long position, long length, BookContentCallback<T> callback)
+            throws IOException {
+        BookContent content = new BookContent();
+        GridFSFile file = findContentFile(id, content);
+        // the download stream of a file stored as it is seeks to the chunk containing the position
+        // instead of reading up to it
+        try (InputStream stream = ContentEncodings.decode(gridFsTemplate.getResource(file).getInputStream(),
+                getEncoding(file), position, length)) {
+            return callback.doWithContent(content, stream);
+        }
+    }
+
+    @Override
+    public <T> T getEncodedContent(long id, BookContentCallback<T> callback) throws IOException {
+        BookContent content = new BookContent();
+        GridFSFile file = findContentFile(id, content);
+        content.setEncoding(getEncoding(file));
+        content.setEncodedSize(file.getLength());
+        try (InputStream stream = gridFsTemplate.getResource(file).getInputStream()) {
+            return callback.doWithContent(content, stream);
+        }
     }
 
     @Override
     @Transactional
     public void putContent(BookContent content) {
+        byte[] bytes = content.getContent();
+        content.setSize(bytes.length);
+        content.setHash(ContentHashes.hash(bytes));
+        try {
+            putContent(content, new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    @Transactional
+    public void putContent(BookContent content, InputStream stream) throws IOException {
         long id = content.getId();
-        UpdateResult updateResult = template.updateFirst(Query.query(Criteria.where("_id").is(id)),
+        String hash = content.getHash();
+        Query query = Query.query(Criteria.where("_id").is(id));
+        if (!template.exists(query, Constants.CollectionNames.BOOKS)) {
+            throw new BookNotFoundException(id);
+        }
+
+        // the same content is stored once, its file keeps the hash and the number of books referring to it
+        Document existingFile = template.findAndModify(Query.query(Criteria.where("metadata.hash").is(hash)),
+                new Update().inc("metadata.refCount", 1), Document.class, Constants.CollectionNames.FILES);
+        ObjectId contentId;
+        if (existingFile != null) {
+            contentId = existingFile.getObjectId("_id");
+        } else {
+            String encoding = ContentEncodings.select(content.getMimeType(), content.getSize());
+            DigestInputStream digestStream = new DigestInputStream(stream, ContentHashes.createDigest());
+            Document metadata = new Document("hash", hash).append("encoding", encoding).append("refCount", 1);
+            contentId = gridFsTemplate.store(ContentEncodings.encode(digestStream, encoding), content.getFileName(),
+                    content.getMimeType(), metadata);
+            // GridFS writes are not part of the transaction
+            afterCompletion(contentId, false);
+            ContentHashes.verify(id, hash, digestStream);
+        }
+
+        query.fields().include("contentId");
+        Document oldBook = template.findAndModify(query,
                 new Update().set("fileName", content.getFileName()).set("mimeType", content.getMimeType())
-                        .set("content", content.getContent()),
-                BookContent.class, Constants.CollectionNames.BOOKS);
-        if (updateResult.getMatchedCount() == 0) {
+                        .set("size", content.getSize()).set("contentId", contentId).unset("content"),
+                Document.class, Constants.CollectionNames.BOOKS);
+        if (oldBook == null) {
             throw new BookNotFoundException(id);
         }
+
+        ObjectId oldContentId = oldBook.getObjectId("contentId");
+        if (oldContentId != null) {
+            template.updateFirst(Query.query(Criteria.where("_id").is(oldContentId)),
+                    new Update().inc("metadata.refCount", -1), Constants.CollectionNames.FILES);
+            afterCompletion(oldContentId, true);
+        }
+    }
+
+    /**
+     * Removes the file once the transaction is committed or rolled back, if it
+     * is not referred to anymore.
+     */
+    private void afterCompletion(ObjectId contentId, boolean onCommit) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if ((status == STATUS_COMMITTED) != onCommit) {
+                    return;
+                }
+
+                if (!onCommit) {
+                    // the reference of the new file has been counted outside of the transaction
+                    template.updateFirst(Query.query(Criteria.where("_id").is(contentId)),
+                            new Update().inc("metadata.refCount", -1), Constants.CollectionNames.FILES);
+                }
+                deleteContentFile(contentId);
+            }
+        });
+    }
+
+    private GridFSFile findContentFile(long id, BookContent content) {
+        Query query = Query.query(Criteria.where("_id").is(id).and("contentId").exists(true));
+        query.fields().include("fileName").include("mimeType").include("size").include("contentId");
+        Document book = template.findOne(query, Document.class, Constants.CollectionNames.BOOKS);
+        if (book == null) {
+            throw new BookContentNotFoundException(id);
+        }
+
+        GridFSFile file = gridFsTemplate.findOne(Query.query(Criteria.where("_id").is(book.getObjectId("contentId"))));
+        if (file == null) {
+            throw new BookContentNotFoundException(id);
+        }
+
+        content.setId(id);
+        content.setFileName(book.getString("fileName"));
+        content.setMimeType(book.getString("mimeType"));
+        // the file length is the length of the stored, possibly compressed, bytes
+        Number size = (Number) book.get("size");
+        content.setSize((size != null) ? size.longValue() : file.getLength());
+        content.setHash((file.getMetadata() != null) ? file.getMetadata().getString("hash") : null);
+        return file;
+    }
+
+    private static String getEncoding(GridFSFile file) {
+        return (file.getMetadata() != null) ? file.getMetadata().getString("encoding") : null;
+    }
+
+    private void deleteContentFile(ObjectId contentId) {
+        // a concurrent put may have referred to the file again, so the check and the removal are atomic
+        DeleteResult deleteResult = template.remove(
+                Query.query(Criteria.where("_id").is(contentId).and("metadata.refCount").lte(0)),
+                Constants.CollectionNames.FILES);
+        if (deleteResult.getDeletedCount() > 0) {
+            template.remove(Query.query(Criteria.where("files_id").is(contentId)), Constants.CollectionNames.CHUNKS);
+        }
     }
 
 }
@@ -23,4 +23,19 @@ public class SequenceGenerator {
         return counter.getSeq();
     }
 
+    /**
+     * Returns the first of the given number of values generated at once.
+     */
+    public long generateSequences(String seqName, int count) {
+        DatabaseSequence counter = template.findAndModify(Query.query(Criteria.where("_id").is(seqName)),
+                new Update().inc("seq", count), FindAndModifyOptions.options().returnNew(true).upsert(true),
+                DatabaseSequence.class);
+        return counter.getSeq() - count + 1;
+    }
+
+    public long getSequence(String seqName) {
+        DatabaseSequence counter = template.findById(seqName, DatabaseSequence.class);
+        return (counter != null) ? counter.getSeq() : 0;
+    }
+
 }
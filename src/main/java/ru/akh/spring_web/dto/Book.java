@@ -10,7 +10,26 @@ public class Book {
         ID,
         TITLE,
         YEAR,
-        AUTHOR
+        AUTHOR;
+
+        /**
+         * Returns the value of the book the books are sorted by, ties are
+         * broken by the id.
+         */
+        public Object getValue(Book book) {
+            switch (this) {
+            case ID:
+                return book.getId();
+            case TITLE:
+                return book.getTitle();
+            case YEAR:
+                return book.getYear();
+            case AUTHOR:
+                return book.getAuthor().getName();
+            default:
+                throw new IllegalArgumentException("Unknown field value: " + this);
+            }
+        }
     }
 
     private Long id;
@@ -3,25 +3,55 @@ package ru.akh.spring_web.dto;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
 import javax.validation.constraints.Size;
+import javax.validation.groups.Default;
 
 public class BookContent {
 
-    @Min(1)
+    /**
+     * Validation group for content metadata, used when the bytes are passed
+     * separately as a stream.
+     */
+    public static interface Metadata {
+    }
+
+    @Min(value = 1, groups = { Default.class, Metadata.class })
     private long id;
 
-    @NotBlank
+    @NotBlank(groups = { Default.class, Metadata.class })
     private String fileName;
 
-    @NotBlank
+    @NotBlank(groups = { Default.class, Metadata.class })
     private String mimeType;
 
     @NotNull
     @Size(min = 1)
     private byte[] content;
 
+    @Min(value = 1, groups = Metadata.class)
     private long size;
 
+    /**
+     * SHA-256 of the content as a lowercase hex string. Content with the same
+     * hash is stored once.
+     */
+    @NotNull(groups = Metadata.class)
+    @Pattern(regexp = "[0-9a-f]{64}", groups = { Default.class, Metadata.class })
+    private String hash;
+
+    /**
+     * Content coding of the stored bytes, {@code null} when they are stored as
+     * they are. Set by the repository, see {@code ContentEncodings}.
+     */
+    private String encoding;
+
+    /**
+     * Length of the stored bytes, set by the repository together with the
+     * encoding when the content is read as it is stored, {@code 0} otherwise.
+     */
+    private long encodedSize;
+
     public long getId() {
         return id;
     }
@@ -62,9 +92,34 @@ public class BookContent {
         this.size = size;
     }
 
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    public long getEncodedSize() {
+        return encodedSize;
+    }
+
+    public void setEncodedSize(long encodedSize) {
+        this.encodedSize = encodedSize;
+    }
+
     @Override
     public String toString() {
-        return "BookContent [id=" + id + ", fileName=" + fileName + ", mimeType=" + mimeType + ", size=" + size + "]";
+        return "BookContent [id=" + id + ", fileName=" + fileName + ", mimeType=" + mimeType + ", size=" + size
+                + ", hash=" + hash + ", encoding=" + encoding + ", encodedSize=" + encodedSize + "]";
     }
 
 }
@@ -0,0 +1,225 @@
+package ru.akh.spring_web.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.dao.ContentHashes;
+import ru.akh.spring_web.dao.exception.BookException;
+import ru.akh.spring_web.dto.BookContent;
+
+/**
+ * Keeps the chunks of resumable uploads in temporary files until the upload is
+ * committed. Chunks are appended straight from the request to the file, so only
+ * a transfer buffer is held in memory. A session is only seen by the user who
+ * opened it, for the others it is not found. Sessions idle for longer than the
+ * timeout are removed with their files.
+ */
+@Component
+public class UploadSessions {
+
+    private static final String FILE_SUFFIX = ".part";
+
+    private static class Session {
+
+        private final String owner;
+
+        private final BookContent content;
+
+        private final Path path;
+
+        private long length;
+
+        private long lastAccessTime = System.currentTimeMillis();
+
+        private boolean closed;
+
+        Session(String owner, BookContent content, Path path) {
+            this.owner = owner;
+            this.content = content;
+            this.path = path;
+        }
+
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    private final Path directory;
+
+    private final long timeout;
+
+    public UploadSessions(@Value("${books.content.upload.directory:}") String directory,
+            @Value("${books.content.upload.timeout:1h}") Duration timeout) throws IOException {
+        if (StringUtils.hasText(directory)) {
+            this.directory = Files.createDirectories(Paths.get(directory));
+            // sessions do not survive a restart
+            deleteFiles(this.directory);
+        } else {
+            this.directory = Files.createTempDirectory("book-uploads");
+        }
+        this.timeout = timeout.toMillis();
+    }
+
+    /**
+     * Opens a session of the user for the content of the given size, returns
+     * its id.
+     */
+    public String create(String owner, long id, String fileName, String mimeType, long size) throws IOException {
+        if (size <= 0) {
+            throw new BookException("Empty file!");
+        }
+
+        BookContent content = new BookContent();
+        content.setId(id);
+        content.setFileName(fileName);
+        content.setMimeType(mimeType);
+        content.setSize(size);
+
+        String uploadId = UUID.randomUUID().toString();
+        Path path = Files.createFile(directory.resolve(uploadId + FILE_SUFFIX));
+        sessions.put(uploadId, new Session(owner, content, path));
+        return uploadId;
+    }
+
+    /**
+     * Writes the chunk at the offset and returns the uploaded length. A chunk
+     * may start before the uploaded length to retry a chunk whose response was
+     * lost, the rest of the upload is then discarded.
+     */
+    public long append(String owner, String uploadId, long offset, InputStream chunk) throws IOException {
+        Session session = getSession(owner, uploadId);
+        synchronized (session) {
+            checkOpen(uploadId, session);
+            if ((offset < 0) || (offset > session.length)) {
+                throw new BookException("Chunk offset " + offset + " does not match Upload[id=" + uploadId
+                        + "]'s length " + session.length);
+            }
+
+            long size = session.content.getSize();
+            try (FileChannel channel = FileChannel.open(session.path, StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+                // one byte more than expected, so an oversized upload is detected
+                long count = channel.transferFrom(Channels.newChannel(chunk), offset, size - offset + 1);
+                if (offset + count > size) {
+                    channel.truncate(offset);
+                    session.length = offset;
+                    throw new BookException("Upload[id=" + uploadId + "] exceeds the declared size " + size);
+                }
+                session.length = offset + count;
+            } finally {
+                session.lastAccessTime = System.currentTimeMillis();
+            }
+            return session.length;
+        }
+    }
+
+    public long getLength(String owner, String uploadId) {
+        Session session = getSession(owner, uploadId);
+        synchronized (session) {
+            checkOpen(uploadId, session);
+            session.lastAccessTime = System.currentTimeMillis();
+            return session.length;
+        }
+    }
+
+    /**
+     * Streams the complete upload into the repository and removes the session.
+     */
+    public void commit(String owner, String uploadId, BookRepository repository) throws IOException {
+        Session session = getSession(owner, uploadId);
+        synchronized (session) {
+            checkOpen(uploadId, session);
+            BookContent content = session.content;
+            if (session.length != content.getSize()) {
+                throw new BookException("Upload[id=" + uploadId + "] is incomplete: " + session.length + " of "
+                        + content.getSize() + " bytes");
+            }
+
+            try (InputStream stream = Files.newInputStream(session.path)) {
+                content.setHash(ContentHashes.hash(stream));
+            }
+
+            try (InputStream stream = Files.newInputStream(session.path)) {
+                repository.putContent(content, stream);
+            }
+
+            close(uploadId, session);
+        }
+    }
+
+    public void abort(String owner, String uploadId) {
+        Session session = getSession(owner, uploadId);
+        synchronized (session) {
+            checkOpen(uploadId, session);
+            close(uploadId, session);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${books.content.upload.cleanup-interval:PT1M}")
+    public void removeExpired() {
+        long expirationTime = System.currentTimeMillis() - timeout;
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            synchronized (session) {
+                if (!session.closed && (session.lastAccessTime < expirationTime)) {
+                    logger.debug("Upload[id={}] expired", entry.getKey());
+                    close(entry.getKey(), session);
+                }
+            }
+        }
+    }
+
+    private Session getSession(String owner, String uploadId) {
+        Session session = sessions.get(uploadId);
+        if ((session == null) || !session.owner.equals(owner)) {
+            throw new BookException("Upload[id=" + uploadId + "] not found");
+        }
+        return session;
+    }
+
+    private static void checkOpen(String uploadId, Session session) {
+        // the session may have been closed while waiting for its lock
+        if (session.closed) {
+            throw new BookException("Upload[id=" + uploadId + "] not found");
+        }
+    }
+
+    private void close(String uploadId, Session session) {
+        session.closed = true;
+        sessions.remove(uploadId);
+        try {
+            Files.deleteIfExists(session.path);
+        } catch (IOException e) {
+            logger.warn("Could not delete " + session.path, e);
+        }
+    }
+
+    private static void deleteFiles(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package ru.akh.spring_web.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import ru.akh.spring_web.Application;
+import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Reads books by id with and without the read-through cache, one put to every
+ * {@link #READS_PER_WRITE} reads, from the test database of the profile. The
+ * mongodb profile downloads the embedded MongoDB on the first run. Run the
+ * {@link #main(String[])} method or {@code org.openjdk.jmh.Main} with the test
+ * classpath, e.g. {@code BookCacheBenchmark -p profile=jdbc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+public class BookCacheBenchmark {
+
+    private static final int BOOKS = 1000;
+    private static final int AUTHORS = 100;
+    private static final int READS_PER_WRITE = 500;
+
+    @Configuration
+    @Profile("mongodb")
+    @ComponentScan("ru.akh.spring.boot.autoconfigure.mongo")
+    public static class MongoConfig {
+
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+
+        private final Random random = new Random();
+
+        private int reads;
+
+    }
+
+    @Param({ "jdbc", "mongodb" })
+    private String profile;
+
+    // the cache is off when it is empty
+    @Param({ "", "10000" })
+    private String cacheMaxSize;
+
+    private ConfigurableApplicationContext context;
+
+    private BookRepository repository;
+
+    private long[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SpringApplicationBuilder builder = new SpringApplicationBuilder(Application.class, MongoConfig.class)
+                .profiles(profile).web(WebApplicationType.NONE);
+        if (!cacheMaxSize.isEmpty()) {
+            builder.properties("books.cache.max-size=" + cacheMaxSize);
+        }
+        context = builder.run();
+        repository = context.getBean(BookRepository.class);
+
+        List<Book> books = new ArrayList<>(BOOKS);
+        for (int i = 0; i < BOOKS; i++) {
+            Author author = new Author();
+            author.setName("benchmarkAuthor" + (i % AUTHORS));
+
+            Book book = new Book();
+            book.setTitle("benchmarkTitle" + i);
+            book.setYear(2020);
+            book.setAuthor(author);
+            books.add(book);
+        }
+        ids = repository.putAll(books).stream().mapToLong(Long::longValue).toArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Book get(Reader reader) {
+        long id = ids[reader.random.nextInt(ids.length)];
+        if (++reader.reads % READS_PER_WRITE == 0) {
+            // the same book is put again, which invalidates it and the books of its author
+            repository.put(repository.get(id));
+        }
+        return repository.get(id);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BookCacheBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
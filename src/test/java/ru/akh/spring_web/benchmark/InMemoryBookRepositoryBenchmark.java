@@ -0,0 +1,118 @@
+package ru.akh.spring_web.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.FileSystemUtils;
+
+import ru.akh.spring_web.dao.BookJournal;
+import ru.akh.spring_web.dao.InMemoryBookRepository;
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Puts a book of its own from every thread into the in-memory repository,
+ * with and without the journal, so the puts of different books should scale
+ * with the threads. Run the {@link #main(String[])} method or
+ * {@code org.openjdk.jmh.Main} with the test classpath, e.g.
+ * {@code InMemoryBookRepositoryBenchmark -t 1} to compare with a single thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+public class InMemoryBookRepositoryBenchmark {
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    @State(Scope.Thread)
+    public static class Writer {
+
+        private Book book;
+
+        private int year;
+
+        @Setup(Level.Trial)
+        public void setUp(InMemoryBookRepositoryBenchmark benchmark) {
+            Author author = new Author();
+            author.setName("benchmarkAuthor");
+
+            book = new Book();
+            book.setTitle("benchmarkTitle");
+            book.setYear(year);
+            book.setAuthor(author);
+            benchmark.repository.put(book);
+        }
+
+    }
+
+    @Param({ "false", "true" })
+    private boolean journaled;
+
+    private Path directory;
+
+    private BookJournal journal;
+
+    private InMemoryBookRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (journaled) {
+            directory = Files.createTempDirectory("books-journal");
+            journal = new BookJournal(directory, SEGMENT_SIZE);
+        }
+        repository = new InMemoryBookRepository(journal);
+    }
+
+    // the segments written by the iteration are replaced by a snapshot, so they do not fill the disk
+    @TearDown(Level.Iteration)
+    public void compactJournal() throws IOException {
+        if (journal != null) {
+            journal.flush();
+            journal.snapshot();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (journal != null) {
+            journal.close();
+            FileSystemUtils.deleteRecursively(directory);
+        }
+    }
+
+    @Benchmark
+    public long put(Writer writer) {
+        // the year is the only change, so the title and the author are kept
+        writer.book.setYear(++writer.year);
+        return repository.put(writer.book);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(InMemoryBookRepositoryBenchmark.class.getSimpleName()).build())
+                .run();
+    }
+
+}
@@ -0,0 +1,92 @@
+package ru.akh.spring_web.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ru.akh.spring_web.dao.InMemoryBookRepository;
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Reads the top books by every field from in-memory catalogs of growing
+ * sizes, the latency should stay flat since the indexes are walked from their
+ * first entry instead of sorting the catalog. The largest catalog needs a
+ * heap of a few gigabytes. Run the {@link #main(String[])} method or
+ * {@code org.openjdk.jmh.Main} with the test classpath, e.g.
+ * {@code TopBooksBenchmark -p books=10000,100000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TopBooksBenchmark {
+
+    private static final int AUTHORS = 1000;
+    private static final int BATCH_SIZE = 10000;
+    private static final int LIMIT = 10;
+
+    @Param({ "10000", "100000", "1000000", "10000000" })
+    private int books;
+
+    @Param({ "ID", "TITLE", "YEAR", "AUTHOR" })
+    private Book.Field field;
+
+    private InMemoryBookRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        repository = new InMemoryBookRepository();
+
+        // the books are put in random order of every field but the id
+        Random random = new Random(0);
+        List<Book> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < books; i++) {
+            Author author = new Author();
+            author.setName("benchmarkAuthor" + random.nextInt(AUTHORS));
+
+            Book book = new Book();
+            book.setTitle("benchmarkTitle" + random.nextInt());
+            book.setYear(1900 + random.nextInt(120));
+            book.setAuthor(author);
+            batch.add(book);
+
+            if (batch.size() == BATCH_SIZE) {
+                repository.putAll(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            repository.putAll(batch);
+        }
+    }
+
+    @Benchmark
+    public List<Book> getTopBooks() {
+        return repository.getTopBooks(field, LIMIT);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TopBooksBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -1,9 +1,16 @@
 package ru.akh.spring_web.controller;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
@@ -17,7 +24,12 @@ import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequ
 import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.springframework.util.StreamUtils;
 
+import ru.akh.spring_web.dao.BookContentCallback;
+import ru.akh.spring_web.dao.ContentEncodings;
+import ru.akh.spring_web.dao.ContentHashes;
+import ru.akh.spring_web.dao.FileContentInputStream;
 import ru.akh.spring_web.dto.BookContent;
 
 @WebMvcTest(BookContentController.class)
@@ -27,36 +39,233 @@ public class BookContentControllerTest extends AbstractControllerTest {
     @WithReader
     public void testDownload() throws Exception {
         long id = 1;
-
-        BookContent content = new BookContent();
-        content.setId(id);
-        content.setFileName("test.txt");
-        content.setMimeType(MediaType.TEXT_PLAIN_VALUE);
-        content.setContent("test content".getBytes(StandardCharsets.UTF_8));
-        Mockito.when(repository.getContent(id)).thenReturn(content);
+        BookContent content = mockGetContent(id, "test.txt", "test content");
 
         performDownload(id)
                 .andExpect(MockMvcResultMatchers.status().isOk())
                 .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_DISPOSITION,
                         ContentDisposition.attachment().filename(content.getFileName()).build().toString()))
+                .andExpect(MockMvcResultMatchers.header().longValue(HttpHeaders.CONTENT_LENGTH, content.getSize()))
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, "\"" + content.getHash() + "\""))
                 .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.TEXT_PLAIN))
                 .andExpect(MockMvcResultMatchers.content().bytes(content.getContent()));
     }
 
+    @Test
+    @WithReader
+    public void testDownloadRange() throws Exception {
+        long id = 1;
+        mockGetContent(id, "test.txt", "test content");
+
+        performDownload(id, "bytes=5-11")
+                .andExpect(MockMvcResultMatchers.status().isPartialContent())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_RANGE, "bytes 5-11/12"))
+                .andExpect(MockMvcResultMatchers.header().longValue(HttpHeaders.CONTENT_LENGTH, 7))
+                .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.TEXT_PLAIN))
+                .andExpect(MockMvcResultMatchers.content().string("content"));
+
+        Mockito.verify(repository).getContent(Mockito.eq(id), Mockito.eq(5L), Mockito.eq(7L), Mockito.any());
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadSuffixRange() throws Exception {
+        long id = 1;
+        mockGetContent(id, "test.txt", "test content");
+
+        performDownload(id, "bytes=-4")
+                .andExpect(MockMvcResultMatchers.status().isPartialContent())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_RANGE, "bytes 8-11/12"))
+                .andExpect(MockMvcResultMatchers.content().string("tent"));
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadMultipleRanges() throws Exception {
+        long id = 1;
+        mockGetContent(id, "test.txt", "test content");
+
+        String body = performDownload(id, "bytes=0-3,5-")
+                .andExpect(MockMvcResultMatchers.status().isPartialContent())
+                .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith("multipart/byteranges"))
+                .andReturn().getResponse().getContentAsString();
+
+        String boundary = body.substring(4, body.indexOf("\r\n", 4));
+        Assertions.assertEquals("\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 0-3/12\r\n"
+                + "\r\n"
+                + "test"
+                + "\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 5-11/12\r\n"
+                + "\r\n"
+                + "content"
+                + "\r\n--" + boundary + "--", body, "body");
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadUnsatisfiableRange() throws Exception {
+        long id = 1;
+        mockGetContent(id, "test.txt", "test content");
+
+        performDownload(id, "bytes=12-")
+                .andExpect(MockMvcResultMatchers.status().isRequestedRangeNotSatisfiable())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_RANGE, "bytes */12"));
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadRangeWithIfRange() throws Exception {
+        long id = 1;
+        mockGetContent(id, "test.txt", "test content");
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/download/{id}", id).accept(MediaType.ALL)
+                .header(HttpHeaders.RANGE, "bytes=5-11").header(HttpHeaders.IF_RANGE, "\"unknown\""))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().string("test content"));
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadRangeWithMatchingIfRange() throws Exception {
+        long id = 1;
+        BookContent content = mockGetContent(id, "test.txt", "test content");
+        String eTag = "\"" + content.getHash() + "\"";
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/download/{id}", id).accept(MediaType.ALL)
+                .header(HttpHeaders.RANGE, "bytes=5-11").header(HttpHeaders.IF_RANGE, eTag))
+                .andExpect(MockMvcResultMatchers.status().isPartialContent())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_RANGE, "bytes 5-11/12"))
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, eTag))
+                .andExpect(MockMvcResultMatchers.content().string("content"));
+
+        // a weak ETag never matches
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/download/{id}", id).accept(MediaType.ALL)
+                .header(HttpHeaders.RANGE, "bytes=5-11").header(HttpHeaders.IF_RANGE, "W/" + eTag))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().string("test content"));
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadFile(@TempDir Path directory) throws Exception {
+        long id = 1;
+        mockGetFileContent(id, directory.resolve("test.txt"), "test content");
+
+        performDownload(id)
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().longValue(HttpHeaders.CONTENT_LENGTH, 12))
+                .andExpect(MockMvcResultMatchers.content().string("test content"));
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadFileWithSendfile(@TempDir Path directory) throws Exception {
+        long id = 1;
+        Path path = directory.resolve("test.txt");
+        mockGetFileContent(id, path, "test content");
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/download/{id}", id).accept(MediaType.ALL)
+                .header(HttpHeaders.RANGE, "bytes=5-11").requestAttr("org.apache.tomcat.sendfile.support", true))
+                .andExpect(MockMvcResultMatchers.status().isPartialContent())
+                .andExpect(MockMvcResultMatchers.header().longValue(HttpHeaders.CONTENT_LENGTH, 7))
+                .andExpect(MockMvcResultMatchers.request().attribute("org.apache.tomcat.sendfile.filename",
+                        path.toString()))
+                .andExpect(MockMvcResultMatchers.request().attribute("org.apache.tomcat.sendfile.start", 5L))
+                .andExpect(MockMvcResultMatchers.request().attribute("org.apache.tomcat.sendfile.end", 12L))
+                .andExpect(MockMvcResultMatchers.content().string(""));
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadHead() throws Exception {
+        long id = 1;
+        BookContent content = mockGetContent(id, "test.txt", "test content");
+
+        mockMvc.perform(MockMvcRequestBuilders.head("/books/download/{id}", id).accept(MediaType.ALL))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_DISPOSITION,
+                        ContentDisposition.attachment().filename(content.getFileName()).build().toString()))
+                .andExpect(MockMvcResultMatchers.header().longValue(HttpHeaders.CONTENT_LENGTH, content.getSize()))
+                .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.TEXT_PLAIN))
+                .andExpect(MockMvcResultMatchers.content().string(""));
+
+        Mockito.verify(repository).getContentInfo(id);
+        Mockito.verify(repository, Mockito.never()).getEncodedContent(Mockito.anyLong(), Mockito.any());
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadHeadEncoded() throws Exception {
+        long id = 1;
+        mockGetEncodedContent(id, "test.txt", "test content");
+
+        mockMvc.perform(MockMvcRequestBuilders.head("/books/download/{id}", id).accept(MediaType.ALL)
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_ENCODING, ContentEncodings.GZIP))
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING));
+
+        Mockito.verify(repository, Mockito.never()).getEncodedContent(Mockito.anyLong(), Mockito.any());
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadEncoded() throws Exception {
+        long id = 1;
+        byte[] encodedContent = mockGetEncodedContent(id, "test.txt", "test content");
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/download/{id}", id).accept(MediaType.ALL)
+                .header(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.8"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.CONTENT_ENCODING, ContentEncodings.GZIP))
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+                .andExpect(MockMvcResultMatchers.header().longValue(HttpHeaders.CONTENT_LENGTH,
+                        encodedContent.length))
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG,
+                        "\"" + ContentHashes.hash("test content".getBytes(StandardCharsets.UTF_8)) + "-gzip\""))
+                .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.TEXT_PLAIN))
+                .andExpect(MockMvcResultMatchers.content().bytes(encodedContent));
+    }
+
+    @Test
+    @WithReader
+    public void testDownloadEncodedWithoutAcceptEncoding() throws Exception {
+        long id = 1;
+        mockGetEncodedContent(id, "test.txt", "test content");
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/download/{id}", id).accept(MediaType.ALL)
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, *"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+                .andExpect(MockMvcResultMatchers.header().longValue(HttpHeaders.CONTENT_LENGTH, 12))
+                .andExpect(MockMvcResultMatchers.content().string("test content"));
+    }
+
     @Test
     @WithWriter
     public void testUpload() throws Exception {
+        ByteArrayOutputStream uploadedContent = new ByteArrayOutputStream();
+        Mockito.doAnswer(invocation -> StreamUtils.copy(invocation.<InputStream> getArgument(1), uploadedContent))
+                .when(repository).putContent(Mockito.any(), Mockito.any(InputStream.class));
+
         performUpload(2, "/c:\\test.txt", "test content")
                 .andExpect(MockMvcResultMatchers.status().isOk());
 
         ArgumentCaptor<BookContent> captor = ArgumentCaptor.forClass(BookContent.class);
-        Mockito.verify(repository).putContent(captor.capture());
+        Mockito.verify(repository).putContent(captor.capture(), Mockito.any(InputStream.class));
         BookContent content = captor.getValue();
+        byte[] expectedContent = "test content".getBytes(StandardCharsets.UTF_8);
         Assertions.assertEquals(2, content.getId(), "content.id");
         Assertions.assertEquals("test.txt", content.getFileName(), "content.fileName");
         Assertions.assertEquals(MediaType.TEXT_PLAIN_VALUE, content.getMimeType(), "content.mimeType");
-        Assertions.assertArrayEquals("test content".getBytes(StandardCharsets.UTF_8), content.getContent(),
-                "content.content");
+        Assertions.assertEquals(expectedContent.length, content.getSize(), "content.size");
+        Assertions.assertEquals(ContentHashes.hash(expectedContent), content.getHash(), "content.hash");
+        Assertions.assertArrayEquals(expectedContent, uploadedContent.toByteArray(), "content.content");
     }
 
     @Test
@@ -87,10 +296,86 @@ public class BookContentControllerTest extends AbstractControllerTest {
                 .andExpect(MockMvcResultMatchers.status().isForbidden());
     }
 
+    private BookContent mockGetContent(long id, String fileName, String content) throws Exception {
+        BookContent bookContent = new BookContent();
+        bookContent.setId(id);
+        bookContent.setFileName(fileName);
+        bookContent.setMimeType(MediaType.TEXT_PLAIN_VALUE);
+        bookContent.setContent(content.getBytes(StandardCharsets.UTF_8));
+        bookContent.setSize(bookContent.getContent().length);
+        bookContent.setHash(ContentHashes.hash(bookContent.getContent()));
+
+        Mockito.when(repository.getContent(Mockito.eq(id), Mockito.any()))
+                .thenAnswer(invocation -> invocation.<BookContentCallback<?>> getArgument(1)
+                        .doWithContent(bookContent, new ByteArrayInputStream(bookContent.getContent())));
+        Mockito.when(repository.getEncodedContent(Mockito.eq(id), Mockito.any()))
+                .thenAnswer(invocation -> invocation.<BookContentCallback<?>> getArgument(1)
+                        .doWithContent(bookContent, new ByteArrayInputStream(bookContent.getContent())));
+        Mockito.when(repository.getContentInfo(id)).thenReturn(bookContent);
+        Mockito.when(repository.getContent(Mockito.eq(id), Mockito.anyLong(), Mockito.anyLong(), Mockito.any()))
+                .thenAnswer(invocation -> invocation.<BookContentCallback<?>> getArgument(3)
+                        .doWithContent(bookContent, new ByteArrayInputStream(bookContent.getContent(),
+                                invocation.<Long> getArgument(1).intValue(),
+                                invocation.<Long> getArgument(2).intValue())));
+        return bookContent;
+    }
+
+    private byte[] mockGetEncodedContent(long id, String fileName, String content) throws Exception {
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream encodedContent = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(encodedContent)) {
+            out.write(contentBytes);
+        }
+
+        BookContent bookContent = new BookContent();
+        bookContent.setId(id);
+        bookContent.setFileName(fileName);
+        bookContent.setMimeType(MediaType.TEXT_PLAIN_VALUE);
+        bookContent.setSize(contentBytes.length);
+        bookContent.setHash(ContentHashes.hash(contentBytes));
+        bookContent.setEncoding(ContentEncodings.GZIP);
+
+        byte[] encodedBytes = encodedContent.toByteArray();
+        Mockito.when(repository.getEncodedContent(Mockito.eq(id), Mockito.any())).thenAnswer(invocation -> {
+            // the length of the stored bytes is set when they are read, the content info does not hold it
+            bookContent.setEncodedSize(encodedBytes.length);
+            return invocation.<BookContentCallback<?>> getArgument(1).doWithContent(bookContent,
+                    new ByteArrayInputStream(encodedBytes));
+        });
+        Mockito.when(repository.getContentInfo(id)).thenReturn(bookContent);
+        return encodedBytes;
+    }
+
+    private void mockGetFileContent(long id, Path path, String content) throws Exception {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        BookContent bookContent = new BookContent();
+        bookContent.setId(id);
+        bookContent.setFileName(path.getFileName().toString());
+        bookContent.setMimeType(MediaType.TEXT_PLAIN_VALUE);
+        bookContent.setSize(Files.size(path));
+
+        Mockito.when(repository.getContent(Mockito.eq(id), Mockito.any()))
+                .thenAnswer(invocation -> invocation.<BookContentCallback<?>> getArgument(1)
+                        .doWithContent(bookContent, new FileContentInputStream(path, 0, Long.MAX_VALUE)));
+        Mockito.when(repository.getEncodedContent(Mockito.eq(id), Mockito.any()))
+                .thenAnswer(invocation -> invocation.<BookContentCallback<?>> getArgument(1)
+                        .doWithContent(bookContent, new FileContentInputStream(path, 0, Long.MAX_VALUE)));
+        Mockito.when(repository.getContentInfo(id)).thenReturn(bookContent);
+        Mockito.when(repository.getContent(Mockito.eq(id), Mockito.anyLong(), Mockito.anyLong(), Mockito.any()))
+                .thenAnswer(invocation -> invocation.<BookContentCallback<?>> getArgument(3)
+                        .doWithContent(bookContent, new FileContentInputStream(path,
+                                invocation.<Long> getArgument(1), invocation.<Long> getArgument(2))));
+    }
+
     private ResultActions performDownload(long id) throws Exception {
         return mockMvc.perform(MockMvcRequestBuilders.get("/books/download/{id}", id).accept(MediaType.ALL));
     }
 
+    private ResultActions performDownload(long id, String range) throws Exception {
+        return mockMvc.perform(MockMvcRequestBuilders.get("/books/download/{id}", id).accept(MediaType.ALL)
+                .header(HttpHeaders.RANGE, range));
+    }
+
     private ResultActions performUpload(long id, String fileName, String content) throws Exception {
         return mockMvc.perform(MockMvcRequestBuilders.multipart("/books/upload")
                 .part(new MockPart("id", String.valueOf(id).getBytes(StandardCharsets.UTF_8)))
@@ -1,10 +1,16 @@
 package ru.akh.spring_web.controller;
 
 import java.util.Arrays;
+import java.util.List;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.security.test.context.support.WithAnonymousUser;
 import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
@@ -12,12 +18,19 @@ import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
+import ru.akh.spring_web.dao.BookCallback;
+import ru.akh.spring_web.dao.TitleIndex;
 import ru.akh.spring_web.dto.Author;
 import ru.akh.spring_web.dto.Book;
+import ru.akh.spring_web.dto.BookContent;
 
 @WebMvcTest(BookController.class)
+@Import(JsonResponseCache.class)
 public class BookControllerTest extends AbstractControllerTest {
 
+    @MockBean
+    private TitleIndex titleIndex;
+
     @Test
     @WithReader
     public void testGetBook() throws Exception {
@@ -26,9 +39,11 @@ public class BookControllerTest extends AbstractControllerTest {
         Book book = createBook(id, "title1", 2021, 2L, "name1");
         Author author = book.getAuthor();
         Mockito.when(repository.get(id)).thenReturn(book);
+        Mockito.when(repository.getVersion(id)).thenReturn(5L);
 
         performGetBook(id)
                 .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, "\"5\""))
                 .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
                 .andExpect(MockMvcResultMatchers.jsonPath("$.id").value(id))
                 .andExpect(MockMvcResultMatchers.jsonPath("$.title").value(book.getTitle()))
@@ -37,6 +52,104 @@ public class BookControllerTest extends AbstractControllerTest {
                 .andExpect(MockMvcResultMatchers.jsonPath("$.author.name").value(author.getName()));
     }
 
+    @Test
+    @WithReader
+    public void testGetNotModifiedBook() throws Exception {
+        long id = 1;
+        Mockito.when(repository.getVersion(id)).thenReturn(5L);
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/{id}", id).accept(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.IF_NONE_MATCH, "\"5\""))
+                .andExpect(MockMvcResultMatchers.status().isNotModified())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, "\"5\""))
+                .andExpect(MockMvcResultMatchers.content().bytes(new byte[0]));
+        Mockito.verify(repository, Mockito.never()).get(id);
+    }
+
+    @Test
+    @WithReader
+    public void testGetModifiedBook() throws Exception {
+        long id = 1;
+        Mockito.when(repository.get(id)).thenReturn(createBook(id, "title1", 2021, 2L, "name1"));
+        Mockito.when(repository.getVersion(id)).thenReturn(6L);
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/{id}", id).accept(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.IF_NONE_MATCH, "\"5\""))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, "\"6\""))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.id").value(id));
+    }
+
+    @Test
+    @WithReader
+    public void testGetCachedBook() throws Exception {
+        long id = 3;
+        Mockito.when(repository.get(id)).thenReturn(createBook(id, "title3", 2021, 2L, "name2"));
+        Mockito.when(repository.getVersion(id)).thenReturn(8L);
+
+        for (int i = 0; i < 2; i++) {
+            performGetBook(id)
+                    .andExpect(MockMvcResultMatchers.status().isOk())
+                    .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                    .andExpect(MockMvcResultMatchers.jsonPath("$.title").value("title3"));
+        }
+        Mockito.verify(repository, Mockito.times(1)).get(id);
+
+        Mockito.when(repository.get(id)).thenReturn(createBook(id, "title3_2", 2021, 2L, "name2"));
+        Mockito.when(repository.getVersion(id)).thenReturn(9L);
+        performGetBook(id)
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.title").value("title3_2"));
+    }
+
+    @Test
+    @WithReader
+    public void testGetContentInfo() throws Exception {
+        long id = 1;
+
+        BookContent content = new BookContent();
+        content.setId(id);
+        content.setFileName("test.txt");
+        content.setMimeType(MediaType.TEXT_PLAIN_VALUE);
+        content.setSize(12);
+        Mockito.when(repository.getContentInfo(id)).thenReturn(content);
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/{id}/content-info", id).accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.id").value(id))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.fileName").value(content.getFileName()))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.mimeType").value(content.getMimeType()))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.size").value(content.getSize()));
+    }
+
+    @Test
+    @WithReader
+    public void testGetBooks() throws Exception {
+        Mockito.when(repository.getCatalogVersion()).thenReturn(3L);
+        Mockito.when(repository.getAll(Arrays.asList(2L, 5L, 1L)))
+                .thenReturn(Arrays.asList(createBook(2L, "title2", 2022, 1L, "name1"),
+                        createBook(1L, "title1", 2021, 1L, "name1")));
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books").queryParam("ids", "2,5,1,2")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, "\"3\""))
+                .andExpect(MockMvcResultMatchers.header().string(BookController.MISSING_IDS_HEADER, "5"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(2))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].id").value(2))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[1].id").value(1));
+    }
+
+    @Test
+    @WithReader
+    public void testGetBooksWithInvalidIds() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/books").queryParam("ids", "1,x")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+        Mockito.verify(repository, Mockito.never()).getAll(Mockito.any());
+    }
+
     @Test
     @WithWriter
     public void testPutBook() throws Exception {
@@ -48,6 +161,48 @@ public class BookControllerTest extends AbstractControllerTest {
                 .andExpect(MockMvcResultMatchers.content().string("1"));
     }
 
+    @Test
+    @WithWriter
+    public void testPutBooks() throws Exception {
+        Mockito.when(repository.putAll(Mockito.any())).thenReturn(Arrays.asList(1L, 19L));
+
+        String book1 = "{ \"id\": 1, \"title\": \"title1\", \"year\": 2021, "
+                + "\"author\": { \"id\": 1, \"name\": \"name1\" } }";
+        String book2 = "{ \"title\": \"title2\", \"year\": 2022, \"author\": { \"name\": \"name2\" } }";
+        performPutBooks(MediaType.APPLICATION_JSON, "[" + book1 + ", " + book2 + "]")
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.TEXT_PLAIN))
+                .andExpect(MockMvcResultMatchers.content().string("1\n19\n"));
+        performPutBooks(MediaType.APPLICATION_NDJSON, book1 + "\n" + book2 + "\n")
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().string("1\n19\n"));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Book>> books = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(repository, Mockito.times(2)).putAll(books.capture());
+        for (List<Book> putBooks : books.getAllValues()) {
+            Assertions.assertEquals(2, putBooks.size(), "books.size");
+            Assertions.assertEquals("title1", putBooks.get(0).getTitle(), "books[0].title");
+            Assertions.assertNull(putBooks.get(1).getId(), "books[1].id");
+            Assertions.assertEquals("name2", putBooks.get(1).getAuthor().getName(), "books[1].author.name");
+        }
+    }
+
+    @Test
+    @WithWriter
+    public void testPutInvalidBooks() throws Exception {
+        performPutBooks(MediaType.APPLICATION_JSON, "[{ \"title\": ")
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+        Mockito.verify(repository, Mockito.never()).putAll(Mockito.any());
+    }
+
+    @Test
+    @WithReader
+    public void testPutBooksWithWrongRole() throws Exception {
+        performPutBooks(MediaType.APPLICATION_JSON, "[]")
+                .andExpect(MockMvcResultMatchers.status().isForbidden());
+    }
+
     @Test
     @WithReader
     public void testGetTopBooks() throws Exception {
@@ -72,6 +227,79 @@ public class BookControllerTest extends AbstractControllerTest {
                 .andExpect(MockMvcResultMatchers.jsonPath("$[1].author.name").value(book2.getAuthor().getName()));
     }
 
+    @Test
+    @WithReader
+    public void testGetCachedTopBooks() throws Exception {
+        Mockito.when(repository.getCatalogVersion()).thenReturn(10L);
+        Mockito.when(repository.getTopBooks(Book.Field.TITLE, 1))
+                .thenReturn(Arrays.asList(createBook(1L, "title1", 2021, 1L, "name1")));
+
+        for (int i = 0; i < 2; i++) {
+            performGetTopBooks(Book.Field.TITLE, 1)
+                    .andExpect(MockMvcResultMatchers.status().isOk())
+                    .andExpect(MockMvcResultMatchers.jsonPath("$[0].title").value("title1"));
+        }
+        Mockito.verify(repository, Mockito.times(1)).getTopBooks(Book.Field.TITLE, 1);
+
+        Mockito.when(repository.getCatalogVersion()).thenReturn(11L);
+        Mockito.when(repository.getTopBooks(Book.Field.TITLE, 1))
+                .thenReturn(Arrays.asList(createBook(1L, "title1_2", 2021, 1L, "name1")));
+        performGetTopBooks(Book.Field.TITLE, 1)
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].title").value("title1_2"));
+    }
+
+    @Test
+    @WithReader
+    public void testGetTopBooksAfter() throws Exception {
+        Book book1 = createBook(1L, "title1", 1982, 1L, "name1");
+        Book book2 = createBook(8L, "title: 2", 1982, 2L, "name2");
+        Mockito.when(repository.getTopBooks(Book.Field.TITLE, 2)).thenReturn(Arrays.asList(book1, book2));
+
+        String link = performGetTopBooks(Book.Field.TITLE, 2)
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().exists(HttpHeaders.LINK))
+                .andReturn().getResponse().getHeader(HttpHeaders.LINK);
+        String after = link.substring(link.indexOf("after=") + "after=".length(), link.indexOf('>'));
+
+        Mockito.when(repository.getTopBooks(Mockito.eq(Book.Field.TITLE), Mockito.eq(2), Mockito.any(Book.class)))
+                .thenReturn(Arrays.asList(createBook(3L, "title3", 2021, 1L, "name1")));
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/").queryParam("field", String.valueOf(Book.Field.TITLE))
+                .queryParam("top", "2").queryParam("after", after).accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().doesNotExist(HttpHeaders.LINK))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(1))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].id").value(3));
+
+        ArgumentCaptor<Book> afterBook = ArgumentCaptor.forClass(Book.class);
+        Mockito.verify(repository).getTopBooks(Mockito.eq(Book.Field.TITLE), Mockito.eq(2), afterBook.capture());
+        Assertions.assertEquals(book2.getId(), afterBook.getValue().getId(), "after.id");
+        Assertions.assertEquals(book2.getTitle(), afterBook.getValue().getTitle(), "after.title");
+    }
+
+    @Test
+    @WithReader
+    public void testGetTopBooksAfterInvalidCursor() throws Exception {
+        for (String after : new String[] { "!", "VElUTEU6MTp0", "SUQ6eDox" }) {
+            mockMvc.perform(MockMvcRequestBuilders.get("/books/").queryParam("field", String.valueOf(Book.Field.ID))
+                    .queryParam("top", "2").queryParam("after", after).accept(MediaType.APPLICATION_JSON))
+                    .andExpect(MockMvcResultMatchers.status().isBadRequest());
+        }
+        Mockito.verify(repository, Mockito.never()).getTopBooks(Mockito.any(), Mockito.anyInt(), Mockito.any());
+    }
+
+    @Test
+    @WithReader
+    public void testGetNotModifiedTopBooks() throws Exception {
+        Mockito.when(repository.getCatalogVersion()).thenReturn(7L);
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/").queryParam("field", String.valueOf(Book.Field.ID))
+                .queryParam("top", "2").accept(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.IF_NONE_MATCH, "\"7\""))
+                .andExpect(MockMvcResultMatchers.status().isNotModified());
+        Mockito.verify(repository, Mockito.never()).getTopBooks(Mockito.any(), Mockito.anyInt());
+    }
+
     @Test
     @WithReader
     public void testGetBooksByAuthor() throws Exception {
@@ -96,6 +324,56 @@ public class BookControllerTest extends AbstractControllerTest {
                 .andExpect(MockMvcResultMatchers.jsonPath("$[1].author.name").value(book2.getAuthor().getName()));
     }
 
+    @Test
+    @WithReader
+    public void testExportBooks() throws Exception {
+        Mockito.doAnswer(invocation -> {
+            BookCallback callback = invocation.getArgument(0);
+            callback.doWithBook(createBook(1L, "title1", 2021, 1L, "name1"));
+            callback.doWithBook(createBook(2L, "title2", 2022, 2L, "name2"));
+            return null;
+        }).when(repository).exportBooks(Mockito.any());
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/export").accept(MediaType.APPLICATION_NDJSON))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andExpect(MockMvcResultMatchers.content().string(
+                        "{\"id\":1,\"title\":\"title1\",\"year\":2021,\"author\":{\"id\":1,\"name\":\"name1\"}}\n"
+                                + "{\"id\":2,\"title\":\"title2\",\"year\":2022,\"author\":{\"id\":2,\"name\":\"name2\"}}\n"));
+    }
+
+    @Test
+    @WithWriter
+    public void testExportBooksWithWrongRole() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/export").accept(MediaType.APPLICATION_NDJSON))
+                .andExpect(MockMvcResultMatchers.status().isForbidden());
+    }
+
+    @Test
+    @WithReader
+    public void testSearchBooks() throws Exception {
+        Mockito.when(titleIndex.search("dark tow", 20)).thenReturn(Arrays.asList(5L, 2L));
+        Mockito.when(repository.getAll(Arrays.asList(5L, 2L)))
+                .thenReturn(Arrays.asList(createBook(5L, "The Dark Tower", 1982, 1L, "name1"),
+                        createBook(2L, "The Dark Tower II", 1987, 1L, "name1")));
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/search").queryParam("q", "dark tow")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(2))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].id").value(5))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[1].id").value(2));
+    }
+
+    @Test
+    @WithReader
+    public void testSearchBooksWithInvalidLimit() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/books/search").queryParam("q", "dark").queryParam("limit", "0")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+        Mockito.verify(titleIndex, Mockito.never()).search(Mockito.any(), Mockito.anyInt());
+    }
+
     @Test
     @WithAnonymousUser
     public void testGetWithWrongUser() throws Exception {
@@ -167,6 +445,12 @@ public class BookControllerTest extends AbstractControllerTest {
                         .contentType(MediaType.APPLICATION_JSON).content(jsonBook));
     }
 
+    private ResultActions performPutBooks(MediaType contentType, String content) throws Exception {
+        return mockMvc.perform(
+                MockMvcRequestBuilders.put("/books/batch").with(SecurityMockMvcRequestPostProcessors.csrf())
+                        .contentType(contentType).content(content));
+    }
+
     private ResultActions performGetTopBooks(Book.Field field, int limit) throws Exception {
         return mockMvc.perform(MockMvcRequestBuilders.get("/books/").queryParam("field", String.valueOf(field))
                 .queryParam("top", String.valueOf(limit)).accept(MediaType.APPLICATION_JSON));
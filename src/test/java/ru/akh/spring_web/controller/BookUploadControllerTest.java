@@ -0,0 +1,202 @@
+package ru.akh.spring_web.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.MediaType;
+import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.RequestPostProcessor;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.springframework.util.StreamUtils;
+
+import ru.akh.spring_web.dao.ContentHashes;
+import ru.akh.spring_web.dto.BookContent;
+import ru.akh.spring_web.upload.UploadSessions;
+
+// sessions expire as soon as they are idle, but are only removed when the test asks for it
+@WebMvcTest(controllers = BookUploadController.class, properties = { "books.content.upload.timeout=0s",
+        "books.content.upload.cleanup-interval=P1D" })
+@Import(UploadSessions.class)
+public class BookUploadControllerTest extends AbstractControllerTest {
+
+    @Autowired
+    private UploadSessions uploadSessions;
+
+    @Test
+    @WithWriter
+    public void testUpload() throws Exception {
+        ByteArrayOutputStream uploadedContent = new ByteArrayOutputStream();
+        Mockito.doAnswer(invocation -> StreamUtils.copy(invocation.<InputStream> getArgument(1), uploadedContent))
+                .when(repository).putContent(Mockito.any(), Mockito.any(InputStream.class));
+
+        byte[] expectedContent = "test content".getBytes(StandardCharsets.UTF_8);
+        String uploadId = createUpload(2, "test.txt", expectedContent.length);
+
+        performPutChunk(uploadId, 0, Arrays.copyOfRange(expectedContent, 0, 5))
+                .andExpect(MockMvcResultMatchers.content().string("5"));
+        performPutChunk(uploadId, 5, Arrays.copyOfRange(expectedContent, 5, 12))
+                .andExpect(MockMvcResultMatchers.content().string("12"));
+        performGetUploadedLength(uploadId)
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().string("12"));
+        performCommit(uploadId)
+                .andExpect(MockMvcResultMatchers.status().isOk());
+
+        ArgumentCaptor<BookContent> captor = ArgumentCaptor.forClass(BookContent.class);
+        Mockito.verify(repository).putContent(captor.capture(), Mockito.any(InputStream.class));
+        BookContent content = captor.getValue();
+        Assertions.assertEquals(2, content.getId(), "content.id");
+        Assertions.assertEquals("test.txt", content.getFileName(), "content.fileName");
+        Assertions.assertEquals(MediaType.TEXT_PLAIN_VALUE, content.getMimeType(), "content.mimeType");
+        Assertions.assertEquals(expectedContent.length, content.getSize(), "content.size");
+        Assertions.assertEquals(ContentHashes.hash(expectedContent), content.getHash(), "content.hash");
+        Assertions.assertArrayEquals(expectedContent, uploadedContent.toByteArray(), "content.content");
+
+        performGetUploadedLength(uploadId)
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    @WithWriter
+    public void testUploadRetriedChunk() throws Exception {
+        String uploadId = createUpload(2, "test.txt", 12);
+
+        performPutChunk(uploadId, 0, "test c".getBytes(StandardCharsets.UTF_8))
+                .andExpect(MockMvcResultMatchers.content().string("6"));
+        performPutChunk(uploadId, 5, "content".getBytes(StandardCharsets.UTF_8))
+                .andExpect(MockMvcResultMatchers.content().string("12"));
+        performPutChunk(uploadId, 5, "content".getBytes(StandardCharsets.UTF_8))
+                .andExpect(MockMvcResultMatchers.content().string("12"));
+    }
+
+    @Test
+    @WithWriter
+    public void testUploadChunkWithWrongOffset() throws Exception {
+        String uploadId = createUpload(2, "test.txt", 12);
+
+        performPutChunk(uploadId, 5, "content".getBytes(StandardCharsets.UTF_8))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    @WithWriter
+    public void testUploadOversizedChunk() throws Exception {
+        String uploadId = createUpload(2, "test.txt", 4);
+
+        performPutChunk(uploadId, 0, "test content".getBytes(StandardCharsets.UTF_8))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+        performGetUploadedLength(uploadId)
+                .andExpect(MockMvcResultMatchers.content().string("0"));
+    }
+
+    @Test
+    @WithWriter
+    public void testCommitIncompleteUpload() throws Exception {
+        String uploadId = createUpload(2, "test.txt", 12);
+
+        performPutChunk(uploadId, 0, "test".getBytes(StandardCharsets.UTF_8))
+                .andExpect(MockMvcResultMatchers.status().isOk());
+        performCommit(uploadId)
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+
+        Mockito.verify(repository, Mockito.never()).putContent(Mockito.any(), Mockito.any(InputStream.class));
+    }
+
+    @Test
+    @WithWriter
+    public void testAbortUpload() throws Exception {
+        String uploadId = createUpload(2, "test.txt", 12);
+
+        mockMvc.perform(MockMvcRequestBuilders.delete("/books/uploads/{uploadId}", uploadId)
+                .with(SecurityMockMvcRequestPostProcessors.csrf()))
+                .andExpect(MockMvcResultMatchers.status().isOk());
+        performGetUploadedLength(uploadId)
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    @WithWriter
+    public void testExpiredUpload() throws Exception {
+        String uploadId = createUpload(2, "test.txt", 12);
+
+        Thread.sleep(10);
+        uploadSessions.removeExpired();
+
+        performPutChunk(uploadId, 0, "test".getBytes(StandardCharsets.UTF_8))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
+    @Test
+    @WithWriter
+    public void testUploadOfAnotherUser() throws Exception {
+        String uploadId = createUpload(2, "test.txt", 4);
+
+        RequestPostProcessor otherWriter = SecurityMockMvcRequestPostProcessors.user("otherWriter").roles("WRITER");
+        mockMvc.perform(MockMvcRequestBuilders.put("/books/uploads/{uploadId}", uploadId)
+                .param("offset", "0")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content("test".getBytes(StandardCharsets.UTF_8))
+                .with(otherWriter)
+                .with(SecurityMockMvcRequestPostProcessors.csrf()))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+        mockMvc.perform(MockMvcRequestBuilders.post("/books/uploads/{uploadId}/commit", uploadId)
+                .with(otherWriter)
+                .with(SecurityMockMvcRequestPostProcessors.csrf()))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+
+        // the session is left to its owner
+        performGetUploadedLength(uploadId)
+                .andExpect(MockMvcResultMatchers.content().string("0"));
+    }
+
+    @Test
+    @WithReader
+    public void testUploadWithWrongRole() throws Exception {
+        performCreateUpload(2, "test.txt", 12)
+                .andExpect(MockMvcResultMatchers.status().isForbidden());
+    }
+
+    private String createUpload(long id, String fileName, long size) throws Exception {
+        return performCreateUpload(id, fileName, size)
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn().getResponse().getContentAsString();
+    }
+
+    private ResultActions performCreateUpload(long id, String fileName, long size) throws Exception {
+        return mockMvc.perform(MockMvcRequestBuilders.post("/books/uploads")
+                .param("id", String.valueOf(id))
+                .param("fileName", fileName)
+                .param("mimeType", MediaType.TEXT_PLAIN_VALUE)
+                .param("size", String.valueOf(size))
+                .with(SecurityMockMvcRequestPostProcessors.csrf()));
+    }
+
+    private ResultActions performPutChunk(String uploadId, long offset, byte[] chunk) throws Exception {
+        return mockMvc.perform(MockMvcRequestBuilders.put("/books/uploads/{uploadId}", uploadId)
+                .param("offset", String.valueOf(offset))
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(chunk)
+                .with(SecurityMockMvcRequestPostProcessors.csrf()));
+    }
+
+    private ResultActions performGetUploadedLength(String uploadId) throws Exception {
+        return mockMvc.perform(MockMvcRequestBuilders.get("/books/uploads/{uploadId}", uploadId));
+    }
+
+    private ResultActions performCommit(String uploadId) throws Exception {
+        return mockMvc.perform(MockMvcRequestBuilders.post("/books/uploads/{uploadId}/commit", uploadId)
+                .with(SecurityMockMvcRequestPostProcessors.csrf()));
+    }
+
+}
@@ -0,0 +1,109 @@
+package ru.akh.spring_web.dao;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import ru.akh.spring_web.AbstractTest;
+
+public class BookIndexTest extends AbstractTest {
+
+    private static final int BOOKS = 5000;
+    private static final int KEYS = 100;
+
+    private final BookIndex index = new BookIndex(Integer::compare);
+
+    @Test
+    public void testAddAndRemove() {
+        Random random = new Random(1);
+        // the key of a book is its index in the array, the entries sorted the same way
+        int[] bookKeys = new int[BOOKS + 1];
+        Arrays.fill(bookKeys, -1);
+        TreeSet<long[]> entries = new TreeSet<>(Comparator.<long[]> comparingLong(entry -> entry[0])
+                .thenComparingLong(entry -> entry[1]));
+        for (int i = 0; i < BOOKS * 3; i++) {
+            // books are added, moved to another key and removed, so blocks are split and emptied
+            long id = 1 + random.nextInt(BOOKS);
+            int oldKey = bookKeys[(int) id];
+            if (oldKey >= 0) {
+                Assertions.assertEquals(oldKey, index.remove(probe(oldKey), id), "removed key");
+                entries.remove(new long[] { oldKey, id });
+                bookKeys[(int) id] = -1;
+            }
+            if ((oldKey < 0) || (random.nextInt(4) != 0)) {
+                int key = random.nextInt(KEYS);
+                index.add(key, id);
+                entries.add(new long[] { key, id });
+                bookKeys[(int) id] = key;
+            }
+        }
+
+        Assertions.assertEquals(entries.size(), index.size(), "size");
+        long[] expectedIds = entries.stream().mapToLong(entry -> entry[1]).toArray();
+        Assertions.assertArrayEquals(expectedIds, index.getFirst(Integer.MAX_VALUE), "ids");
+        Assertions.assertArrayEquals(Arrays.copyOf(expectedIds, 10), index.getFirst(10), "first ids");
+
+        long[] after = entries.higher(new long[] { KEYS / 2, 0 });
+        long[] expectedAfterIds = entries.tailSet(after, false).stream().limit(300).mapToLong(entry -> entry[1])
+                .toArray();
+        Assertions.assertArrayEquals(expectedAfterIds, index.getAfter(probe((int) after[0]), after[1], 300),
+                "ids after");
+
+        long[] expectedEqualIds = entries.stream().filter(entry -> entry[0] == KEYS / 2)
+                .mapToLong(entry -> entry[1]).toArray();
+        Assertions.assertArrayEquals(expectedEqualIds, index.getEqual(probe(KEYS / 2)), "equal ids");
+        Assertions.assertArrayEquals(new long[0], index.getEqual(probe(KEYS)), "no equal ids");
+        Assertions.assertThrows(IllegalStateException.class, () -> index.remove(probe(KEYS), 1), "not indexed");
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        int[] bookKeys = new int[BOOKS + 1];
+        for (int id = 1; id <= BOOKS; id++) {
+            bookKeys[id] = id % KEYS;
+            index.add(bookKeys[id], id);
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writer = executor.submit(() -> {
+                // books are moved to another key, so blocks are split and replaced under the readers
+                Random random = new Random(1);
+                for (int i = 0; i < BOOKS * 10; i++) {
+                    int id = 1 + random.nextInt(BOOKS);
+                    index.remove(probe(bookKeys[id]), id);
+                    bookKeys[id] = random.nextInt(KEYS);
+                    index.add(bookKeys[id], id);
+                }
+            });
+
+            while (!writer.isDone()) {
+                // a read sees the index between two writes, so at most the moved book is missing
+                long[] ids = index.getFirst(Integer.MAX_VALUE);
+                Assertions.assertTrue(ids.length >= BOOKS - 1, "ids.length");
+                Assertions.assertEquals(ids.length, LongStream.of(ids).distinct().count(), "distinct ids");
+                Assertions.assertTrue(index.getAfter(probe(KEYS / 2), 0, 10).length <= 10, "ids after");
+                index.getEqual(probe(KEYS / 2));
+            }
+            writer.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assertions.assertEquals(BOOKS, index.getFirst(Integer.MAX_VALUE).length, "ids");
+    }
+
+    private static BookIndex.KeyProbe probe(int key) {
+        return entryKey -> Integer.compare(key, entryKey);
+    }
+
+}
@@ -0,0 +1,55 @@
+package ru.akh.spring_web.dao;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import ru.akh.spring_web.AbstractTest;
+
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = { "books.content.cache.capacity=16KB",
+        "books.cache.max-size=100", "books.title-index.enabled=true" })
+@Import(RepositoryConfig.class)
+public class BookRepositoryDecoratorPostProcessorTest extends AbstractTest {
+
+    @TempDir
+    static Path directory;
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        registry.add("books.content.file-system.directory", directory::toString);
+    }
+
+    @Autowired
+    private BookRepository repository;
+
+    @Test
+    public void testDecoratorOrder() throws Exception {
+        BookRepository decorator = repository;
+        decorator = assertDecorator(decorator, IndexingBookRepository.class);
+        decorator = assertDecorator(decorator, ReadThroughBookRepository.class);
+        // the cache holds the content read from the files, not the file pointers
+        decorator = assertDecorator(decorator, CachingBookRepository.class);
+        decorator = assertDecorator(decorator, FileSystemBookRepository.class);
+
+        Assertions.assertSame(DelegatingBookRepository.getUndecorated(repository), decorator, "undecorated");
+        Assertions.assertTrue(AopUtils.isAopProxy(decorator), "undecorated must be proxied");
+    }
+
+    private static BookRepository assertDecorator(BookRepository repository, Class<?> expectedClass)
+            throws Exception {
+        Object target = ((Advised) repository).getTargetSource().getTarget();
+        Assertions.assertEquals(expectedClass, target.getClass(), "decorator");
+        return ((DelegatingBookRepository) target).delegate;
+    }
+
+}
@@ -1,10 +1,24 @@
 package ru.akh.spring_web.dao;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.GZIPInputStream;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 import javax.validation.ConstraintViolationException;
 
@@ -17,10 +31,15 @@ import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.EnabledIf;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StreamUtils;
 
 import ru.akh.spring_web.AbstractTest;
 import ru.akh.spring_web.dao.exception.AuthorNotFoundException;
 import ru.akh.spring_web.dao.exception.BookContentNotFoundException;
+import ru.akh.spring_web.dao.exception.BookException;
 import ru.akh.spring_web.dao.exception.BookNotFoundException;
 import ru.akh.spring_web.dto.Author;
 import ru.akh.spring_web.dto.Book;
@@ -47,6 +66,20 @@ public class BookRepositoryTest extends AbstractTest {
         Assertions.assertEquals("Stephen King", author.getName(), "author.name");
     }
 
+    @Test
+    public void testGetAll() {
+        List<Book> books = repository.getAll(Arrays.asList(3L, 100L, 1L, 3L));
+        Assertions.assertEquals(Arrays.asList(3L, 1L), books.stream().map(Book::getId).collect(Collectors.toList()),
+                "books.id");
+        Assertions.assertEquals("Stephen King", books.get(1).getAuthor().getName(), "author.name");
+        Assertions.assertTrue(repository.getAll(Collections.emptyList()).isEmpty(), "books.isEmpty");
+
+        // long lists are read in several queries
+        List<Long> ids = LongStream.rangeClosed(1, 1200).boxed().collect(Collectors.toList());
+        Assertions.assertEquals(repository.getTopBooks(Book.Field.ID, Integer.MAX_VALUE).size(),
+                repository.getAll(ids).size(), "books.size");
+    }
+
     @Test
     public void testPutBook() {
         long id = putBook(null, "titleNew", 2020, null, "authorNew");
@@ -84,6 +117,101 @@ public class BookRepositoryTest extends AbstractTest {
         Assertions.assertEquals(newAuthorName, updatedAuthor.getName(), "updatedAuthor.name");
     }
 
+    @Test
+    public void testRenameAuthor() {
+        long id = putBook(null, "titleNew4", 2020, null, "authorNew4");
+        long authorId = repository.get(id).getAuthor().getId();
+        long otherId = putBook(null, "titleNew4_2", 2020, null, "authorNew4_2");
+        putBook(otherId, "titleNew4_2", 2020, authorId, "authorNew4");
+        Assertions.assertEquals(0, repository.getBooksByAuthor("authorNew4_2").size(), "movedBooks.size");
+
+        String newAuthorName = "authorNew4_3";
+        putBook(id, "titleNew4", 2020, authorId, newAuthorName);
+
+        Assertions.assertEquals(newAuthorName, repository.get(otherId).getAuthor().getName(), "author.name");
+        Assertions.assertEquals(2, repository.getBooksByAuthor(newAuthorName).size(), "books.size");
+
+        Comparator<Book> comparator = Comparator
+                .comparing(((Function<Book, Author>) Book::getAuthor).andThen(Author::getName));
+        List<Book> topBooks = repository.getTopBooks(Book.Field.AUTHOR, 1000);
+        org.assertj.core.api.Assertions.assertThat(topBooks).isSortedAccordingTo(comparator);
+    }
+
+    @Test
+    public void testVersion() {
+        long id = putBook(null, "titleVersion", 2020, null, "authorVersion");
+        long authorId = repository.get(id).getAuthor().getId();
+        long otherId = putBook(null, "titleVersion2", 2020, null, "authorVersion2");
+        long version = repository.getVersion(id);
+        long catalogVersion = repository.getCatalogVersion();
+        Assertions.assertEquals(version, repository.getVersion(id), "version must not change on read");
+
+        putBook(id, "titleVersion", 2021, authorId, "authorVersion");
+        long newVersion = repository.getVersion(id);
+        Assertions.assertTrue(newVersion > version, "version must grow on update");
+        long newCatalogVersion = repository.getCatalogVersion();
+        Assertions.assertTrue(newCatalogVersion > catalogVersion, "catalogVersion must grow on update");
+
+        // the author is renamed through another book
+        long otherVersion = repository.getVersion(otherId);
+        putBook(otherId, "titleVersion2", 2020, authorId, "authorVersionRenamed");
+        Assertions.assertTrue(repository.getVersion(id) > newVersion, "version must grow on author rename");
+        Assertions.assertTrue(repository.getVersion(otherId) > otherVersion, "version must grow on author change");
+        Assertions.assertTrue(repository.getCatalogVersion() > newCatalogVersion,
+                "catalogVersion must grow on update");
+    }
+
+    @Test
+    @EnabledIf(expression = "#{environment.acceptsProfiles('jdbc', 'jpa')}", loadContext = true)
+    public void testVersionsInCommitOrder(@Autowired PlatformTransactionManager transactionManager)
+            throws Exception {
+        long id = putBook(null, "titleCommitOrder", 2020, null, "authorCommitOrder");
+        long authorId = repository.get(id).getAuthor().getId();
+        long catalogVersion = repository.getCatalogVersion();
+
+        CountDownLatch renamed = new CountDownLatch(1);
+        CountDownLatch committed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // the rename starts first and commits last
+            Future<?> first = executor.submit(() -> new TransactionTemplate(transactionManager)
+                    .executeWithoutResult(status -> {
+                        putBook(id, "titleCommitOrder", 2020, authorId, "authorCommitOrderRenamed");
+                        renamed.countDown();
+                        try {
+                            committed.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }));
+            renamed.await();
+            // waits for the rename to commit before it is stamped
+            Future<Long> second = executor.submit(() -> putBook(null, "titleCommitOrder2", 2020, null,
+                    "authorCommitOrder2"));
+            Thread.sleep(200);
+            Assertions.assertEquals(catalogVersion, repository.getCatalogVersion(),
+                    "catalogVersion must not change before the commit");
+            long version = repository.getVersion(id);
+            committed.countDown();
+            first.get();
+            long secondId = second.get();
+
+            long renamedVersion = repository.getVersion(id);
+            Assertions.assertTrue(renamedVersion > version, "version must grow on commit");
+            Assertions.assertTrue(repository.getVersion(secondId) > renamedVersion,
+                    "version must follow the commit order");
+            Assertions.assertTrue(repository.getCatalogVersion() >= repository.getVersion(secondId),
+                    "catalogVersion must grow on commit");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGetVersionOfNonExistingBook() {
+        assertThrows(BookNotFoundException.class, () -> repository.getVersion(100));
+    }
+
     @Test
     public void testGetNonExistingBook() {
         assertThrows(BookNotFoundException.class, () -> {
@@ -126,6 +254,55 @@ public class BookRepositoryTest extends AbstractTest {
         });
     }
 
+    @Test
+    public void testPutAll() {
+        long id = putBook(null, "titleBatch", 2020, null, "authorBatch");
+        long authorId = repository.get(id).getAuthor().getId();
+        long catalogVersion = repository.getCatalogVersion();
+
+        List<Long> ids = repository.putAll(Arrays.asList(
+                createBook(null, "titleBatch2", 2020, null, "authorBatch2"),
+                createBook(id, "titleBatch_2", 2021, authorId, "authorBatch_2"),
+                createBook(null, "titleBatch3", 2020, null, "authorBatch2"),
+                createBook(null, "titleBatch4", 2020, authorId, "authorBatch_2")));
+        Assertions.assertEquals(4, ids.size(), "ids.size");
+        Assertions.assertEquals(id, ids.get(1), "ids[1]");
+        Assertions.assertTrue(repository.getCatalogVersion() > catalogVersion, "catalogVersion must grow on update");
+
+        Book updatedBook = repository.get(id);
+        Assertions.assertEquals("titleBatch_2", updatedBook.getTitle(), "updatedBook.title");
+        Assertions.assertEquals(2021, updatedBook.getYear(), "updatedBook.year");
+        Assertions.assertEquals("authorBatch_2", updatedBook.getAuthor().getName(), "updatedBook.author.name");
+
+        Book newBook = repository.get(ids.get(0));
+        Assertions.assertEquals("titleBatch2", newBook.getTitle(), "newBook.title");
+        Assertions.assertEquals(newBook.getAuthor().getId(), repository.get(ids.get(2)).getAuthor().getId(),
+                "new authors of the same name must be stored once");
+        Assertions.assertEquals(authorId, repository.get(ids.get(3)).getAuthor().getId(), "newBook.author.id");
+        Assertions.assertEquals(2, repository.getBooksByAuthor("authorBatch2").size(), "books.size");
+    }
+
+    @Test
+    public void testPutAllWithNonExistingId() {
+        assertThrows(BookNotFoundException.class, () -> {
+            repository.putAll(Arrays.asList(createBook(100L, "title", 2020, null, "author")));
+        });
+    }
+
+    @Test
+    public void testPutAllWithNonExistingAuthorId() {
+        assertThrows(AuthorNotFoundException.class, () -> {
+            repository.putAll(Arrays.asList(createBook(1L, "title", 2020, 100L, "author")));
+        });
+    }
+
+    @Test
+    public void testPutAllWithoutTitle() {
+        assertThrows(ConstraintViolationException.class, () -> {
+            repository.putAll(Arrays.asList(createBook(1L, null, 2020, null, "author")));
+        });
+    }
+
     @Test
     public void testGetTopBooks() {
         List<Book> allBooks = repository.getTopBooks(Book.Field.ID, 18);
@@ -166,6 +343,42 @@ public class BookRepositoryTest extends AbstractTest {
                 .isEqualTo(expectedBooks);
     }
 
+    @Test
+    public void testGetTopBooksAfter() {
+        for (Book.Field field : Book.Field.values()) {
+            List<Book> allBooks = repository.getTopBooks(field, Integer.MAX_VALUE);
+
+            List<Book> pagedBooks = new ArrayList<>();
+            List<Book> page = repository.getTopBooks(field, 4);
+            while (!page.isEmpty()) {
+                pagedBooks.addAll(page);
+                page = repository.getTopBooks(field, 4, page.get(page.size() - 1));
+            }
+
+            Assertions.assertEquals(allBooks.stream().map(Book::getId).collect(Collectors.toList()),
+                    pagedBooks.stream().map(Book::getId).collect(Collectors.toList()), "pagedBooks of " + field);
+        }
+    }
+
+    @Test
+    public void testExportBooks() throws IOException {
+        List<Book> allBooks = repository.getTopBooks(Book.Field.ID, Integer.MAX_VALUE);
+
+        List<Book> exportedBooks = new ArrayList<>();
+        repository.exportBooks(exportedBooks::add);
+
+        Assertions.assertEquals(allBooks.size(), exportedBooks.size(), "exportedBooks.size");
+        for (int i = 0; i < allBooks.size(); i++) {
+            Book book = allBooks.get(i);
+            Book exportedBook = exportedBooks.get(i);
+            Assertions.assertEquals(book.getId(), exportedBook.getId(), "exportedBook.id");
+            Assertions.assertEquals(book.getTitle(), exportedBook.getTitle(), "exportedBook.title");
+            Assertions.assertEquals(book.getYear(), exportedBook.getYear(), "exportedBook.year");
+            Assertions.assertEquals(book.getAuthor().getName(), exportedBook.getAuthor().getName(),
+                    "exportedBook.author.name");
+        }
+    }
+
     @Test
     public void testGetTopBooksWithNullField() {
         assertThrows(ConstraintViolationException.class, () -> {
@@ -198,6 +411,64 @@ public class BookRepositoryTest extends AbstractTest {
         testGetContent(1, "dark_tower_1.txt", "The Dark Tower: The Gunslinger");
     }
 
+    @Test
+    public void testGetContentStream() throws IOException {
+        long id = 8;
+        String expectedContent = "Foundation";
+
+        String content = repository.getContent(id, (bookContent, stream) -> {
+            Assertions.assertEquals(id, bookContent.getId(), "bookContent.id");
+            Assertions.assertEquals("foundation_1.txt", bookContent.getFileName(), "bookContent.fileName");
+            Assertions.assertEquals(MediaType.TEXT_PLAIN_VALUE, bookContent.getMimeType(), "bookContent.mimeType");
+            Assertions.assertEquals(expectedContent.length(), bookContent.getSize(), "bookContent.size");
+            Assertions.assertEquals(ContentHashes.hash(expectedContent.getBytes(StandardCharsets.UTF_8)),
+                    bookContent.getHash(), "bookContent.hash");
+            return StreamUtils.copyToString(stream, StandardCharsets.UTF_8);
+        });
+
+        Assertions.assertEquals(expectedContent, content, "content");
+    }
+
+    @Test
+    public void testGetContentRange() throws IOException {
+        String content = repository.getContent(8, 3, 4, (bookContent, stream) -> {
+            Assertions.assertEquals("Foundation".length(), bookContent.getSize(), "bookContent.size");
+            return StreamUtils.copyToString(stream, StandardCharsets.UTF_8);
+        });
+
+        Assertions.assertEquals("ndat", content, "content");
+    }
+
+    @Test
+    public void testGetContentInfo() {
+        long id = 8;
+        String expectedContent = "Foundation";
+
+        BookContent bookContent = repository.getContentInfo(id);
+        Assertions.assertEquals(id, bookContent.getId(), "bookContent.id");
+        Assertions.assertEquals("foundation_1.txt", bookContent.getFileName(), "bookContent.fileName");
+        Assertions.assertEquals(MediaType.TEXT_PLAIN_VALUE, bookContent.getMimeType(), "bookContent.mimeType");
+        Assertions.assertEquals(expectedContent.length(), bookContent.getSize(), "bookContent.size");
+        Assertions.assertEquals(ContentHashes.hash(expectedContent.getBytes(StandardCharsets.UTF_8)),
+                bookContent.getHash(), "bookContent.hash");
+        Assertions.assertNull(bookContent.getEncoding(), "bookContent.encoding");
+        Assertions.assertNull(bookContent.getContent(), "bookContent.content");
+    }
+
+    @Test
+    public void testGetContentInfoForNonExistingBook() {
+        assertThrows(BookContentNotFoundException.class, () -> {
+            repository.getContentInfo(100);
+        });
+    }
+
+    @Test
+    public void testGetContentStreamForNonExistingBook() {
+        assertThrows(BookContentNotFoundException.class, () -> {
+            repository.getContent(100, (bookContent, stream) -> null);
+        });
+    }
+
     @Test
     public void testPutContent() {
         putContent(2, "test.txt", "test content");
@@ -213,6 +484,142 @@ public class BookRepositoryTest extends AbstractTest {
         testGetContent(id, fileName, content);
     }
 
+    @Test
+    public void testPutContentStream() throws IOException {
+        long id = 5;
+        long size = 16 * 1024 * 1024;
+
+        BookContent bookContent = new BookContent();
+        bookContent.setId(id);
+        bookContent.setFileName("large.bin");
+        bookContent.setMimeType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        bookContent.setSize(size);
+        bookContent.setHash(ContentHashes.hash(new GeneratedInputStream(size)));
+
+        CheckedInputStream uploadedStream = new CheckedInputStream(new GeneratedInputStream(size), new CRC32());
+        repository.putContent(bookContent, uploadedStream);
+        long expectedChecksum = uploadedStream.getChecksum().getValue();
+
+        long checksum = repository.getContent(id, (content, stream) -> {
+            Assertions.assertEquals("large.bin", content.getFileName(), "content.fileName");
+            Assertions.assertEquals(size, content.getSize(), "content.size");
+
+            CheckedInputStream downloadedStream = new CheckedInputStream(stream, new CRC32());
+            Assertions.assertEquals(size, StreamUtils.drain(downloadedStream), "content length");
+            return downloadedStream.getChecksum().getValue();
+        });
+
+        Assertions.assertEquals(expectedChecksum, checksum, "content checksum");
+    }
+
+    @Test
+    public void testPutDuplicateContent() throws IOException {
+        putContentStream(10, "duplicate1.txt", "duplicate content");
+        putContent(11, "duplicate2.txt", "duplicate content");
+        testGetContent(10, "duplicate1.txt", "duplicate content");
+        testGetContent(11, "duplicate2.txt", "duplicate content");
+        Assertions.assertEquals(repository.getContent(10).getHash(), repository.getContent(11).getHash(),
+                "content hash");
+
+        // the content still referred to by the other book must be kept
+        putContentStream(10, "unique.txt", "unique content");
+        testGetContent(10, "unique.txt", "unique content");
+        testGetContent(11, "duplicate2.txt", "duplicate content");
+    }
+
+    @Test
+    public void testPutCompressibleContent() throws IOException {
+        long id = 13;
+        String content = repeat("All work and no play makes Jack a dull boy.\n", 1000);
+
+        putContent(id, "jack.txt", content);
+        testGetCompressedContent(id, "jack.txt", content);
+    }
+
+    @Test
+    public void testPutCompressibleContentStream() throws IOException {
+        long id = 4;
+        String content = repeat("The man in black fled across the desert, and the gunslinger followed.\n", 1000);
+
+        putContentStream(id, "gunslinger.txt", content);
+        testGetCompressedContent(id, "gunslinger.txt", content);
+    }
+
+    @Test
+    public void testPutContentStreamWithWrongHash() {
+        byte[] contentBytes = "test content".getBytes(StandardCharsets.UTF_8);
+
+        BookContent bookContent = new BookContent();
+        bookContent.setId(12);
+        bookContent.setFileName("test.txt");
+        bookContent.setMimeType(MediaType.TEXT_PLAIN_VALUE);
+        bookContent.setSize(contentBytes.length);
+        bookContent.setHash(ContentHashes.hash("other content".getBytes(StandardCharsets.UTF_8)));
+
+        assertThrows(BookException.class, () -> {
+            repository.putContent(bookContent, new ByteArrayInputStream(contentBytes));
+        });
+        testGetContent(12, "foundation_5.txt", "Foundation and Earth");
+    }
+
+    @Test
+    @EnabledIf(expression = "#{environment.acceptsProfiles('jdbc')}", loadContext = true)
+    public void testPutSameContentConcurrently(@Autowired PlatformTransactionManager transactionManager)
+            throws Exception {
+        long id1 = putBook(null, "titleNewContent1", 2020, null, "authorNewContent1");
+        long id2 = putBook(null, "titleNewContent2", 2020, null, "authorNewContent2");
+        String content = "concurrently put content";
+
+        CountDownLatch inserted = new CountDownLatch(1);
+        CountDownLatch committed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first = executor.submit(() -> new TransactionTemplate(transactionManager)
+                    .executeWithoutResult(status -> {
+                        putContent(id1, "first.txt", content);
+                        inserted.countDown();
+                        try {
+                            committed.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }));
+            inserted.await();
+            // does not see the uncommitted content, so it inserts it too and waits for the first put
+            Future<?> second = executor.submit(() -> putContent(id2, "second.txt", content));
+            Thread.sleep(200);
+            committed.countDown();
+            first.get();
+            second.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        testGetContent(id1, "first.txt", content);
+        testGetContent(id2, "second.txt", content);
+    }
+
+    @Test
+    public void testPutContentStreamForNonExistingBook() {
+        assertThrows(BookNotFoundException.class, () -> {
+            putContentStream(100, "test.txt", "test content");
+        });
+    }
+
+    @Test
+    public void testPutContentStreamWithEmptyFileName() {
+        assertThrows(ConstraintViolationException.class, () -> {
+            putContentStream(1, "", "test content");
+        });
+    }
+
+    @Test
+    public void testPutContentStreamWithEmptyContent() {
+        assertThrows(ConstraintViolationException.class, () -> {
+            putContentStream(1, "test.txt", "");
+        });
+    }
+
     @Test
     public void testGetContentForNonExistingBook() {
         assertThrows(BookContentNotFoundException.class, () -> {
@@ -242,6 +649,10 @@ public class BookRepositoryTest extends AbstractTest {
     }
 
     private long putBook(Long id, String title, int year, Long authorId, String authorName) {
+        return repository.put(createBook(id, title, year, authorId, authorName));
+    }
+
+    private static Book createBook(Long id, String title, int year, Long authorId, String authorName) {
         Author author = null;
         if (authorId != null || authorName != null) {
             author = new Author();
@@ -254,8 +665,7 @@ public class BookRepositoryTest extends AbstractTest {
         book.setAuthor(author);
         book.setTitle(title);
         book.setYear(year);
-
-        return repository.put(book);
+        return book;
     }
 
     private void testGetContent(long id, String expectedFileName, String expectedContent) {
@@ -267,6 +677,37 @@ public class BookRepositoryTest extends AbstractTest {
         Assertions.assertEquals(expectedContent, content, "bookContent.content");
     }
 
+    private void testGetCompressedContent(long id, String expectedFileName, String expectedContent)
+            throws IOException {
+        byte[] expectedBytes = expectedContent.getBytes(StandardCharsets.UTF_8);
+
+        byte[] storedBytes = repository.getEncodedContent(id, (bookContent, stream) -> {
+            Assertions.assertEquals(ContentEncodings.GZIP, bookContent.getEncoding(), "bookContent.encoding");
+            Assertions.assertEquals(expectedBytes.length, bookContent.getSize(), "bookContent.size");
+            byte[] bytes = StreamUtils.copyToByteArray(stream);
+            Assertions.assertEquals(bytes.length, bookContent.getEncodedSize(), "bookContent.encodedSize");
+            return bytes;
+        });
+        Assertions.assertTrue(storedBytes.length < expectedBytes.length / 10, "content must be compressed");
+        Assertions.assertEquals(ContentEncodings.GZIP, repository.getContentInfo(id).getEncoding(),
+                "contentInfo.encoding");
+        Assertions.assertArrayEquals(expectedBytes, StreamUtils.copyToByteArray(
+                new GZIPInputStream(new ByteArrayInputStream(storedBytes))), "decompressed content");
+
+        testGetContent(id, expectedFileName, expectedContent);
+
+        String content = repository.getContent(id, (bookContent, stream) -> {
+            Assertions.assertNull(bookContent.getEncoding(), "bookContent.encoding");
+            Assertions.assertEquals(expectedBytes.length, bookContent.getSize(), "bookContent.size");
+            return StreamUtils.copyToString(stream, StandardCharsets.UTF_8);
+        });
+        Assertions.assertEquals(expectedContent, content, "content");
+
+        String range = repository.getContent(id, 1000, 50,
+                (bookContent, stream) -> StreamUtils.copyToString(stream, StandardCharsets.UTF_8));
+        Assertions.assertEquals(expectedContent.substring(1000, 1050), range, "content range");
+    }
+
     private void putContent(long id, String fileName, String content) {
         BookContent bookContent = new BookContent();
         bookContent.setId(id);
@@ -277,9 +718,62 @@ public class BookRepositoryTest extends AbstractTest {
         repository.putContent(bookContent);
     }
 
+    private void putContentStream(long id, String fileName, String content) throws IOException {
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+
+        BookContent bookContent = new BookContent();
+        bookContent.setId(id);
+        bookContent.setFileName(fileName);
+        bookContent.setMimeType(MediaType.TEXT_PLAIN_VALUE);
+        bookContent.setSize(contentBytes.length);
+        bookContent.setHash(ContentHashes.hash(contentBytes));
+
+        repository.putContent(bookContent, new ByteArrayInputStream(contentBytes));
+    }
+
+    private static String repeat(String value, int count) {
+        StringBuilder builder = new StringBuilder(value.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
     private void assertThrows(Class<? extends Throwable> expectedType, Executable executable) {
         Throwable exception = Assertions.assertThrows(expectedType, executable);
         logger.debug("exception = {}", exception.toString());
     }
 
+    /**
+     * Produces content of the given size without keeping it in memory.
+     */
+    private static class GeneratedInputStream extends InputStream {
+
+        private final long size;
+        private long position;
+
+        GeneratedInputStream(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public int read() {
+            return (position < size) ? (int) (position++ % 251) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= size) {
+                return -1;
+            }
+
+            int count = (int) Math.min(len, size - position);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = (byte) (position++ % 251);
+            }
+            return count;
+        }
+
+    }
+
 }
@@ -0,0 +1,125 @@
+package ru.akh.spring_web.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+
+import ru.akh.spring_web.AbstractTest;
+import ru.akh.spring_web.dto.BookContent;
+
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = "books.content.cache.capacity=16KB")
+@Import(RepositoryConfig.class)
+public class CachingBookRepositoryTest extends AbstractTest {
+
+    @Autowired
+    private BookRepository repository;
+
+    @Autowired
+    private OffHeapContentCache cache;
+
+    @Test
+    public void testGetCachedContent() throws IOException {
+        long id = 14;
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+
+        String content = getContent(id);
+        Assertions.assertEquals(misses + 1, cache.getMisses(), "cache.misses");
+
+        repository.getEncodedContent(id, (bookContent, stream) -> {
+            Assertions.assertTrue(stream instanceof CachedContentInputStream,
+                    "stream must be a CachedContentInputStream");
+            Assertions.assertEquals("foundation_7.txt", bookContent.getFileName(), "bookContent.fileName");
+            return null;
+        });
+        Assertions.assertEquals(content, getContent(id), "cached content");
+        Assertions.assertEquals("ward", repository.getContent(id, 3, 4,
+                (bookContent, stream) -> StreamUtils.copyToString(stream, StandardCharsets.UTF_8)), "content range");
+        Assertions.assertEquals(hits + 3, cache.getHits(), "cache.hits");
+    }
+
+    @Test
+    public void testPutContentInvalidatesCache() throws IOException {
+        long id = 15;
+        getContent(id);
+
+        putContent(id, "new content".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals("new content", getContent(id), "content");
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        byte[] content = new byte[1500];
+        for (long id = 16; id <= 18; id++) {
+            Arrays.fill(content, (byte) id);
+            putContent(id, content);
+        }
+
+        // the cache keeps 2 pages of 8KB, an entry takes a page
+        long evictions = cache.getEvictions();
+        for (long id = 16; id <= 18; id++) {
+            Assertions.assertEquals(1500, getContent(id).length(), "content length");
+        }
+        Assertions.assertTrue(cache.getEvictions() > evictions, "cache.evictions must be incremented");
+        Assertions.assertEquals(2, cache.getEntryCount(), "cache.entryCount");
+
+        // the least recently used entry has been evicted
+        long misses = cache.getMisses();
+        getContent(16);
+        Assertions.assertEquals(misses + 1, cache.getMisses(), "cache.misses");
+    }
+
+    @Test
+    public void testEvictionSkipsEntriesBeingRead() throws IOException {
+        byte[] content = new byte[1500];
+        for (long id = 16; id <= 18; id++) {
+            Arrays.fill(content, (byte) id);
+            putContent(id, content);
+        }
+        getContent(16);
+        getContent(17);
+
+        // both pages are held by the entries being read, so nothing is evicted to read another book
+        long evictions = cache.getEvictions();
+        repository.getContent(16, (bookContent16, stream16) -> repository.getContent(17,
+                (bookContent17, stream17) -> {
+                    Assertions.assertEquals(1500, getContent(18).length(), "content length");
+                    return null;
+                }));
+        Assertions.assertEquals(evictions, cache.getEvictions(), "cache.evictions");
+        Assertions.assertEquals(2, cache.getEntryCount(), "cache.entryCount");
+
+        long hits = cache.getHits();
+        getContent(16);
+        Assertions.assertEquals(hits + 1, cache.getHits(), "cache.hits");
+    }
+
+    private String getContent(long id) throws IOException {
+        return repository.getContent(id, (bookContent, stream) -> {
+            Assertions.assertNull(bookContent.getEncoding(), "bookContent.encoding");
+            return StreamUtils.copyToString(stream, StandardCharsets.ISO_8859_1);
+        });
+    }
+
+    private void putContent(long id, byte[] content) throws IOException {
+        BookContent bookContent = new BookContent();
+        bookContent.setId(id);
+        bookContent.setFileName("test.bin");
+        bookContent.setMimeType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        bookContent.setSize(content.length);
+        bookContent.setHash(ContentHashes.hash(content));
+
+        repository.putContent(bookContent, new ByteArrayInputStream(content));
+    }
+
+}
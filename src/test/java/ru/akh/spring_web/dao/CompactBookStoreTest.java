@@ -0,0 +1,66 @@
+package ru.akh.spring_web.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import ru.akh.spring_web.AbstractTest;
+import ru.akh.spring_web.dto.Book;
+
+public class CompactBookStoreTest extends AbstractTest {
+
+    private static final int BOOKS = 20000;
+    private static final int AUTHORS = 50;
+
+    private final CompactBookStore store = new CompactBookStore();
+
+    @Test
+    public void testPutAndGet() {
+        Random random = new Random(1);
+        Map<Long, String> authorNames = new HashMap<>();
+        Map<Long, Book> books = new HashMap<>();
+        for (long authorId = 1; authorId <= AUTHORS; authorId++) {
+            putAuthor(authorNames, authorId, "author" + random.nextInt(AUTHORS));
+        }
+
+        for (int i = 0; i < BOOKS * 3; i++) {
+            // titles repeat, so pooled strings are shared, released and reused
+            long id = 1 + random.nextInt(BOOKS);
+            String title = "title" + random.nextInt(BOOKS / 10);
+            int year = 1900 + random.nextInt(200);
+            long authorId = 1 + random.nextInt(AUTHORS);
+            Book book = store.put(id, title, year, authorId, i + 1);
+            books.put(id, book);
+            Assertions.assertEquals(title, book.getTitle(), "book.title");
+            Assertions.assertEquals(i + 1, store.getVersion(id), "book.version");
+
+            if (random.nextInt(100) == 0) {
+                putAuthor(authorNames, authorId, "author" + random.nextInt(AUTHORS));
+            }
+        }
+
+        Assertions.assertEquals(books.size(), store.size(), "store.size");
+        for (Book expectedBook : books.values()) {
+            Book book = store.get(expectedBook.getId());
+            Assertions.assertEquals(expectedBook.getTitle(), book.getTitle(), "book.title");
+            Assertions.assertEquals(expectedBook.getYear(), book.getYear(), "book.year");
+            Assertions.assertEquals(expectedBook.getAuthor().getId(), book.getAuthor().getId(), "author.id");
+            Assertions.assertEquals(authorNames.get(book.getAuthor().getId()), book.getAuthor().getName(),
+                    "author.name");
+        }
+        Assertions.assertNull(store.get(BOOKS + 1), "absent book");
+        Assertions.assertEquals(-1, store.getVersion(BOOKS + 1), "absent book");
+        Assertions.assertFalse(store.contains(BOOKS + 1), "absent book");
+    }
+
+    private void putAuthor(Map<Long, String> authorNames, long authorId, String name) {
+        // the versions of the authors are lower than the ones of the books
+        store.putAuthor(authorId, name, 0);
+        authorNames.put(authorId, name);
+        Assertions.assertEquals(name, store.getAuthorName(authorId), "author.name");
+    }
+
+}
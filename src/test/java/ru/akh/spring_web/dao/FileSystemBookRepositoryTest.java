@@ -0,0 +1,128 @@
+package ru.akh.spring_web.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.StreamUtils;
+
+import ru.akh.spring_web.AbstractTest;
+import ru.akh.spring_web.dao.exception.BookNotFoundException;
+import ru.akh.spring_web.dto.BookContent;
+
+@SpringBootTest(webEnvironment = WebEnvironment.NONE)
+@Import(RepositoryConfig.class)
+public class FileSystemBookRepositoryTest extends AbstractTest {
+
+    @TempDir
+    static Path directory;
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        registry.add("books.content.file-system.directory", directory::toString);
+    }
+
+    @Autowired
+    private BookRepository repository;
+
+    @Test
+    public void testPutContent() throws IOException {
+        long id = 6;
+        putContentStream(id, "test.txt", "test content");
+
+        String content = repository.getContent(id, (bookContent, stream) -> {
+            Assertions.assertEquals("test.txt", bookContent.getFileName(), "bookContent.fileName");
+            Assertions.assertEquals(MediaType.TEXT_PLAIN_VALUE, bookContent.getMimeType(), "bookContent.mimeType");
+            Assertions.assertEquals(12, bookContent.getSize(), "bookContent.size");
+            Assertions.assertTrue(getPath(stream).startsWith(directory), "content file must be in " + directory);
+            return StreamUtils.copyToString(stream, StandardCharsets.UTF_8);
+        });
+        Assertions.assertEquals("test content", content, "content");
+
+        BookContent bookContent = repository.getContent(id);
+        Assertions.assertEquals("test content", new String(bookContent.getContent(), StandardCharsets.UTF_8),
+                "bookContent.content");
+
+        BookContent contentInfo = repository.getContentInfo(id);
+        Assertions.assertEquals("test.txt", contentInfo.getFileName(), "contentInfo.fileName");
+        Assertions.assertEquals(12, contentInfo.getSize(), "contentInfo.size");
+        Assertions.assertNull(contentInfo.getContent(), "contentInfo.content");
+    }
+
+    @Test
+    public void testGetContentRange() throws IOException {
+        long id = 7;
+        putContentStream(id, "test.txt", "test content");
+
+        String content = repository.getContent(id, 5, 7, (bookContent, stream) -> {
+            Assertions.assertEquals(12, bookContent.getSize(), "bookContent.size");
+            return StreamUtils.copyToString(stream, StandardCharsets.UTF_8);
+        });
+        Assertions.assertEquals("content", content, "content");
+    }
+
+    @Test
+    public void testUpdateContent() throws IOException {
+        long id = 9;
+        putContentStream(id, "test.txt", "test content");
+        Path oldPath = repository.getContent(id, (bookContent, stream) -> getPath(stream));
+
+        putContentStream(id, "newTest.txt", "new test content");
+        Path path = repository.getContent(id, (bookContent, stream) -> getPath(stream));
+
+        Assertions.assertNotEquals(oldPath, path, "path");
+        Assertions.assertFalse(Files.exists(oldPath), "old content file must be deleted");
+        BookContent bookContent = repository.getContent(id);
+        Assertions.assertEquals("newTest.txt", bookContent.getFileName(), "bookContent.fileName");
+        Assertions.assertEquals("new test content", new String(bookContent.getContent(), StandardCharsets.UTF_8),
+                "bookContent.content");
+    }
+
+    @Test
+    public void testPutContentForNonExistingBook() throws IOException {
+        long fileCount = countFiles();
+
+        Assertions.assertThrows(BookNotFoundException.class, () -> {
+            putContentStream(100, "test.txt", "test content");
+        });
+        Assertions.assertEquals(fileCount, countFiles(), "file count");
+    }
+
+    private void putContentStream(long id, String fileName, String content) throws IOException {
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+
+        BookContent bookContent = new BookContent();
+        bookContent.setId(id);
+        bookContent.setFileName(fileName);
+        bookContent.setMimeType(MediaType.TEXT_PLAIN_VALUE);
+        bookContent.setSize(contentBytes.length);
+        bookContent.setHash(ContentHashes.hash(contentBytes));
+
+        repository.putContent(bookContent, new ByteArrayInputStream(contentBytes));
+    }
+
+    private static Path getPath(Object stream) {
+        Assertions.assertTrue(stream instanceof FileContentInputStream, "stream must be a FileContentInputStream");
+        return ((FileContentInputStream) stream).getPath();
+    }
+
+    private static long countFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+}
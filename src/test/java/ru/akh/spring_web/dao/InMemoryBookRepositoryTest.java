@@ -0,0 +1,268 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.akh.spring_web.AbstractTest;
+import ru.akh.spring_web.dao.exception.BookNotFoundException;
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+import ru.akh.spring_web.dto.BookContent;
+
+public class InMemoryBookRepositoryTest extends AbstractTest {
+
+    private static final int THREADS = 8;
+    private static final int BOOKS_PER_THREAD = 500;
+    private static final int AUTHORS = 4;
+
+    private InMemoryBookRepository repository = new InMemoryBookRepository();
+
+    @Test
+    public void testConcurrentPuts() throws Exception {
+        List<Long> firstBookIds = new ArrayList<>();
+        List<Long> authorIds = new ArrayList<>();
+        for (int i = 0; i < AUTHORS; i++) {
+            long id = putBook(null, "title", null, getAuthorName(i, 0));
+            firstBookIds.add(id);
+            authorIds.add(repository.get(id).getAuthor().getId());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<Long>>> writers = new ArrayList<>();
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                writers.add(executor.submit(() -> {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    List<Long> ids = new ArrayList<>();
+                    for (int i = 0; i < BOOKS_PER_THREAD; i++) {
+                        // authors are now and then renamed back and forth between two names
+                        int author = random.nextInt(AUTHORS);
+                        long id = putBook(null, "title" + random.nextInt(1000), authorIds.get(author),
+                                getAuthorName(author, (random.nextInt(100) == 0) ? 1 : 0));
+                        ids.add(id);
+
+                        // updates a book of this thread, possibly moving it to another author
+                        author = random.nextInt(AUTHORS);
+                        putBook(ids.get(random.nextInt(ids.size())), "title" + random.nextInt(1000),
+                                authorIds.get(author), getAuthorName(author, 0));
+                    }
+                    return ids;
+                }));
+            }
+
+            Future<?> reader = executor.submit(() -> {
+                start.await();
+                while (!writers.stream().allMatch(Future::isDone)) {
+                    for (Book.Field field : Book.Field.values()) {
+                        Assertions.assertTrue(repository.getTopBooks(field, 10).size() <= 10, "topBooks.size");
+                    }
+                    repository.getBooksByAuthor(getAuthorName(0, 0));
+                }
+                return null;
+            });
+
+            start.countDown();
+            Set<Long> ids = new HashSet<>();
+            for (Future<List<Long>> writer : writers) {
+                ids.addAll(writer.get(1, TimeUnit.MINUTES));
+            }
+            reader.get(1, TimeUnit.MINUTES);
+            Assertions.assertEquals(THREADS * BOOKS_PER_THREAD, ids.size(), "ids must be unique");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int bookCount = THREADS * BOOKS_PER_THREAD + AUTHORS;
+        for (Book.Field field : Book.Field.values()) {
+            List<Book> topBooks = repository.getTopBooks(field, Integer.MAX_VALUE);
+            Assertions.assertEquals(bookCount, topBooks.size(), "topBooks.size");
+        }
+
+        List<Book> booksByTitle = repository.getTopBooks(Book.Field.TITLE, Integer.MAX_VALUE);
+        org.assertj.core.api.Assertions.assertThat(booksByTitle)
+                .isSortedAccordingTo(Comparator.comparing(Book::getTitle));
+
+        int authorBookCount = 0;
+        for (Long firstBookId : firstBookIds) {
+            String authorName = repository.get(firstBookId).getAuthor().getName();
+            for (Book authorBook : repository.getBooksByAuthor(authorName)) {
+                Assertions.assertEquals(authorName, authorBook.getAuthor().getName(), "author.name");
+                authorBookCount++;
+            }
+        }
+        Assertions.assertEquals(bookCount, authorBookCount, "authorBookCount");
+    }
+
+    @Test
+    public void testRecovery(@TempDir Path directory) throws IOException {
+        // small segments, so that the log spans several of them
+        BookJournal journal = new BookJournal(directory, 256);
+        repository = new InMemoryBookRepository(journal);
+        long id1 = putBook(null, "title1", null, "author1");
+        long authorId = repository.get(id1).getAuthor().getId();
+        long id2 = putBook(null, "title2", authorId, "author1");
+        putContent(id1, "content");
+        putContent(id2, "content");
+        journal.snapshot();
+
+        putBook(id2, "newTitle2", authorId, "newAuthor1");
+        long id3 = putBook(null, "title3", null, "author3");
+        putContent(id1, "newContent");
+        journal.close();
+
+        repository = new InMemoryBookRepository(new BookJournal(directory, 256));
+        Assertions.assertEquals("title1", repository.get(id1).getTitle(), "book1.title");
+        Assertions.assertEquals("newTitle2", repository.get(id2).getTitle(), "book2.title");
+        Assertions.assertEquals("newAuthor1", repository.get(id1).getAuthor().getName(), "book1.author.name");
+        Assertions.assertEquals(2, repository.getBooksByAuthor("newAuthor1").size(), "newAuthor1.books");
+        Assertions.assertEquals("author3", repository.get(id3).getAuthor().getName(), "book3.author.name");
+        Assertions.assertEquals("newContent", getContent(id1), "book1.content");
+        Assertions.assertEquals("content", getContent(id2), "book2.content");
+
+        // ids go on after the recovered ones
+        long id4 = putBook(null, "title4", null, "author4");
+        Assertions.assertEquals(id3 + 1, id4, "book4.id");
+        Assertions.assertNotEquals(repository.get(id3).getAuthor().getId(), repository.get(id4).getAuthor().getId(),
+                "book4.author.id");
+    }
+
+    @Test
+    public void testRecoveryOfSharedContent(@TempDir Path directory) throws IOException {
+        BookJournal journal = new BookJournal(directory, 4096);
+        repository = new InMemoryBookRepository(journal);
+        long id1 = putBook(null, "title1", null, "author1");
+        long id2 = putBook(null, "title2", null, "author2");
+        putContent(id1, "sharedContent");
+        putContent(id2, "sharedContent");
+        // the content is released by both books, then shared again
+        putContent(id1, "content1");
+        putContent(id2, "content2");
+        putContent(id1, "sharedContent");
+        journal.close();
+
+        Path segment = getFirstSegment(directory);
+        String log = new String(Files.readAllBytes(segment), StandardCharsets.ISO_8859_1);
+        Assertions.assertEquals(log.indexOf("sharedContent"), log.lastIndexOf("sharedContent"),
+                "the bytes must be appended once");
+
+        repository = new InMemoryBookRepository(new BookJournal(directory, 4096));
+        Assertions.assertEquals("sharedContent", getContent(id1), "book1.content");
+        Assertions.assertEquals("content2", getContent(id2), "book2.content");
+    }
+
+    @Test
+    public void testRecoveryWithTornRecord(@TempDir Path directory) throws IOException {
+        BookJournal journal = new BookJournal(directory, 4096);
+        repository = new InMemoryBookRepository(journal);
+        long id1 = putBook(null, "title1", null, "author1");
+        long authorId = repository.get(id1).getAuthor().getId();
+        long id2 = putBook(null, "title2", authorId, "author1");
+        putBook(id1, "newTitle1", authorId, "author1");
+        journal.close();
+
+        // the record of the second book was left half copied, the one appended after it was completed
+        Path segment = getFirstSegment(directory);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            for (int i = 0; i < 2; i++) {
+                bytes.position(bytes.position() + 8 + bytes.getInt(bytes.position()));
+            }
+            bytes.putInt(bytes.position() + 4, bytes.getInt(bytes.position() + 4) + 1);
+        }
+
+        repository = new InMemoryBookRepository(new BookJournal(directory, 4096));
+        Assertions.assertEquals("newTitle1", repository.get(id1).getTitle(), "book1.title");
+        Assertions.assertThrows(BookNotFoundException.class, () -> repository.get(id2), "book2");
+    }
+
+    @Test
+    public void testRecoveryWithTornAuthorRecord(@TempDir Path directory) throws IOException {
+        BookJournal journal = new BookJournal(directory, 4096);
+        repository = new InMemoryBookRepository(journal);
+        long id2 = putBook(null, "title2", null, "author2");
+        long id1 = putBook(null, "title1", null, "author1");
+        long authorId1 = repository.get(id1).getAuthor().getId();
+        journal.close();
+
+        // the record of the second author was left half copied, the one of its book was completed
+        Path segment = getFirstSegment(directory);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            for (int i = 0; i < 2; i++) {
+                bytes.position(bytes.position() + 8 + bytes.getInt(bytes.position()));
+            }
+            bytes.putInt(bytes.position() + 4, bytes.getInt(bytes.position() + 4) + 1);
+        }
+
+        repository = new InMemoryBookRepository(new BookJournal(directory, 4096));
+        Assertions.assertThrows(BookNotFoundException.class, () -> repository.get(id1), "book1");
+        Assertions.assertEquals("author2", repository.get(id2).getAuthor().getName(), "book2.author.name");
+
+        // the ids of the skipped book and its author are not given out again
+        long id3 = putBook(null, "title3", null, "author3");
+        Assertions.assertTrue(id3 > id1, "id3 must be greater than id1");
+        Assertions.assertTrue(repository.get(id3).getAuthor().getId() > authorId1,
+                "author3.id must be greater than author1.id");
+    }
+
+    private static Path getFirstSegment(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().startsWith("log-")).sorted().findFirst().get();
+        }
+    }
+
+    private void putContent(long id, String content) {
+        BookContent bookContent = new BookContent();
+        bookContent.setId(id);
+        bookContent.setFileName("test.txt");
+        bookContent.setMimeType("text/plain");
+        bookContent.setContent(content.getBytes(StandardCharsets.UTF_8));
+        repository.putContent(bookContent);
+    }
+
+    private String getContent(long id) {
+        return new String(repository.getContent(id).getContent(), StandardCharsets.UTF_8);
+    }
+
+    private static String getAuthorName(int author, int version) {
+        return "author" + author + "_" + version;
+    }
+
+    private long putBook(Long id, String title, Long authorId, String authorName) {
+        Author author = new Author();
+        author.setId(authorId);
+        author.setName(authorName);
+
+        Book book = new Book();
+        book.setId(id);
+        book.setAuthor(author);
+        book.setTitle(title);
+        book.setYear(2020);
+
+        return repository.put(book);
+    }
+
+}
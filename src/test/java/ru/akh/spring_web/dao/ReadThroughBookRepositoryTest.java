@@ -0,0 +1,174 @@
+package ru.akh.spring_web.dao;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.context.annotation.Import;
+
+import ru.akh.spring_web.AbstractTest;
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = "books.cache.max-size=2")
+@Import(RepositoryConfig.class)
+public class ReadThroughBookRepositoryTest extends AbstractTest {
+
+    @Autowired
+    private BookRepository repository;
+
+    @Autowired
+    private BookCache cache;
+
+    @Test
+    public void testGetCachedBook() {
+        long id = putBook(null, "cachedTitle1", null, "cachedAuthor1");
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+
+        Book book = repository.get(id);
+        Assertions.assertEquals(misses + 1, cache.getMisses(), "cache.misses");
+
+        Book cachedBook = repository.get(id);
+        Assertions.assertEquals(hits + 1, cache.getHits(), "cache.hits");
+        Assertions.assertEquals(book.getTitle(), cachedBook.getTitle(), "cachedBook.title");
+        Assertions.assertTrue(cache.getHitRatio() > 0, "cache.hitRatio must be positive");
+    }
+
+    @Test
+    public void testGetUndecoratedBook() {
+        long id = putBook(null, "cachedTitle5", null, "cachedAuthor5");
+        repository.get(id);
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+
+        BookRepository undecoratedRepository = DelegatingBookRepository.getUndecorated(repository);
+        Assertions.assertEquals("cachedTitle5", undecoratedRepository.get(id).getTitle(), "book.title");
+        Assertions.assertEquals(hits, cache.getHits(), "cache.hits");
+        Assertions.assertEquals(misses, cache.getMisses(), "cache.misses");
+    }
+
+    @Test
+    public void testPutInvalidatesBook() {
+        long id = putBook(null, "cachedTitle2", null, "cachedAuthor2");
+        Book book = repository.get(id);
+
+        putBook(id, "cachedTitle2_2", book.getAuthor().getId(), book.getAuthor().getName());
+        Assertions.assertEquals("cachedTitle2_2", repository.get(id).getTitle(), "book.title");
+    }
+
+    @Test
+    public void testPutInvalidatesBooksOfAuthor() {
+        long id = putBook(null, "cachedTitle3", null, "cachedAuthor3");
+        long authorId = repository.get(id).getAuthor().getId();
+        long otherId = putBook(null, "cachedTitle3_2", null, "cachedAuthor3_2");
+        putBook(otherId, "cachedTitle3_2", authorId, "cachedAuthor3");
+        repository.get(otherId);
+
+        // renames the author of both books
+        putBook(id, "cachedTitle3", authorId, "cachedAuthor3_3");
+
+        long misses = cache.getMisses();
+        repository.get(otherId);
+        Assertions.assertEquals(misses + 1, cache.getMisses(), "cache.misses");
+    }
+
+    @Test
+    public void testPutKeepsBooksOfOtherAuthors() {
+        long id = putBook(null, "cachedTitle6", null, "cachedAuthor6");
+        long authorId = repository.get(id).getAuthor().getId();
+        long otherId = putBook(null, "cachedTitle6_2", null, "cachedAuthor6_2");
+        putBook(otherId, "cachedTitle6_2", authorId, "cachedAuthor6");
+        long otherAuthorId = repository.get(putBook(null, "cachedTitle6_3", null, "cachedAuthor6_3")).getAuthor()
+                .getId();
+        // moves the book to another author
+        putBook(otherId, "cachedTitle6_2", otherAuthorId, "cachedAuthor6_3");
+        repository.get(otherId);
+
+        // renames the former author of the book
+        putBook(id, "cachedTitle6", authorId, "cachedAuthor6_4");
+
+        long hits = cache.getHits();
+        repository.get(otherId);
+        Assertions.assertEquals(hits + 1, cache.getHits(), "cache.hits");
+    }
+
+    @Test
+    public void testGetAllCachedBooks() {
+        long id = putBook(null, "cachedTitle4", null, "cachedAuthor4");
+        long otherId = putBook(null, "cachedTitle4_2", null, "cachedAuthor4");
+        repository.get(id);
+
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+        List<Book> books = repository.getAll(Arrays.asList(otherId, 100L, id));
+        Assertions.assertEquals(misses + 2, cache.getMisses(), "cache.misses");
+        Assertions.assertEquals(hits + 1, cache.getHits(), "cache.hits");
+        Assertions.assertEquals(Arrays.asList(otherId, id),
+                books.stream().map(Book::getId).collect(Collectors.toList()), "books.id");
+
+        // the books read at once are cached too
+        repository.get(otherId);
+        Assertions.assertEquals(hits + 2, cache.getHits(), "cache.hits");
+    }
+
+    @Test
+    public void testEviction() {
+        long evictions = cache.getEvictions();
+        for (long id = 1; id <= 3; id++) {
+            repository.get(id);
+        }
+        Assertions.assertTrue(cache.getEvictions() > evictions, "cache.evictions must be incremented");
+        Assertions.assertEquals(2, cache.getSize(), "cache.size");
+
+        // the least recently used book has been evicted
+        long misses = cache.getMisses();
+        repository.get(1);
+        Assertions.assertEquals(misses + 1, cache.getMisses(), "cache.misses");
+    }
+
+    @Test
+    public void testEvictionKeepsRecentlyReadBook() {
+        repository.get(1);
+        repository.get(2);
+        // read after the second book, which is evicted instead
+        repository.get(1);
+        repository.get(3);
+
+        long hits = cache.getHits();
+        repository.get(1);
+        Assertions.assertEquals(hits + 1, cache.getHits(), "cache.hits");
+        Assertions.assertEquals(2, cache.getSize(), "cache.size");
+    }
+
+    @Test
+    public void testCachedBookIsCopied() {
+        long id = putBook(null, "cachedTitle7", null, "cachedAuthor7");
+        repository.get(id).setTitle("changedTitle7");
+
+        Book cachedBook = repository.get(id);
+        Assertions.assertEquals("cachedTitle7", cachedBook.getTitle(), "cachedBook.title");
+        cachedBook.getAuthor().setName("changedAuthor7");
+        Assertions.assertEquals("cachedAuthor7", repository.get(id).getAuthor().getName(), "cachedBook.author.name");
+    }
+
+    private long putBook(Long id, String title, Long authorId, String authorName) {
+        Author author = new Author();
+        author.setId(authorId);
+        author.setName(authorName);
+
+        Book book = new Book();
+        book.setId(id);
+        book.setAuthor(author);
+        book.setTitle(title);
+        book.setYear(2020);
+
+        return repository.put(book);
+    }
+
+}
@@ -0,0 +1,154 @@
+package ru.akh.spring_web.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.function.Supplier;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cache.jcache.internal.JCacheRegionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.junit.jupiter.EnabledIf;
+
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+
+import ru.akh.spring_web.AbstractTest;
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+import ru.akh.spring_web.dto.BookContent;
+
+@SpringBootTest(webEnvironment = WebEnvironment.NONE)
+@Import(RepositoryConfig.class)
+@EnabledIf(expression = "#{environment.acceptsProfiles('jpa', 'hibernate')}", loadContext = true)
+public class SecondLevelCacheTest extends AbstractTest {
+
+    @Autowired
+    private BookRepository repository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Test
+    public void testGetBook() {
+        long id = putBook(null, "cachedTitle", "cachedAuthor");
+        repository.get(id);
+
+        Book book = assertNoStatements(() -> repository.get(id));
+        Assertions.assertEquals("cachedTitle", book.getTitle(), "book.title");
+        Assertions.assertEquals("cachedAuthor", book.getAuthor().getName(), "author.name");
+
+        book.setTitle("cachedTitle2");
+        book.getAuthor().setName("cachedAuthor2");
+        repository.put(book);
+
+        book = repository.get(id);
+        Assertions.assertEquals("cachedTitle2", book.getTitle(), "book.title");
+        Assertions.assertEquals("cachedAuthor2", book.getAuthor().getName(), "author.name");
+    }
+
+    @Test
+    public void testGetTopBooks() {
+        List<Book> books = repository.getTopBooks(Book.Field.ID, Integer.MAX_VALUE);
+        Assertions.assertEquals(books.size(),
+                assertNoStatements(() -> repository.getTopBooks(Book.Field.ID, Integer.MAX_VALUE)).size(),
+                "books.size");
+
+        long id = putBook(null, "cachedTopTitle", "cachedTopAuthor");
+
+        books = repository.getTopBooks(Book.Field.ID, Integer.MAX_VALUE);
+        Assertions.assertEquals(id, books.get(books.size() - 1).getId(), "lastBook.id");
+    }
+
+    @Test
+    public void testGetBooksByAuthor() {
+        long id = putBook(null, "cachedAuthorTitle", "cachedByAuthor");
+        Assertions.assertEquals(1, repository.getBooksByAuthor("cachedByAuthor").size(), "books.size");
+        Assertions.assertEquals(1, assertNoStatements(() -> repository.getBooksByAuthor("cachedByAuthor")).size(),
+                "books.size");
+
+        Book book = repository.get(id);
+        book.getAuthor().setName("cachedByAuthor2");
+        repository.put(book);
+
+        Assertions.assertTrue(repository.getBooksByAuthor("cachedByAuthor").isEmpty(), "books.isEmpty");
+        Assertions.assertEquals(1, repository.getBooksByAuthor("cachedByAuthor2").size(), "books.size");
+    }
+
+    @Test
+    public void testGetContentInfo() {
+        long id = putBook(null, "cachedContentTitle", "cachedContentAuthor");
+        putContent(id, "content1");
+        repository.getContentInfo(id);
+
+        BookContent content = assertNoStatements(() -> repository.getContentInfo(id));
+        Assertions.assertEquals("content1".length(), content.getSize(), "content.size");
+
+        putContent(id, "content22");
+
+        content = repository.getContentInfo(id);
+        Assertions.assertEquals("content22".length(), content.getSize(), "content.size");
+        Assertions.assertEquals(ContentHashes.hash("content22".getBytes(StandardCharsets.UTF_8)), content.getHash(),
+                "content.hash");
+    }
+
+    @Test
+    public void testRegions() {
+        JCacheRegionFactory regionFactory = (JCacheRegionFactory) entityManagerFactory
+                .unwrap(SessionFactoryImplementor.class).getCache().getRegionFactory();
+        CacheManager cacheManager = regionFactory.getCacheManager();
+        assertMaximumSize(cacheManager, Book.class.getName(), OptionalLong.of(10000));
+        assertMaximumSize(cacheManager, Author.class.getName(), OptionalLong.of(10000));
+        assertMaximumSize(cacheManager, "default-query-results-region", OptionalLong.of(10000));
+        assertMaximumSize(cacheManager, "default-update-timestamps-region", OptionalLong.empty());
+    }
+
+    private static void assertMaximumSize(CacheManager cacheManager, String region, OptionalLong maximumSize) {
+        Cache<Object, Object> cache = cacheManager.getCache(region);
+        Assertions.assertNotNull(cache, region);
+        @SuppressWarnings("unchecked")
+        CaffeineConfiguration<Object, Object> configuration = cache.getConfiguration(CaffeineConfiguration.class);
+        Assertions.assertEquals(maximumSize, configuration.getMaximumSize(), region + ".maximumSize");
+        Assertions.assertFalse(configuration.isStoreByValue(), region + ".storeByValue");
+    }
+
+    private <T> T assertNoStatements(Supplier<T> reader) {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        long count = statistics.getPrepareStatementCount();
+        T result = reader.get();
+        Assertions.assertEquals(count, statistics.getPrepareStatementCount(), "statements");
+        return result;
+    }
+
+    private long putBook(Long id, String title, String authorName) {
+        Author author = new Author();
+        author.setName(authorName);
+
+        Book book = new Book();
+        book.setId(id);
+        book.setTitle(title);
+        book.setYear(2020);
+        book.setAuthor(author);
+        return repository.put(book);
+    }
+
+    private void putContent(long id, String text) {
+        BookContent content = new BookContent();
+        content.setId(id);
+        content.setFileName("cached.txt");
+        content.setMimeType("text/plain");
+        content.setContent(text.getBytes(StandardCharsets.UTF_8));
+        repository.putContent(content);
+    }
+
+}
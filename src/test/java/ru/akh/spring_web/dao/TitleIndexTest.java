@@ -0,0 +1,95 @@
+package ru.akh.spring_web.dao;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import ru.akh.spring_web.AbstractTest;
+import ru.akh.spring_web.dto.Book;
+
+public class TitleIndexTest extends AbstractTest {
+
+    private final TitleIndex index = new TitleIndex();
+
+    @Test
+    public void testSearch() {
+        index.put(1, "The Dark Tower: The Gunslinger");
+        index.put(2, "The Dark Tower II: The Drawing of the Three");
+        index.put(3, "The Darkness");
+        index.put(4, "Foundation and Empire");
+        index.put(5, "Dark Matter");
+
+        Assertions.assertEquals(Arrays.asList(1L, 2L), index.search("dark tower", 10), "dark tower");
+        // a title starting with the query ranks first, then an exact term above a prefix
+        Assertions.assertEquals(Arrays.asList(5L, 1L, 2L, 3L), index.search("dark", 10), "dark");
+        // then a shorter title above a longer one
+        Assertions.assertEquals(Arrays.asList(3L, 1L, 2L), index.search("the Dar", 10), "the dar");
+        Assertions.assertEquals(Arrays.asList(5L, 3L), index.search("dar", 2), "dar limited");
+        Assertions.assertEquals(Collections.singletonList(2L), index.search("draw ii", 10), "draw ii");
+        Assertions.assertEquals(Collections.emptyList(), index.search("dark empire", 10), "dark empire");
+        Assertions.assertEquals(Collections.emptyList(), index.search(" :, ", 10), "no tokens");
+    }
+
+    @Test
+    public void testNormalization() {
+        index.put(1, "Les Misérables");
+        index.put(2, "ÉCOLE-du-monde 2");
+
+        Assertions.assertEquals(Collections.singletonList(1L), index.search("MISERABLES", 10), "miserables");
+        Assertions.assertEquals(Collections.singletonList(1L), index.search("misé", 10), "mise");
+        Assertions.assertEquals(Collections.singletonList(2L), index.search("ecole du 2", 10), "ecole du 2");
+    }
+
+    @Test
+    public void testPut() {
+        index.put(1, "Foundation");
+        index.put(1, "Second Foundation");
+        Assertions.assertEquals(Collections.singletonList(1L), index.search("second", 10), "second");
+
+        index.put(1, "Prelude");
+        Assertions.assertEquals(Collections.emptyList(), index.search("found", 10), "found");
+        Assertions.assertEquals(1, index.getTitleCount(), "titleCount");
+        Assertions.assertEquals(1, index.getTermCount(), "termCount");
+    }
+
+    @Test
+    public void testRemove() {
+        index.put(1, "Foundation");
+        index.put(2, "Foundation and Empire");
+        index.remove(1);
+        index.remove(3);
+        Assertions.assertEquals(Collections.singletonList(2L), index.search("foundation", 10), "foundation");
+
+        index.put(1, "Second Foundation");
+        Assertions.assertEquals(Arrays.asList(2L, 1L), index.search("foundation", 10), "foundation again");
+    }
+
+    @Test
+    public void testBuild() throws IOException {
+        BookRepository repository = Mockito.mock(BookRepository.class);
+        Mockito.doAnswer(invocation -> {
+            BookCallback callback = invocation.getArgument(0);
+            callback.doWithBook(createBook(1L, "Foundation"));
+            callback.doWithBook(createBook(2L, "Foundation and Empire"));
+            return null;
+        }).when(repository).exportBooks(Mockito.any());
+
+        // put while the export has read the former title
+        index.put(1, "Second Foundation");
+        index.build(repository);
+        Assertions.assertEquals(Arrays.asList(2L, 1L), index.search("foundation", 10), "foundation");
+        Assertions.assertEquals(Collections.singletonList(1L), index.search("second", 10), "second");
+    }
+
+    private static Book createBook(Long id, String title) {
+        Book book = new Book();
+        book.setId(id);
+        book.setTitle(title);
+        return book;
+    }
+
+}
@@ -0,0 +1,228 @@
+package ru.akh.spring_web.dao.mongodb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.util.unit.DataSize;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+
+import ru.akh.spring_web.AbstractTest;
+import ru.akh.spring_web.controller.JsonResponseCache;
+import ru.akh.spring_web.dao.BookCache;
+import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.dao.OffHeapContentCache;
+import ru.akh.spring_web.dao.ReadThroughBookRepository;
+import ru.akh.spring_web.dao.TitleIndex;
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+
+/**
+ * Feeds the invalidator with the changes of a mocked stream, so it is tested
+ * without a replica set.
+ */
+public class ChangeStreamCacheInvalidatorMockTest extends AbstractTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private static final BsonDocument RESUME_TOKEN = new BsonDocument("_data", new BsonString("token"));
+
+    private final Queue<ChangeStreamDocument<Document>> changes = new ConcurrentLinkedQueue<>();
+
+    private final MongoTemplate template = Mockito.mock(MongoTemplate.class);
+
+    private ChangeStreamIterable<Document> stream;
+
+    private final BookCache bookCache = new BookCache(100, 60000);
+
+    private final JsonResponseCache jsonCache = new JsonResponseCache(new ObjectMapper(), DataSize.ofMegabytes(1));
+
+    private final TitleIndex titleIndex = new TitleIndex();
+
+    private ChangeStreamCacheInvalidator invalidator;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUpStream() {
+        MongoDatabase database = Mockito.mock(MongoDatabase.class);
+        stream = Mockito.mock(ChangeStreamIterable.class);
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = Mockito
+                .mock(MongoChangeStreamCursor.class);
+        Mockito.when(template.getDb()).thenReturn(database);
+        Mockito.when(database.watch(Mockito.anyList())).thenReturn(stream);
+        Mockito.when(stream.maxAwaitTime(Mockito.anyLong(), Mockito.any())).thenReturn(stream);
+        Mockito.when(stream.resumeAfter(Mockito.any())).thenReturn(stream);
+        Mockito.when(stream.cursor()).thenReturn(cursor);
+        // waits for a change like the server does, but is not interrupted, so the thread stops on its own
+        Mockito.when(cursor.tryNext()).thenAnswer(invocation -> {
+            ChangeStreamDocument<Document> change = changes.poll();
+            if (change == null) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            return change;
+        });
+        Mockito.when(cursor.getResumeToken()).thenReturn(RESUME_TOKEN);
+
+        Map<String, Object> beans = new HashMap<>();
+        beans.put("bookCache", bookCache);
+        beans.put("jsonResponseCache", jsonCache);
+        beans.put("titleIndex", titleIndex);
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory(beans);
+        invalidator = new ChangeStreamCacheInvalidator(template, beanFactory.getBeanProvider(BookCache.class),
+                beanFactory.getBeanProvider(OffHeapContentCache.class),
+                beanFactory.getBeanProvider(JsonResponseCache.class), beanFactory.getBeanProvider(TitleIndex.class));
+        invalidator.start();
+    }
+
+    @AfterEach
+    void stopInvalidator() {
+        invalidator.stop();
+    }
+
+    @Test
+    public void testIndexTitles() throws InterruptedException {
+        changes.add(change(OperationType.INSERT, Constants.CollectionNames.BOOKS, 1,
+                new Document("_id", 1L).append("title", "Foundation"), null));
+        await(() -> titleIndex.search("foundation", 10).equals(Collections.singletonList(1L)), "inserted");
+
+        changes.add(change(OperationType.UPDATE, Constants.CollectionNames.BOOKS, 1, null,
+                new UpdateDescription(null, new BsonDocument("title", new BsonString("Second Foundation")))));
+        await(() -> titleIndex.search("second", 10).equals(Collections.singletonList(1L)), "updated");
+
+        // a change of another field keeps the title
+        changes.add(change(OperationType.UPDATE, Constants.CollectionNames.BOOKS, 1, null,
+                new UpdateDescription(null, new BsonDocument("year", new BsonInt64(2020)))));
+        changes.add(change(OperationType.DELETE, Constants.CollectionNames.BOOKS, 2, null, null));
+        await(changes::isEmpty, "read");
+        Assertions.assertEquals(Collections.singletonList(1L), titleIndex.search("second", 10), "kept");
+
+        changes.add(change(OperationType.DELETE, Constants.CollectionNames.BOOKS, 1, null, null));
+        await(() -> titleIndex.search("foundation", 10).isEmpty(), "deleted");
+    }
+
+    @Test
+    public void testInvalidateCaches() throws InterruptedException {
+        BookRepository repository = Mockito.mock(BookRepository.class);
+        Mockito.when(repository.get(1)).thenReturn(createBook(1, 10));
+        BookRepository cachedRepository = new ReadThroughBookRepository(repository, bookCache);
+        cachedRepository.get(1);
+        jsonCache.getBook(1, 1, () -> createBook(1, 10));
+        jsonCache.getBook(2, 1, () -> createBook(2, 10));
+
+        changes.add(change(OperationType.UPDATE, Constants.CollectionNames.BOOKS, 2, null,
+                new UpdateDescription(Collections.singletonList("year"), new BsonDocument())));
+        await(() -> jsonCache.getEntryCount() == 1, "book invalidated");
+        Assertions.assertEquals(1, bookCache.getSize(), "bookCache.size");
+
+        jsonCache.getBook(2, 1, () -> createBook(2, 10));
+        changes.add(change(OperationType.UPDATE, Constants.CollectionNames.AUTHORS, 10, null,
+                new UpdateDescription(null, new BsonDocument("name", new BsonString("name")))));
+        await(() -> bookCache.getSize() == 0, "author invalidated");
+        Assertions.assertEquals(0, jsonCache.getEntryCount(), "jsonCache.entryCount");
+    }
+
+    @Test
+    public void testDrop() throws InterruptedException {
+        titleIndex.put(1, "Foundation");
+        List<Document> books = Arrays.asList(new Document("_id", 1L).append("title", "Second Foundation"),
+                new Document("_id", 2L).append("title", "Prelude to Foundation"));
+        Mockito.when(template.stream(Mockito.any(Query.class), Mockito.eq(Document.class),
+                Mockito.eq(Constants.CollectionNames.BOOKS))).thenReturn(iterate(books));
+
+        // all the titles are indexed again
+        changes.add(change(OperationType.DROP, Constants.CollectionNames.BOOKS, 0, null, null));
+        await(() -> titleIndex.search("foundation", 10).size() == 2, "indexed");
+        Assertions.assertEquals(Collections.singletonList(1L), titleIndex.search("second", 10), "second");
+    }
+
+    @Test
+    public void testResume() throws InterruptedException {
+        changes.add(change(OperationType.INSERT, Constants.CollectionNames.BOOKS, 1,
+                new Document("_id", 1L).append("title", "Foundation"), null));
+        await(changes::isEmpty, "read");
+
+        invalidator.stop();
+        invalidator.start();
+        Mockito.verify(stream).resumeAfter(RESUME_TOKEN);
+    }
+
+    private static ChangeStreamDocument<Document> change(OperationType operationType, String collectionName,
+            long id, Document fullDocument, UpdateDescription updateDescription) {
+        BsonDocument namespace = new BsonDocument("db", new BsonString("test")).append("coll",
+                new BsonString(collectionName));
+        BsonDocument documentKey = (operationType == OperationType.DROP) ? null
+                : new BsonDocument("_id", new BsonInt64(id));
+        return new ChangeStreamDocument<>(operationType, RESUME_TOKEN, namespace, null, fullDocument, documentKey,
+                null, updateDescription, null, null);
+    }
+
+    private static Book createBook(long id, long authorId) {
+        Author author = new Author();
+        author.setId(authorId);
+        author.setName("mockAuthor");
+
+        Book book = new Book();
+        book.setId(id);
+        book.setTitle("mockTitle");
+        book.setAuthor(author);
+        return book;
+    }
+
+    private static CloseableIterator<Document> iterate(List<Document> documents) {
+        Iterator<Document> iterator = documents.iterator();
+        return new CloseableIterator<Document>() {
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Document next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+
+        };
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean() && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        Assertions.assertTrue(condition.getAsBoolean(), message);
+    }
+
+}
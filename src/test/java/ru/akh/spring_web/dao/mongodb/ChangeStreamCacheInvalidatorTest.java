@@ -0,0 +1,96 @@
+package ru.akh.spring_web.dao.mongodb;
+
+import java.util.Collections;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.context.junit.jupiter.EnabledIf;
+
+import ru.akh.spring_web.AbstractTest;
+import ru.akh.spring_web.controller.JsonResponseCache;
+import ru.akh.spring_web.dao.BookCache;
+import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.dao.OffHeapContentCache;
+import ru.akh.spring_web.dao.ReadThroughBookRepository;
+import ru.akh.spring_web.dao.RepositoryConfig;
+import ru.akh.spring_web.dao.TitleIndex;
+import ru.akh.spring_web.dto.Author;
+import ru.akh.spring_web.dto.Book;
+
+@SpringBootTest(webEnvironment = WebEnvironment.NONE)
+@Import(RepositoryConfig.class)
+@EnabledIf(expression = "#{environment.acceptsProfiles('mongodb')}", loadContext = true)
+public class ChangeStreamCacheInvalidatorTest extends AbstractTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Autowired
+    private MongoTemplate template;
+
+    @Autowired
+    private BookRepository repository;
+
+    @Test
+    public void testInvalidate() throws InterruptedException {
+        Author author = new Author();
+        author.setName("streamAuthor");
+        Book book = new Book();
+        book.setTitle("streamTitle");
+        book.setYear(2020);
+        book.setAuthor(author);
+        long id = repository.put(book);
+        long authorId = author.getId();
+
+        // the writes made directly to the database stand for the ones of another node
+        BookCache cache = new BookCache(100, 60000);
+        BookRepository cachedRepository = new ReadThroughBookRepository(repository, cache);
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory(
+                Collections.singletonMap("bookCache", cache));
+        ChangeStreamCacheInvalidator invalidator = new ChangeStreamCacheInvalidator(template,
+                beanFactory.getBeanProvider(BookCache.class), beanFactory.getBeanProvider(OffHeapContentCache.class),
+                beanFactory.getBeanProvider(JsonResponseCache.class), beanFactory.getBeanProvider(TitleIndex.class));
+        invalidator.start();
+        try {
+            Assertions.assertEquals("streamTitle", cachedRepository.get(id).getTitle(), "book.title");
+            update(Constants.CollectionNames.BOOKS, id, "title", "streamTitle2");
+            awaitBook(cachedRepository, id, Book::getTitle, "streamTitle2");
+
+            update(Constants.CollectionNames.AUTHORS, authorId, "name", "streamAuthor2");
+            awaitBook(cachedRepository, id, cachedBook -> cachedBook.getAuthor().getName(), "streamAuthor2");
+
+            // the changes made while the invalidator is stopped are seen when it is resumed
+            invalidator.stop();
+            update(Constants.CollectionNames.BOOKS, id, "title", "streamTitle3");
+            Assertions.assertEquals("streamTitle2", cachedRepository.get(id).getTitle(), "book.title");
+            invalidator.start();
+            awaitBook(cachedRepository, id, Book::getTitle, "streamTitle3");
+        } finally {
+            invalidator.stop();
+        }
+    }
+
+    private void update(String collectionName, long id, String key, String value) {
+        template.updateFirst(Query.query(Criteria.where("_id").is(id)), Update.update(key, value), collectionName);
+    }
+
+    private static void awaitBook(BookRepository repository, long id, Function<Book, String> getter,
+            String expectedValue) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!expectedValue.equals(getter.apply(repository.get(id)))
+                && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(50);
+        }
+        Assertions.assertEquals(expectedValue, getter.apply(repository.get(id)), "cached value");
+    }
+
+}
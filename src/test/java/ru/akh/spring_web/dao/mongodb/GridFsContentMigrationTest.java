@@ -0,0 +1,59 @@
+package ru.akh.spring_web.dao.mongodb;
+
+import java.nio.charset.StandardCharsets;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.context.junit.jupiter.EnabledIf;
+
+import ru.akh.spring_web.AbstractTest;
+import ru.akh.spring_web.dao.BookRepository;
+import ru.akh.spring_web.dao.ContentHashes;
+import ru.akh.spring_web.dao.RepositoryConfig;
+import ru.akh.spring_web.dto.BookContent;
+
+@SpringBootTest(webEnvironment = WebEnvironment.NONE)
+@Import(RepositoryConfig.class)
+@EnabledIf(expression = "#{environment.acceptsProfiles('mongodb')}", loadContext = true)
+public class GridFsContentMigrationTest extends AbstractTest {
+
+    @Autowired
+    private GridFsContentMigration migration;
+
+    @Autowired
+    private MongoTemplate template;
+
+    @Autowired
+    private BookRepository repository;
+
+    @Test
+    public void testMigrate() {
+        long id = 9;
+        byte[] contentBytes = "embedded content".getBytes(StandardCharsets.UTF_8);
+        Query query = Query.query(Criteria.where("_id").is(id));
+        template.updateFirst(query, new Update().set("fileName", "embedded.txt").set("content", contentBytes)
+                .unset("size").unset("contentId"), Constants.CollectionNames.BOOKS);
+
+        migration.migrate();
+
+        Document book = template.findOne(query, Document.class, Constants.CollectionNames.BOOKS);
+        Assertions.assertFalse(book.containsKey("content"), "book.content");
+        Assertions.assertNotNull(book.getObjectId("contentId"), "book.contentId");
+
+        BookContent content = repository.getContent(id);
+        Assertions.assertEquals("embedded.txt", content.getFileName(), "content.fileName");
+        Assertions.assertEquals(contentBytes.length, content.getSize(), "content.size");
+        Assertions.assertArrayEquals(contentBytes, content.getContent(), "content.content");
+        Assertions.assertEquals(ContentHashes.hash(contentBytes), content.getHash(), "content.hash");
+    }
+
+}
@@ -2,23 +2,42 @@ insert into AUTHORS (NAME) values ('Stephen King');
 insert into AUTHORS (NAME) values ('Isaac Asimov');
 insert into AUTHORS (NAME) values ('Arthur Conan Doyle');
 
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('The Dark Tower: The Gunslinger', 1982, 1, 'dark_tower_1.txt', 'text/plain', STRINGTOUTF8('The Dark Tower: The Gunslinger'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('The Dark Tower II: The Drawing of the Three', 1987, 1, 'dark_tower_2.txt', 'text/plain', STRINGTOUTF8('The Dark Tower II: The Drawing of the Three'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('The Dark Tower III: The Waste Lands', 1991, 1, 'dark_tower_3.txt', 'text/plain', STRINGTOUTF8('The Dark Tower III: The Waste Lands'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('The Dark Tower IV: Wizard and Glass', 1997, 1, 'dark_tower_4.txt', 'text/plain', STRINGTOUTF8('The Dark Tower IV: Wizard and Glass'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('The Dark Tower V: Wolves of the Calla', 2003, 1, 'dark_tower_5.txt', 'text/plain', STRINGTOUTF8('The Dark Tower V: Wolves of the Calla'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('The Dark Tower VI: Song of Susannah', 2004, 1, 'dark_tower_6.txt', 'text/plain', STRINGTOUTF8('The Dark Tower VI: Song of Susannah'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('The Dark Tower VII: The Dark Tower', 2004, 1, 'dark_tower_7.txt', 'text/plain', STRINGTOUTF8('The Dark Tower VII: The Dark Tower'));
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('60e3102101316fa811080bb8b8443c1e2da404d6c25dbd914ab6df71fadacf28', STRINGTOUTF8('The Dark Tower: The Gunslinger'), 30, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('b5e0c501faca209ee95e3345882fc6dbfd62b63fed3a084a430392e2bcf4d383', STRINGTOUTF8('The Dark Tower II: The Drawing of the Three'), 43, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('e67c9ef7d302f30a5756314c97fddf467e860aff5686283cc2bf2ca391dbe13d', STRINGTOUTF8('The Dark Tower III: The Waste Lands'), 35, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('09c6d2a29386f6b7fd0349a188585f90cf4f3fa2d49089dd18475a4ea0cf01ec', STRINGTOUTF8('The Dark Tower IV: Wizard and Glass'), 35, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('e5b325ecd8c9533516a180effafd4d430817520c6cea031b5e98a2516853d5f1', STRINGTOUTF8('The Dark Tower V: Wolves of the Calla'), 37, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('487a5951a88154460ec766dd7811e47ae9d5a349af8456f3bd7bc8b5ff46c078', STRINGTOUTF8('The Dark Tower VI: Song of Susannah'), 35, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('0362b88e374a4aa20543bb4e0ee7206348837b586a62ef3cc4e8b64b2a302299', STRINGTOUTF8('The Dark Tower VII: The Dark Tower'), 34, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('df42a4d5d3537666f9ed0012c3a44999878842f8d92f2ac056e6df0ca4ac44d1', STRINGTOUTF8('Foundation'), 10, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('de39177e24d1f8fbb8753c9bbecedb433d569552be274fcd740baba413285808', STRINGTOUTF8('Foundation and Empire'), 21, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('e14242c093591b3bd44c08e28586eaf84feb9aed836580de98af6f65752fd5fe', STRINGTOUTF8('Second Foundation'), 17, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('3da2412f5069732cae6afa4c021c16f003da81b7bee3409022f3943b01410ae4', STRINGTOUTF8('Foundation''s Edge'), 17, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('44289f8570583fd9ef41436a44274f596f536ec007c9c18d3e3977a553394bf3', STRINGTOUTF8('Foundation and Earth'), 20, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('c9cc11ca8f9bfd9d8d88d1622c1213ce63d2aae8f32b547665a6a2f9d65773f3', STRINGTOUTF8('Prelude to Foundation'), 21, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('3b81d04d2247abf65b8632eeb826ee35296b81e6a206bbf9a0cfd416fc0af5e8', STRINGTOUTF8('Forward the Foundation'), 22, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('a84ca8de956039267e17262c22fec8896a7a1c616e3fbdfb02d0f9d9ba58976c', STRINGTOUTF8('A Study in Scarlet'), 18, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('16579fe2f8db7e0bb2b92b936b2c056011337e1cc9547aa68f549c64b62ea75d', STRINGTOUTF8('The Sign of the Four'), 20, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('6ff00ab3a7b9b6c244f1dc0febc1c83141059183fb74bf261e9e057bad1352f3', STRINGTOUTF8('The Hound of the Baskervilles'), 29, 1);
+insert into CONTENTS (HASH, CONTENT, SIZE, REFCOUNT) values ('88cb75d96e3490a551b51b8493c6c63816581f60ea0c771f1f0b6427d8618dc7', STRINGTOUTF8('The Valley of Fear'), 18, 1);
 
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('Foundation', 1951, 2, 'foundation_1.txt', 'text/plain', STRINGTOUTF8('Foundation'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('Foundation and Empire', 1952, 2, 'foundation_2.txt', 'text/plain', STRINGTOUTF8('Foundation and Empire'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('Second Foundation', 1953, 2, 'foundation_3.txt', 'text/plain', STRINGTOUTF8('Second Foundation'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('Foundation''s Edge', 1982, 2, 'foundation_4.txt', 'text/plain', STRINGTOUTF8('Foundation''s Edge'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('Foundation and Earth', 1986, 2, 'foundation_5.txt', 'text/plain', STRINGTOUTF8('Foundation and Earth'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('Prelude to Foundation', 1988, 2, 'foundation_6.txt', 'text/plain', STRINGTOUTF8('Prelude to Foundation'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('Forward the Foundation', 1993, 2, 'foundation_7.txt', 'text/plain', STRINGTOUTF8('Forward the Foundation'));
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('The Dark Tower: The Gunslinger', 1982, 1, 'dark_tower_1.txt', 'text/plain', '60e3102101316fa811080bb8b8443c1e2da404d6c25dbd914ab6df71fadacf28');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('The Dark Tower II: The Drawing of the Three', 1987, 1, 'dark_tower_2.txt', 'text/plain', 'b5e0c501faca209ee95e3345882fc6dbfd62b63fed3a084a430392e2bcf4d383');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('The Dark Tower III: The Waste Lands', 1991, 1, 'dark_tower_3.txt', 'text/plain', 'e67c9ef7d302f30a5756314c97fddf467e860aff5686283cc2bf2ca391dbe13d');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('The Dark Tower IV: Wizard and Glass', 1997, 1, 'dark_tower_4.txt', 'text/plain', '09c6d2a29386f6b7fd0349a188585f90cf4f3fa2d49089dd18475a4ea0cf01ec');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('The Dark Tower V: Wolves of the Calla', 2003, 1, 'dark_tower_5.txt', 'text/plain', 'e5b325ecd8c9533516a180effafd4d430817520c6cea031b5e98a2516853d5f1');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('The Dark Tower VI: Song of Susannah', 2004, 1, 'dark_tower_6.txt', 'text/plain', '487a5951a88154460ec766dd7811e47ae9d5a349af8456f3bd7bc8b5ff46c078');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('The Dark Tower VII: The Dark Tower', 2004, 1, 'dark_tower_7.txt', 'text/plain', '0362b88e374a4aa20543bb4e0ee7206348837b586a62ef3cc4e8b64b2a302299');
 
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('A Study in Scarlet', 1887, 3, 'sherlock_holmes_1.txt', 'text/plain', STRINGTOUTF8('A Study in Scarlet'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('The Sign of the Four', 1890, 3, 'sherlock_holmes_2.txt', 'text/plain', STRINGTOUTF8('The Sign of the Four'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('The Hound of the Baskervilles', 1902, 3, 'sherlock_holmes_3.txt', 'text/plain', STRINGTOUTF8('The Hound of the Baskervilles'));
-insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT) values ('The Valley of Fear', 1915, 3, 'sherlock_holmes_4.txt', 'text/plain', STRINGTOUTF8('The Valley of Fear'));
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('Foundation', 1951, 2, 'foundation_1.txt', 'text/plain', 'df42a4d5d3537666f9ed0012c3a44999878842f8d92f2ac056e6df0ca4ac44d1');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('Foundation and Empire', 1952, 2, 'foundation_2.txt', 'text/plain', 'de39177e24d1f8fbb8753c9bbecedb433d569552be274fcd740baba413285808');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('Second Foundation', 1953, 2, 'foundation_3.txt', 'text/plain', 'e14242c093591b3bd44c08e28586eaf84feb9aed836580de98af6f65752fd5fe');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('Foundation''s Edge', 1982, 2, 'foundation_4.txt', 'text/plain', '3da2412f5069732cae6afa4c021c16f003da81b7bee3409022f3943b01410ae4');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('Foundation and Earth', 1986, 2, 'foundation_5.txt', 'text/plain', '44289f8570583fd9ef41436a44274f596f536ec007c9c18d3e3977a553394bf3');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('Prelude to Foundation', 1988, 2, 'foundation_6.txt', 'text/plain', 'c9cc11ca8f9bfd9d8d88d1622c1213ce63d2aae8f32b547665a6a2f9d65773f3');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('Forward the Foundation', 1993, 2, 'foundation_7.txt', 'text/plain', '3b81d04d2247abf65b8632eeb826ee35296b81e6a206bbf9a0cfd416fc0af5e8');
+
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('A Study in Scarlet', 1887, 3, 'sherlock_holmes_1.txt', 'text/plain', 'a84ca8de956039267e17262c22fec8896a7a1c616e3fbdfb02d0f9d9ba58976c');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('The Sign of the Four', 1890, 3, 'sherlock_holmes_2.txt', 'text/plain', '16579fe2f8db7e0bb2b92b936b2c056011337e1cc9547aa68f549c64b62ea75d');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('The Hound of the Baskervilles', 1902, 3, 'sherlock_holmes_3.txt', 'text/plain', '6ff00ab3a7b9b6c244f1dc0febc1c83141059183fb74bf261e9e057bad1352f3');
+insert into BOOKS (TITLE, YEAR, AUTHOR_ID, FILENAME, MIMETYPE, CONTENT_HASH) values ('The Valley of Fear', 1915, 3, 'sherlock_holmes_4.txt', 'text/plain', '88cb75d96e3490a551b51b8493c6c63816581f60ea0c771f1f0b6427d8618dc7');
@@ -1,9 +1,19 @@
 create table AUTHORS (
     ID integer not null AUTO_INCREMENT,
     NAME varchar(255) not null,
+    VERSION bigint default 0 not null,
     primary key (ID)
 );
 
+create table CONTENTS (
+    HASH char(64) not null,
+    CONTENT blob not null,
+    ENCODING varchar(16),
+    SIZE bigint not null,
+    REFCOUNT integer not null,
+    primary key (HASH)
+);
+
 create table BOOKS (
     ID integer not null AUTO_INCREMENT,
     TITLE varchar(255) not null,
@@ -11,7 +21,26 @@ create table BOOKS (
     AUTHOR_ID integer not null,
     FILENAME varchar(255),
     MIMETYPE varchar(255),
-    CONTENT blob,
+    CONTENT_HASH char(64),
+    VERSION bigint default 0 not null,
     primary key (ID),
-    foreign key (AUTHOR_ID) references AUTHORS(ID)
+    foreign key (AUTHOR_ID) references AUTHORS(ID),
+    foreign key (CONTENT_HASH) references CONTENTS(HASH)
 );
+
+-- keyset pagination seeks these instead of sorting the whole table
+create index BOOKS_TITLE_ID on BOOKS (TITLE, ID);
+create index BOOKS_YEAR_ID on BOOKS (YEAR, ID);
+create index AUTHORS_NAME on AUTHORS (NAME);
+
+-- every put stamps the changed books and authors with the next catalog version once it is done
+create table CATALOG (
+    VERSION bigint not null
+);
+
+insert into CATALOG (VERSION) values (0);
+
+-- until then a jdbc put writes them with the negated next value, which tells the rows of the put apart
+create sequence CATALOG_SEQUENCE start with 1;
+create index BOOKS_VERSION on BOOKS (VERSION);
+create index AUTHORS_VERSION on AUTHORS (VERSION);